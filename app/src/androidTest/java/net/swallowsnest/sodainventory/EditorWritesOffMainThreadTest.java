@@ -0,0 +1,123 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static android.support.test.espresso.Espresso.onView;
+import static android.support.test.espresso.Espresso.openActionBarOverflowOrOptionsMenu;
+import static android.support.test.espresso.action.ViewActions.click;
+import static android.support.test.espresso.matcher.ViewMatchers.withId;
+import static android.support.test.espresso.matcher.ViewMatchers.withText;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the editor with StrictMode set to kill the app on any disk write from the main
+ * thread, so the test run fails if a provider write ever happens on the UI thread.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EditorWritesOffMainThreadTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public ActivityTestRule<EditorActivity> mActivityRule =
+            new ActivityTestRule<>(EditorActivity.class, false, false);
+
+    private ContentResolver mContentResolver;
+    private Uri mSodaUri;
+
+    @Before
+    public void setUp() throws Exception {
+        mContentResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_NAME, "StrictMode Cola");
+        values.put(SodaEntry.COLUMN_QUANTITY, 5);
+        values.put(SodaEntry.COLUMN_SOLD, 0);
+        values.put(SodaEntry.COLUMN_PRICE, 100);
+        mSodaUri = mContentResolver.insert(SodaEntry.CONTENT_URI, values);
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                        .detectDiskWrites()
+                        .penaltyLog()
+                        .penaltyDeath()
+                        .build());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                StrictMode.setThreadPolicy(StrictMode.ThreadPolicy.LAX);
+            }
+        });
+        mContentResolver.delete(mSodaUri, null, null);
+    }
+
+    @Test
+    public void sellAndSaveWriteInTheBackground() throws Exception {
+        mActivityRule.launchActivity(new Intent(Intent.ACTION_EDIT, mSodaUri));
+
+        onView(withId(R.id.sell_soda)).perform(click());
+        waitForQuantity(4);
+
+        openActionBarOverflowOrOptionsMenu(InstrumentationRegistry.getTargetContext());
+        onView(withText(R.string.action_save)).perform(click());
+
+        long end = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (!mActivityRule.getActivity().isFinishing()
+                && SystemClock.elapsedRealtime() < end) {
+            SystemClock.sleep(50);
+        }
+        assertTrue("Editor didn't close after saving", mActivityRule.getActivity().isFinishing());
+    }
+
+    /**
+     * Wait until the provider reports the given quantity for the test soda.
+     */
+    private void waitForQuantity(int quantity) {
+        long end = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        int current = -1;
+        while (SystemClock.elapsedRealtime() < end) {
+            Cursor cursor = mContentResolver.query(mSodaUri,
+                    new String[]{SodaEntry.COLUMN_QUANTITY}, null, null, null);
+            try {
+                if (cursor != null && cursor.moveToFirst()) {
+                    current = cursor.getInt(0);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            if (current == quantity) {
+                break;
+            }
+            SystemClock.sleep(50);
+        }
+        assertEquals(quantity, current);
+    }
+}
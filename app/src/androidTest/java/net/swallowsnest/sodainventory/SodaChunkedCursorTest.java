@@ -0,0 +1,282 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.util.SparseArray;
+
+import net.swallowsnest.sodainventory.data.SodaContract;
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaDbHelper;
+import net.swallowsnest.sodainventory.data.SodaProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Scrolls {@link SodaChunkedCursor}s over a provider on a scratch database, and checks which
+ * chunks they load in which order, which ones they drop, how they skip to a chunk whose start
+ * isn't known, and what they read once the list got shorter than it was counted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaChunkedCursorTest {
+
+    private static final int CHUNK_ROWS = SodaChunkedCursor.CHUNK_ROWS;
+    private static final int CHUNKS = 10;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static final String[] PROJECTION = {
+            SodaEntry._ID, SodaEntry.COLUMN_NAME, SodaEntry.COLUMN_QUANTITY,
+            SodaEntry.COLUMN_PRICE};
+
+    /**
+     * Columns the cursor reads when it skips over rows of a list sorted by name
+     */
+    private static final String[] KEY_PROJECTION = {SodaEntry._ID, SodaEntry.COLUMN_NAME};
+
+    private RenamingDelegatingContext mContext;
+    private MockContentResolver mResolver;
+    private Uri mListUri;
+    private final AtomicInteger mKeyQueries = new AtomicInteger();
+    private final List<SodaChunkedCursor> mCursors = new ArrayList<>();
+
+    /**
+     * Start and row count of every load the cursors told about, in order
+     */
+    private final BlockingQueue<int[]> mLoads = new LinkedBlockingQueue<>();
+
+    private final SodaChunkedCursor.Listener mListener = new SodaChunkedCursor.Listener() {
+        @Override
+        public void onRowsLoaded(int start, int count) {
+            mLoads.add(new int[]{start, count});
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(),
+                "chunked_cursor_test.");
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+        SodaProvider provider = new SodaProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder) {
+                if (Arrays.equals(projection, KEY_PROJECTION)) {
+                    mKeyQueries.incrementAndGet();
+                }
+                return super.query(uri, projection, selection, selectionArgs, sortOrder);
+            }
+        };
+        provider.attachInfo(mContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(SodaContract.CONTENT_AUTHORITY, provider);
+
+        ContentValues[] sodas = new ContentValues[CHUNKS * CHUNK_ROWS];
+        for (int i = 0; i < sodas.length; i++) {
+            sodas[i] = new ContentValues();
+            sodas[i].put(SodaEntry.COLUMN_NAME, name(i));
+            sodas[i].put(SodaEntry.COLUMN_QUANTITY, i % 50);
+            sodas[i].put(SodaEntry.COLUMN_PRICE, 150);
+        }
+        mResolver.bulkInsert(SodaEntry.CONTENT_URI, sodas);
+
+        mListUri = SodaEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_SORT_KEY, SodaEntry.COLUMN_NAME)
+                .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (SodaChunkedCursor cursor : mCursors) {
+                    cursor.close();
+                }
+            }
+        });
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void prefetchLoadsCurrentChunkThenAheadThenBehind() throws Exception {
+        SodaChunkedCursor cursor = open(0, null);
+
+        assertNull(moveTo(cursor, 5 * CHUNK_ROWS));
+        assertLoads(5, 6, 7, 4);
+        assertEquals(name(5 * CHUNK_ROWS), moveTo(cursor, 5 * CHUNK_ROWS));
+    }
+
+    @Test
+    public void chunksOutsideTheWindowAreDropped() throws Exception {
+        SodaChunkedCursor cursor = open(7 * CHUNK_ROWS, null);
+
+        // Scrolling up prefetches upwards and keeps one chunk below
+        assertNull(moveTo(cursor, 6 * CHUNK_ROWS));
+        assertLoads(6, 5, 4);
+        assertEquals(name(7 * CHUNK_ROWS), moveTo(cursor, 7 * CHUNK_ROWS));
+
+        // Turning down again has to load the chunks below that were dropped
+        assertLoads(8, 9);
+        assertEquals(name(9 * CHUNK_ROWS), moveTo(cursor, 9 * CHUNK_ROWS));
+        assertNull(moveTo(cursor, 4 * CHUNK_ROWS));
+        assertLoads(4, 3, 2, 5);
+    }
+
+    @Test
+    public void jumpSkipsToTheChunkWithOneKeyQuery() throws Exception {
+        SodaChunkedCursor cursor = open(0, null);
+        mKeyQueries.set(0);
+
+        assertNull(moveTo(cursor, 8 * CHUNK_ROWS + 3));
+        assertLoads(8, 9, 7);
+        assertEquals(name(8 * CHUNK_ROWS + 3), moveTo(cursor, 8 * CHUNK_ROWS + 3));
+        assertEquals(1, mKeyQueries.get());
+    }
+
+    @Test
+    public void handedOverStartsSpareTheKeyQuery() throws Exception {
+        SparseArray<String[]> starts = copyChunkStarts(open(8 * CHUNK_ROWS, null));
+        mKeyQueries.set(0);
+
+        SodaChunkedCursor cursor = open(8 * CHUNK_ROWS, starts);
+        assertEquals(0, mKeyQueries.get());
+        assertEquals(name(8 * CHUNK_ROWS), moveTo(cursor, 8 * CHUNK_ROWS));
+    }
+
+    @Test
+    public void handedOverStartsOfAChangedListAreSkippedOver() throws Exception {
+        SparseArray<String[]> starts = copyChunkStarts(open(8 * CHUNK_ROWS, null));
+        assertEquals(1, mResolver.delete(SodaEntry.CONTENT_URI, SodaEntry.COLUMN_NAME + " = ?",
+                new String[]{name(0)}));
+        mKeyQueries.set(0);
+
+        SodaChunkedCursor cursor = open(8 * CHUNK_ROWS, starts);
+        assertEquals(1, mKeyQueries.get());
+        assertEquals(CHUNKS * CHUNK_ROWS - 1, cursor.getCount());
+        assertEquals(name(8 * CHUNK_ROWS + 1), moveTo(cursor, 8 * CHUNK_ROWS));
+    }
+
+    @Test
+    public void rowsPastTheEndOfAShrunkListReadAsNulls() throws Exception {
+        SodaChunkedCursor cursor = open(0, null);
+        int length = 4 * CHUNK_ROWS + 100;
+        mResolver.delete(SodaEntry.CONTENT_URI, SodaEntry.COLUMN_NAME + " >= ?",
+                new String[]{name(length)});
+
+        assertNull(moveTo(cursor, 4 * CHUNK_ROWS));
+        int[] load = mLoads.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(load);
+        assertEquals(4 * CHUNK_ROWS, load[0]);
+        assertEquals(100, load[1]);
+
+        // The chunks after it are empty, so only the one behind it is told about
+        assertLoads(3);
+        assertEquals(CHUNKS * CHUNK_ROWS, cursor.getCount());
+        assertEquals(name(length - 1), moveTo(cursor, length - 1));
+        assertNull(moveTo(cursor, length));
+    }
+
+    @Test
+    public void copiedRowsAreTheLoadedOnes() throws Exception {
+        final SodaChunkedCursor cursor = open(7 * CHUNK_ROWS, null);
+        final List<Object[][]> rows = new ArrayList<>();
+        final int[] found = new int[2];
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                rows.add(cursor.copyRows());
+                Object[] row = rows.get(0)[8 * CHUNK_ROWS];
+                found[0] = cursor.findLoadedRow(0, ((Number) row[0]).longValue());
+                found[1] = cursor.findLoadedRow(0, -1);
+            }
+        });
+
+        Object[][] copy = rows.get(0);
+        assertEquals(CHUNKS * CHUNK_ROWS, copy.length);
+        assertNull(copy[7 * CHUNK_ROWS - 1]);
+        assertEquals(name(7 * CHUNK_ROWS), copy[7 * CHUNK_ROWS][1]);
+        assertEquals(name(CHUNKS * CHUNK_ROWS - 1), copy[CHUNKS * CHUNK_ROWS - 1][1]);
+        assertEquals(8 * CHUNK_ROWS, found[0]);
+        assertEquals(-1, found[1]);
+    }
+
+    private static String name(int position) {
+        return String.format(Locale.US, "Soda %05d", position);
+    }
+
+    private SodaChunkedCursor open(int position, SparseArray<String[]> starts) {
+        final SodaChunkedCursor cursor = SodaChunkedCursor.open(mResolver, mListUri,
+                PROJECTION, SodaEntry.COLUMN_NAME, position, starts);
+        mCursors.add(cursor);
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                cursor.setListener(mListener);
+            }
+        });
+        return cursor;
+    }
+
+    private SparseArray<String[]> copyChunkStarts(final SodaChunkedCursor cursor) {
+        final List<SparseArray<String[]>> starts = new ArrayList<>();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                starts.add(cursor.copyChunkStarts());
+            }
+        });
+        return starts.get(0);
+    }
+
+    /**
+     * Move the cursor to the position on the main thread, and return the name there, or null
+     * if the row isn't loaded.
+     */
+    private String moveTo(final Cursor cursor, final int position) {
+        final String[] name = new String[1];
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                cursor.moveToPosition(position);
+                name[0] = cursor.getString(cursor.getColumnIndex(SodaEntry.COLUMN_NAME));
+            }
+        });
+        return name[0];
+    }
+
+    /**
+     * Wait for the given whole chunks to be loaded, in this order.
+     */
+    private void assertLoads(int... chunks) throws InterruptedException {
+        for (int chunk : chunks) {
+            int[] load = mLoads.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("Chunk " + chunk + " wasn't loaded", load);
+            assertEquals(chunk * CHUNK_ROWS, load[0]);
+            assertEquals(CHUNK_ROWS, load[1]);
+        }
+    }
+
+    private static void onMainThread(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+}
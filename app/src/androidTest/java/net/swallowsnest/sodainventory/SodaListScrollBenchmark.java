@@ -0,0 +1,121 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.widget.FrameLayout;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Scrolls {@link SodaCursorAdapter} through a long list by binding every row the way the
+ * RecyclerView does, and checks that binding rows doesn't allocate.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaListScrollBenchmark {
+
+    private static final String LOG_TAG = SodaListScrollBenchmark.class.getSimpleName();
+    private static final int ROWS = 2000;
+    private static final int VIEW_HOLDERS = 12;
+
+    private SQLiteDatabase mDatabase;
+    private Cursor mCursor;
+    private SodaSellBuffer mSellBuffer;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE " + SodaEntry.TABLE_NAME + "("
+                + SodaEntry._ID + " INTEGER PRIMARY KEY, "
+                + SodaEntry.COLUMN_NAME + " TEXT NOT NULL, "
+                + SodaEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + SodaEntry.COLUMN_SOLD + " INTEGER NOT NULL DEFAULT 0, "
+                + SodaEntry.COLUMN_PRICE + " INTEGER NOT NULL DEFAULT 0);");
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 1; i <= ROWS; i++) {
+                mDatabase.execSQL("INSERT INTO " + SodaEntry.TABLE_NAME + " VALUES (?, ?, ?, 0, ?)",
+                        new Object[]{i, "Soda number " + i, i % 50, 100 + i % 400});
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        mCursor = mDatabase.query(SodaEntry.TABLE_NAME, null, null, null, null, null,
+                SodaEntry._ID);
+
+        mSellBuffer = new SodaSellBuffer(InstrumentationRegistry.getTargetContext()
+                .getContentResolver(), new SodaSellBuffer.Listener() {
+            @Override
+            public void onPendingSalesChanged(long id) {
+            }
+
+            @Override
+            public void onSalesDropped(long id, int count) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSellBuffer.close();
+        mCursor.close();
+        mDatabase.close();
+    }
+
+    @Test
+    public void scrollingDoesNotAllocate() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SodaCursorAdapter adapter = new SodaCursorAdapter(context, mSellBuffer,
+                new SodaCursorAdapter.Listener() {
+                    @Override
+                    public void onSodaClicked(long id) {
+                    }
+                });
+        adapter.swapCursor(mCursor);
+
+        FrameLayout parent = new FrameLayout(context);
+        SodaCursorAdapter.SodaViewHolder[] holders =
+                new SodaCursorAdapter.SodaViewHolder[VIEW_HOLDERS];
+        for (int i = 0; i < VIEW_HOLDERS; i++) {
+            holders[i] = adapter.onCreateViewHolder(parent, 0);
+        }
+
+        // The first pass fills the cursor windows and grows the text buffers
+        bindAll(adapter, holders);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        bindAll(adapter, holders);
+        long elapsed = System.nanoTime() - start;
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        Log.i(LOG_TAG, "Bound " + ROWS + " rows in " + elapsed / 1000 + " us, "
+                + elapsed / ROWS + " ns per row, " + allocations + " allocations");
+        assertEquals("Binding rows allocated objects", 0, allocations);
+    }
+
+    /**
+     * Bind every row to the view holders in turn, like scrolling from top to bottom.
+     */
+    private static void bindAll(SodaCursorAdapter adapter,
+                                SodaCursorAdapter.SodaViewHolder[] holders) {
+        for (int position = 0; position < adapter.getItemCount(); position++) {
+            adapter.onBindViewHolder(holders[position % holders.length], position);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import net.swallowsnest.sodainventory.data.SodaContract;
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaDbHelper;
+import net.swallowsnest.sodainventory.data.SodaProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Writes buffered sales through a provider on a scratch database, and checks that the sales
+ * a soda can't take are dropped and reported while the sales of the other sodas in the same
+ * batch are written.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaSellBufferTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private RenamingDelegatingContext mContext;
+    private MockContentResolver mResolver;
+    private SodaSellBuffer mBuffer;
+
+    /**
+     * Soda ID and count of every drop the buffer reported, in order
+     */
+    private final BlockingQueue<long[]> mDropped = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(),
+                "sell_buffer_test.");
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+        SodaProvider provider = new SodaProvider();
+        provider.attachInfo(mContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(SodaContract.CONTENT_AUTHORITY, provider);
+
+        mBuffer = new SodaSellBuffer(mResolver, new SodaSellBuffer.Listener() {
+            @Override
+            public void onPendingSalesChanged(long id) {
+            }
+
+            @Override
+            public void onSalesDropped(long id, int count) {
+                mDropped.add(new long[]{id, count});
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mBuffer.close();
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void salesBeyondTheStockAreDroppedAndReported() throws Exception {
+        long scarce = insert("Cola", 2);
+        long stocked = insert("Root Beer", 10);
+
+        // Both sodas go into the same batch
+        sell(new long[]{scarce, scarce, scarce, stocked, stocked, stocked, stocked});
+        long[] dropped = mDropped.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(dropped);
+        assertArrayEquals(new long[]{scarce, 3}, dropped);
+
+        assertEquals(2, readQuantity(scarce));
+        assertEquals(6, readQuantity(stocked));
+        assertEquals(0, pendingSales(scarce));
+    }
+
+    @Test
+    public void salesOfADeletedSodaAreDroppedAndReported() throws Exception {
+        long id = insert("Cola", 5);
+        mResolver.delete(ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id), null, null);
+
+        sell(new long[]{id, id});
+        long[] dropped = mDropped.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(dropped);
+        assertArrayEquals(new long[]{id, 2}, dropped);
+    }
+
+    private long insert(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_NAME, name);
+        values.put(SodaEntry.COLUMN_QUANTITY, quantity);
+        values.put(SodaEntry.COLUMN_PRICE, 150);
+        return ContentUris.parseId(mResolver.insert(SodaEntry.CONTENT_URI, values));
+    }
+
+    /**
+     * Tap sell once for every given soda ID on the main thread, then flush.
+     */
+    private void sell(final long[] ids) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (long id : ids) {
+                    mBuffer.sell(id);
+                }
+                mBuffer.flush();
+            }
+        });
+    }
+
+    private int pendingSales(final long id) {
+        final int[] pending = new int[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                pending[0] = mBuffer.getPendingSales(id);
+            }
+        });
+        return pending[0];
+    }
+
+    private int readQuantity(long id) {
+        Uri uri = ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id);
+        Cursor cursor = mResolver.query(uri, new String[]{SodaEntry.COLUMN_QUANTITY},
+                null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package net.swallowsnest.sodainventory.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link SodaSyncServer} that keeps every pushed change in order, its position in the list
+ * being its token.
+ */
+class InMemorySyncServer implements SodaSyncServer {
+
+    private final List<SodaSyncEngine.Change> mChanges = new ArrayList<>();
+    private final List<String> mDevices = new ArrayList<>();
+
+    @Override
+    public synchronized void push(String deviceId, byte[] batch) throws IOException {
+        for (SodaSyncEngine.Change change : SodaSyncEngine.decode(batch).changes) {
+            mChanges.add(change);
+            mDevices.add(deviceId);
+        }
+    }
+
+    @Override
+    public synchronized byte[] pull(String deviceId, long afterToken, int limit)
+            throws IOException {
+        List<SodaSyncEngine.Change> changes = new ArrayList<>();
+        int token = (int) afterToken;
+        while (token < mChanges.size() && changes.size() < limit) {
+            if (!mDevices.get(token).equals(deviceId)) {
+                changes.add(mChanges.get(token));
+            }
+            token++;
+        }
+        return SodaSyncEngine.encode(changes, token, token < mChanges.size());
+    }
+}
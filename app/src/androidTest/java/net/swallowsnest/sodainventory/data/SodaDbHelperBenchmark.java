@@ -0,0 +1,158 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks showing that list reads keep going while sales are written, now that the
+ * soda database uses write-ahead logging. Results are written to logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaDbHelperBenchmark {
+
+    private static final String LOG_TAG = SodaDbHelperBenchmark.class.getSimpleName();
+    private static final String DATABASE_NAME = "sodas_benchmark.db";
+    private static final int ROWS = 10000;
+    private static final long RUN_MILLIS = 3000;
+
+    private Context mContext;
+    private SodaDbHelper mDbHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new SodaDbHelper(mContext, DATABASE_NAME);
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < ROWS; i++) {
+                values.put(SodaEntry.COLUMN_NAME, "Soda " + i);
+                values.put(SodaEntry.COLUMN_QUANTITY, 1000);
+                values.put(SodaEntry.COLUMN_SOLD, 0);
+                values.put(SodaEntry.COLUMN_PRICE, 150);
+                db.insert(SodaEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * A reader must be able to finish a query while a writer holds an open transaction.
+     */
+    @Test
+    public void readDoesNotWaitForOpenWriteTransaction() throws Exception {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final CountDownLatch readDone = new CountDownLatch(1);
+
+        db.beginTransaction();
+        try {
+            db.execSQL("UPDATE " + SodaEntry.TABLE_NAME + " SET " + SodaEntry.COLUMN_SOLD
+                    + " = " + SodaEntry.COLUMN_SOLD + " + 1 WHERE " + SodaEntry._ID + " = 1");
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    countRows(db);
+                    readDone.countDown();
+                }
+            }).start();
+
+            assertTrue("Read was blocked by the write transaction",
+                    readDone.await(2, TimeUnit.SECONDS));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Measure full list reads and single sells running at the same time.
+     */
+    @Test
+    public void concurrentReadsAndSells() throws Exception {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong writes = new AtomicLong();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String sql = "UPDATE " + SodaEntry.TABLE_NAME
+                        + " SET " + SodaEntry.COLUMN_QUANTITY + " = " + SodaEntry.COLUMN_QUANTITY + " - 1, "
+                        + SodaEntry.COLUMN_SOLD + " = " + SodaEntry.COLUMN_SOLD + " + 1"
+                        + " WHERE " + SodaEntry._ID + " = ?";
+                long id = 1;
+                while (running.get()) {
+                    db.execSQL(sql, new Object[]{id});
+                    id = id % ROWS + 1;
+                    writes.incrementAndGet();
+                }
+            }
+        });
+
+        long reads = 0;
+        long slowestRead = 0;
+        writer.start();
+        long end = SystemClock.elapsedRealtime() + RUN_MILLIS;
+        while (SystemClock.elapsedRealtime() < end) {
+            long start = SystemClock.elapsedRealtime();
+            countRows(db);
+            slowestRead = Math.max(slowestRead, SystemClock.elapsedRealtime() - start);
+            reads++;
+        }
+        running.set(false);
+        writer.join();
+
+        Log.i(LOG_TAG, "WAL enabled: " + db.isWriteAheadLoggingEnabled()
+                + ", full reads/s: " + reads * 1000 / RUN_MILLIS
+                + ", slowest read: " + slowestRead + " ms"
+                + ", sells/s: " + writes.get() * 1000 / RUN_MILLIS);
+        assertTrue(reads > 0);
+        assertTrue(writes.get() > 0);
+    }
+
+    /**
+     * Read every row of the list the way the list loader does.
+     */
+    private static void countRows(SQLiteDatabase db) {
+        Cursor cursor = db.query(SodaEntry.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getInt(cursor.getColumnIndex(SodaEntry.COLUMN_QUANTITY));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips the catalog through the CSV and JSON files of {@link SodaFileCodec}, including
+ * names that need quoting and imports that span several chunks.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaFileCodecTest {
+
+    private static final String DATABASE_NAME = "sodas_file_codec_test.db";
+
+    private static final String[] NAMES = {
+            "Cola", "Root Beer, Draft", "The \"Real\" Ginger Ale", "Two\nLines", "Cr\u00e8me Soda"
+    };
+
+    private Context mContext;
+    private SodaDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new SodaDbHelper(mContext, DATABASE_NAME);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void csvRoundTrip() throws IOException {
+        roundTrip(SodaEntry.FORMAT_CSV);
+    }
+
+    @Test
+    public void jsonRoundTrip() throws IOException {
+        roundTrip(SodaEntry.FORMAT_JSON);
+    }
+
+    @Test
+    public void csvColumnsMayComeInAnyOrder() throws IOException {
+        String csv = "\uFEFFprice,name,_id,quantity\r\n1.5,Cola,42,12\r\n\r\n2,Grape,43,0\r\n";
+        int rows = SodaFileCodec.importRows(mDb, SodaEntry.FORMAT_CSV, new StringReader(csv),
+                new CountingListener());
+        assertEquals(2, rows);
+        assertEquals("Cola 12 0 150|Grape 0 0 200|", describeCatalog());
+    }
+
+    @Test
+    public void badSodaStopsImportAfterCommittedChunks() throws IOException {
+        StringBuilder csv = new StringBuilder("name,quantity,price\n");
+        for (int i = 0; i < SodaFileCodec.CHUNK_ROWS + 10; i++) {
+            csv.append("Soda ").append(i).append(",1,1.00\n");
+        }
+        csv.append("Broken,-1,1.00\n");
+
+        CountingListener listener = new CountingListener();
+        try {
+            SodaFileCodec.importRows(mDb, SodaEntry.FORMAT_CSV,
+                    new StringReader(csv.toString()), listener);
+            fail("Import of a negative quantity succeeded");
+        } catch (IllegalArgumentException expected) {
+            // The first chunk was committed, the rest of the file rolled back
+        }
+        assertEquals(SodaFileCodec.CHUNK_ROWS, listener.mRows);
+        assertEquals(SodaFileCodec.CHUNK_ROWS, countSodas());
+    }
+
+    private void roundTrip(String format) throws IOException {
+        int count = SodaFileCodec.CHUNK_ROWS * 2 + 7;
+        StringBuilder csv = new StringBuilder("name,quantity,sold,price,reorder_threshold\n");
+        for (int i = 0; i < count; i++) {
+            String name = NAMES[i % NAMES.length] + " " + i;
+            csv.append('"').append(name.replace("\"", "\"\"")).append('"')
+                    .append(',').append(i).append(',').append(i % 7)
+                    .append(',').append(i).append('.').append(i % 10).append('5')
+                    .append(',').append(i % 3).append('\n');
+        }
+        SodaFileCodec.importRows(mDb, SodaEntry.FORMAT_CSV, new StringReader(csv.toString()),
+                new CountingListener());
+        String expected = describeCatalog();
+
+        StringWriter file = new StringWriter();
+        assertEquals(count, SodaFileCodec.export(mDb, format, file));
+
+        mDb.delete(SodaEntry.TABLE_NAME, null, null);
+        CountingListener listener = new CountingListener();
+        assertEquals(count, SodaFileCodec.importRows(mDb, format,
+                new StringReader(file.toString()), listener));
+        assertEquals(count, listener.mRows);
+        assertEquals(expected, describeCatalog());
+    }
+
+    private int countSodas() {
+        Cursor cursor = mDb.rawQuery("SELECT COUNT(*) FROM " + SodaEntry.TABLE_NAME, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return every soda's exchanged columns in ID order as one string.
+     */
+    private String describeCatalog() {
+        Cursor cursor = mDb.query(SodaEntry.TABLE_NAME, new String[]{SodaEntry.COLUMN_NAME,
+                        SodaEntry.COLUMN_QUANTITY, SodaEntry.COLUMN_SOLD, SodaEntry.COLUMN_PRICE,
+                        SodaEntry.COLUMN_REORDER_THRESHOLD},
+                null, null, null, null, SodaEntry._ID);
+        try {
+            StringBuilder catalog = new StringBuilder();
+            while (cursor.moveToNext()) {
+                catalog.append(cursor.getString(0)).append(' ').append(cursor.getInt(1))
+                        .append(' ').append(cursor.getInt(2)).append(' ').append(cursor.getLong(3));
+                if (cursor.getInt(4) != 0) {
+                    catalog.append(' ').append(cursor.getInt(4));
+                }
+                catalog.append('|');
+            }
+            return catalog.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static class CountingListener implements SodaFileCodec.ChunkListener {
+        int mRows;
+
+        @Override
+        public void onChunkCommitted(int rowsSoFar) {
+            mRows = rowsSoFar;
+        }
+    }
+}
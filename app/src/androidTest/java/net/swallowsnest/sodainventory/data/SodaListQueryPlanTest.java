@@ -0,0 +1,229 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every sort and filter mode of the sodas list reads an index in order instead of
+ * sorting in a temporary B-tree, and that paging through a mode returns the same rows as
+ * reading it in one go.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaListQueryPlanTest {
+
+    private static final String DATABASE_NAME = "sodas_list_query_test.db";
+
+    private static final String[] SORT_KEYS = {
+            SodaEntry._ID, SodaEntry.COLUMN_NAME, SodaEntry.COLUMN_QUANTITY,
+            SodaEntry.COLUMN_SOLD, SodaEntry.COLUMN_PRICE
+    };
+
+    private static final String[] SORT_ORDERS = {
+            SodaEntry.SORT_ASCENDING, SodaEntry.SORT_DESCENDING
+    };
+
+    private static final String[] FILTERS = {
+            null, SodaEntry.FILTER_IN_STOCK, SodaEntry.FILTER_OUT_OF_STOCK
+    };
+
+    private Context mContext;
+    private SodaDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new SodaDbHelper(mContext, DATABASE_NAME);
+        mDb = mDbHelper.getWritableDatabase();
+
+        // Few distinct values, so pages have to break ties by ID
+        Random random = new Random(42);
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 500; i++) {
+            values.put(SodaEntry.COLUMN_NAME, "Soda " + random.nextInt(50));
+            values.put(SodaEntry.COLUMN_QUANTITY, random.nextInt(5));
+            values.put(SodaEntry.COLUMN_SOLD, random.nextInt(20));
+            values.put(SodaEntry.COLUMN_PRICE, random.nextInt(10) * 25);
+            mDb.insert(SodaEntry.TABLE_NAME, null, values);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void everyModeReadsAnIndexInOrder() {
+        for (String sortKey : SORT_KEYS) {
+            for (String sortOrder : SORT_ORDERS) {
+                for (String filter : FILTERS) {
+                    for (boolean priceRange : new boolean[]{false, true}) {
+                        Uri.Builder uri = buildUri(sortKey, sortOrder, filter, priceRange);
+                        assertIndexed(uri.build(), sortKey);
+                        uri.appendQueryParameter(SodaEntry.QUERY_AFTER_KEY, "1")
+                                .appendQueryParameter(SodaEntry.QUERY_AFTER_ID, "1");
+                        assertIndexed(uri.build(), sortKey);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pagesAddUpToTheWholeList() {
+        for (String sortKey : SORT_KEYS) {
+            for (String sortOrder : SORT_ORDERS) {
+                for (String filter : FILTERS) {
+                    Uri whole = buildUri(sortKey, sortOrder, filter, true).build();
+                    ArrayList<Long> ids = queryIds(whole);
+                    assertFalse(whole.toString(), ids.isEmpty());
+                    assertEquals(whole.toString(), ids, queryPaged(whole, sortKey));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void priceRangeHoldsExactlyTheSodasInIt() {
+        mDb.delete(SodaEntry.TABLE_NAME, null, null);
+        long[] prices = {25, 49, 50, 100, 175, 176, 200};
+        ArrayList<Long> inRange = new ArrayList<>();
+        ContentValues values = new ContentValues();
+        for (long price : prices) {
+            values.put(SodaEntry.COLUMN_NAME, "Soda " + price);
+            values.put(SodaEntry.COLUMN_PRICE, price);
+            long id = mDb.insert(SodaEntry.TABLE_NAME, null, values);
+            if (price >= 50 && price <= 175) {
+                inRange.add(id);
+            }
+        }
+        assertEquals(3, inRange.size());
+
+        for (String sortKey : SORT_KEYS) {
+            for (String sortOrder : SORT_ORDERS) {
+                Uri uri = buildUri(sortKey, sortOrder, null, true).build();
+                ArrayList<Long> ids = queryIds(uri);
+                Collections.sort(ids);
+                assertEquals(uri.toString(), inRange, ids);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSortKeyIsRejected() {
+        SodaListQuery.fromUri(SodaEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_SORT_KEY, "image").build(), null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void backwardsPriceRangeIsRejected() {
+        SodaListQuery.fromUri(SodaEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_MIN_PRICE, "200")
+                .appendQueryParameter(SodaEntry.QUERY_MAX_PRICE, "100").build(), null, null);
+    }
+
+    private static Uri.Builder buildUri(String sortKey, String sortOrder, String filter,
+                                        boolean priceRange) {
+        Uri.Builder uri = SodaEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_SORT_KEY, sortKey)
+                .appendQueryParameter(SodaEntry.QUERY_SORT_ORDER, sortOrder);
+        if (filter != null) {
+            uri.appendQueryParameter(SodaEntry.QUERY_FILTER, filter);
+        }
+        if (priceRange) {
+            uri.appendQueryParameter(SodaEntry.QUERY_MIN_PRICE, "50")
+                    .appendQueryParameter(SodaEntry.QUERY_MAX_PRICE, "175");
+        }
+        return uri;
+    }
+
+    private void assertIndexed(Uri uri, String sortKey) {
+        SodaListQuery query = SodaListQuery.fromUri(uri, null, null);
+        String sql = SQLiteQueryBuilder.buildQueryString(false, SodaEntry.TABLE_NAME,
+                new String[]{SodaEntry._ID}, query.selection, null, null, query.orderBy, "100");
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, query.selectionArgs);
+        StringBuilder plan = new StringBuilder();
+        try {
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnIndex("detail"))).append('|');
+            }
+        } finally {
+            cursor.close();
+        }
+        assertFalse(uri + ": " + plan, plan.toString().contains("TEMP B-TREE"));
+        if (!sortKey.equals(SodaEntry._ID)) {
+            assertTrue(uri + ": " + plan, plan.toString().contains("soda_" + sortKey + "_index"));
+        }
+    }
+
+    private ArrayList<Long> queryIds(Uri uri) {
+        SodaListQuery query = SodaListQuery.fromUri(uri, null, null);
+        Cursor cursor = mDb.query(SodaEntry.TABLE_NAME, new String[]{SodaEntry._ID},
+                query.selection, query.selectionArgs, null, null, query.orderBy, query.limit);
+        try {
+            ArrayList<Long> ids = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read the list a small page at a time, each starting after the last row of the one before.
+     */
+    private ArrayList<Long> queryPaged(Uri whole, String sortKey) {
+        ArrayList<Long> ids = new ArrayList<>();
+        String afterKey = null;
+        String afterId = null;
+        while (true) {
+            Uri.Builder page = whole.buildUpon()
+                    .appendQueryParameter(SodaEntry.QUERY_PAGE_SIZE, "7");
+            if (afterId != null) {
+                page.appendQueryParameter(SodaEntry.QUERY_AFTER_KEY, afterKey)
+                        .appendQueryParameter(SodaEntry.QUERY_AFTER_ID, afterId);
+            }
+            SodaListQuery query = SodaListQuery.fromUri(page.build(), null, null);
+            Cursor cursor = mDb.query(SodaEntry.TABLE_NAME, new String[]{SodaEntry._ID, sortKey},
+                    query.selection, query.selectionArgs, null, null, query.orderBy, query.limit);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return ids;
+                }
+                do {
+                    ids.add(cursor.getLong(0));
+                    afterId = cursor.getString(0);
+                    afterKey = cursor.getString(cursor.getColumnCount() - 1);
+                } while (cursor.moveToNext());
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.swallowsnest.sodainventory.data.SodaContract.LowStockEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that the low stock triggers add and remove sodas exactly when a write takes their
+ * quantity across the reorder threshold.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaLowStockTest {
+
+    private static final String DATABASE_NAME = "sodas_low_stock_test.db";
+
+    private Context mContext;
+    private SodaDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new SodaDbHelper(mContext, DATABASE_NAME);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void insertAtThresholdIsLow() {
+        long low = insert("Cola", 5, 5);
+        insert("Root Beer", 6, 5);
+        assertArrayEquals(new long[]{low}, lowStockIds());
+    }
+
+    @Test
+    public void sellingAcrossThresholdAddsAndRestockingRemoves() {
+        long id = insert("Cola", 7, 5);
+        insert("Grape", 0, 0);
+        long grape = lowStockIds()[0];
+
+        setQuantity(id, 6);
+        assertArrayEquals(new long[]{grape}, lowStockIds());
+
+        setQuantity(id, 5);
+        assertArrayEquals(new long[]{grape, id}, lowStockIds());
+
+        // Selling more of a soda that is already low keeps it where it is
+        setQuantity(id, 2);
+        assertArrayEquals(new long[]{grape, id}, lowStockIds());
+
+        setQuantity(id, 20);
+        assertArrayEquals(new long[]{grape}, lowStockIds());
+    }
+
+    @Test
+    public void raisingThresholdAddsAndDeletingRemoves() {
+        long id = insert("Cola", 10, 0);
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_REORDER_THRESHOLD, 10);
+        mDb.update(SodaEntry.TABLE_NAME, values, SodaEntry._ID + "=" + id, null);
+        assertArrayEquals(new long[]{id}, lowStockIds());
+
+        mDb.delete(SodaEntry.TABLE_NAME, SodaEntry._ID + "=" + id, null);
+        assertArrayEquals(new long[0], lowStockIds());
+    }
+
+    private long insert(String name, int quantity, int threshold) {
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_NAME, name);
+        values.put(SodaEntry.COLUMN_QUANTITY, quantity);
+        values.put(SodaEntry.COLUMN_PRICE, 150);
+        values.put(SodaEntry.COLUMN_REORDER_THRESHOLD, threshold);
+        return mDb.insert(SodaEntry.TABLE_NAME, null, values);
+    }
+
+    private void setQuantity(long id, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_QUANTITY, quantity);
+        mDb.update(SodaEntry.TABLE_NAME, values, SodaEntry._ID + "=" + id, null);
+    }
+
+    /**
+     * Return the IDs in the low stock set, in the order they went low.
+     */
+    private long[] lowStockIds() {
+        Cursor cursor = mDb.query(LowStockEntry.TABLE_NAME,
+                new String[]{LowStockEntry.COLUMN_SODA_ID}, null, null, null, null,
+                LowStockEntry.COLUMN_SINCE + ", rowid");
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
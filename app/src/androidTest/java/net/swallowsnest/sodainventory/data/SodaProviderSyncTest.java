@@ -0,0 +1,198 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncs a provider on a scratch database with another device through an
+ * {@link InMemorySyncServer}, and checks that what the sync pulled is read back through the
+ * provider, past the rows it had cached, and that listeners hear of it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaProviderSyncTest {
+
+    private static final String REMOTE_DATABASE_NAME = "sodas_sync_remote_test.db";
+
+    /**
+     * Columns the provider serves from its row cache
+     */
+    private static final String[] PROJECTION = {
+            SodaEntry._ID, SodaEntry.COLUMN_NAME, SodaEntry.COLUMN_QUANTITY};
+
+    private Context mTargetContext;
+    private RenamingDelegatingContext mContext;
+    private SodaProvider mProvider;
+    private MockContentResolver mResolver;
+    private SodaDbHelper mRemoteHelper;
+    private SQLiteDatabase mRemote;
+    private SodaSyncEngine mRemoteEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mTargetContext = InstrumentationRegistry.getTargetContext();
+        mContext = new RenamingDelegatingContext(mTargetContext, "sync_provider_test.");
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+        mTargetContext.deleteDatabase(REMOTE_DATABASE_NAME);
+
+        InMemorySyncServer server = new InMemorySyncServer();
+        mProvider = new SodaProvider();
+        mProvider.attachInfo(mContext, null);
+        mProvider.setSyncServer(server);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(SodaContract.CONTENT_AUTHORITY, mProvider);
+
+        mRemoteHelper = new SodaDbHelper(mTargetContext, REMOTE_DATABASE_NAME);
+        mRemote = mRemoteHelper.getWritableDatabase();
+        mRemoteEngine = new SodaSyncEngine(mRemote, server);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRemoteHelper.close();
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+        mTargetContext.deleteDatabase(REMOTE_DATABASE_NAME);
+    }
+
+    @Test
+    public void pulledSodaIsReadThroughProvider() throws IOException {
+        insertRemote("Cola", 12);
+        mRemoteEngine.sync();
+
+        assertSync(sync(), 0, 1);
+        Uri uri = findSoda("Cola");
+        assertEquals(12, readQuantity(uri));
+    }
+
+    @Test
+    public void pulledChangeReplacesCachedRow() throws IOException {
+        insertRemote("Cola", 12);
+        mRemoteEngine.sync();
+        sync();
+        Uri uri = findSoda("Cola");
+
+        // Reading twice leaves the row in the provider's cache
+        assertEquals(12, readQuantity(uri));
+        assertEquals(12, readQuantity(uri));
+
+        mRemote.execSQL("UPDATE soda SET quantity = 3");
+        mRemoteEngine.sync();
+        assertSync(sync(), 0, 1);
+        assertEquals(3, readQuantity(uri));
+    }
+
+    @Test
+    public void pulledDeleteRemovesSoda() throws IOException {
+        insertRemote("Cola", 12);
+        mRemoteEngine.sync();
+        sync();
+        Uri uri = findSoda("Cola");
+        readQuantity(uri);
+
+        mRemote.delete(SodaEntry.TABLE_NAME, null, null);
+        mRemoteEngine.sync();
+        assertSync(sync(), 0, 1);
+        Cursor cursor = mResolver.query(uri, PROJECTION, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void pullNotifiesSodas() throws Exception {
+        final CountDownLatch changed = new CountDownLatch(1);
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changed.countDown();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(SodaEntry.CONTENT_URI, true,
+                observer);
+        try {
+            insertRemote("Cola", 12);
+            mRemoteEngine.sync();
+            sync();
+            assertTrue(changed.await(5, TimeUnit.SECONDS));
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+    }
+
+    @Test
+    public void localChangesArePushed() {
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_NAME, "Root Beer");
+        values.put(SodaEntry.COLUMN_PRICE, 150);
+        mResolver.insert(SodaEntry.CONTENT_URI, values);
+        assertSync(sync(), 1, 0);
+    }
+
+    private void insertRemote(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_NAME, name);
+        values.put(SodaEntry.COLUMN_QUANTITY, quantity);
+        values.put(SodaEntry.COLUMN_PRICE, 150);
+        mRemote.insert(SodaEntry.TABLE_NAME, null, values);
+    }
+
+    private Bundle sync() {
+        return mResolver.call(SodaEntry.CONTENT_URI, SodaEntry.METHOD_SYNC, null, null);
+    }
+
+    private static void assertSync(Bundle result, int pushed, int pulled) {
+        assertEquals(pushed, result.getInt(SodaEntry.KEY_SYNC_PUSHED));
+        assertEquals(pulled, result.getInt(SodaEntry.KEY_SYNC_PULLED));
+    }
+
+    /**
+     * Return the content URI of the only soda with the given name.
+     */
+    private Uri findSoda(String name) {
+        Cursor cursor = mResolver.query(SodaEntry.CONTENT_URI, PROJECTION,
+                SodaEntry.COLUMN_NAME + " = ?", new String[]{name}, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            return ContentUris.withAppendedId(SodaEntry.CONTENT_URI, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int readQuantity(Uri uri) {
+        Cursor cursor = mResolver.query(uri, PROJECTION, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            return cursor.getInt(cursor.getColumnIndex(SodaEntry.COLUMN_QUANTITY));
+        } finally {
+            cursor.close();
+        }
+    }
+}
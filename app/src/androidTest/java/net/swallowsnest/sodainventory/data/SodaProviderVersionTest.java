@@ -0,0 +1,201 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks single soda updates with {@link SodaEntry#QUERY_EXPECTED_VERSION} through the
+ * provider: how the parameter is read, whole and partial rows, the updates that can't take
+ * one, the conflicts it reports, and that the provider's row cache follows every version.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaProviderVersionTest {
+
+    /**
+     * Columns the provider serves from its row cache
+     */
+    private static final String[] PROJECTION = {
+            SodaEntry._ID, SodaEntry.COLUMN_NAME, SodaEntry.COLUMN_QUANTITY,
+            SodaEntry.COLUMN_SOLD, SodaEntry.COLUMN_PRICE, SodaEntry.COLUMN_IMAGE,
+            SodaEntry.COLUMN_REORDER_THRESHOLD, SodaEntry.COLUMN_VERSION};
+
+    private RenamingDelegatingContext mContext;
+    private MockContentResolver mResolver;
+    private Uri mUri;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(),
+                "version_provider_test.");
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+        SodaProvider provider = new SodaProvider();
+        provider.attachInfo(mContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(SodaContract.CONTENT_AUTHORITY, provider);
+
+        mUri = mResolver.insert(SodaEntry.CONTENT_URI, wholeRow("Cola", 10));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void wholeRowAtCurrentVersionIsSaved() {
+        long version = readVersion();
+        assertEquals(1, mResolver.update(atVersion(version), wholeRow("Cola", 7), null, null));
+        assertEquals(7, readQuantity());
+        assertTrue(readVersion() > version);
+    }
+
+    @Test
+    public void wholeRowAtStaleVersionIsRefused() {
+        long stale = readVersion();
+        setQuantity(mUri, 8);
+        long current = readVersion();
+
+        try {
+            mResolver.update(atVersion(stale), wholeRow("Cola", 7), null, null);
+            fail("Update at a stale version was saved");
+        } catch (SodaVersionConflictException e) {
+            assertEquals(stale, e.getExpectedVersion());
+            assertEquals(current, e.getCurrentVersion());
+        }
+        assertEquals(8, readQuantity());
+        assertEquals(current, readVersion());
+    }
+
+    @Test
+    public void partialValuesAtVersion() {
+        long version = readVersion();
+        assertEquals(1, setQuantity(atVersion(version), 6));
+        assertEquals(6, readQuantity());
+
+        // The same version again is stale now
+        try {
+            setQuantity(atVersion(version), 5);
+            fail("Update at a stale version was saved");
+        } catch (SodaVersionConflictException e) {
+            assertEquals(readVersion(), e.getCurrentVersion());
+        }
+        assertEquals(6, readQuantity());
+    }
+
+    @Test
+    public void refusedUpdateLeavesCachedRow() {
+        // Reading twice leaves the row in the provider's cache
+        long version = readVersion();
+        assertEquals(version, readVersion());
+
+        try {
+            setQuantity(atVersion(version + 1), 1);
+            fail("Update at a future version was saved");
+        } catch (SodaVersionConflictException e) {
+            assertEquals(version, e.getCurrentVersion());
+        }
+        assertEquals(10, readQuantity());
+        assertEquals(version, readVersion());
+
+        // A saved update replaces the cached row with its new version
+        assertEquals(1, setQuantity(atVersion(version), 4));
+        assertEquals(4, readQuantity());
+        assertTrue(readVersion() > version);
+    }
+
+    @Test
+    public void deletedSodaUpdatesNothingWithoutAConflict() {
+        long version = readVersion();
+        assertEquals(1, mResolver.delete(mUri, null, null));
+        assertEquals(0, mResolver.update(atVersion(version), wholeRow("Cola", 7), null, null));
+        Cursor cursor = mResolver.query(mUri, PROJECTION, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unparsableVersionIsRejected() {
+        setQuantity(mUri.buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_EXPECTED_VERSION, "latest").build(), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeVersionIsRejected() {
+        setQuantity(atVersion(-2), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void manyRowsTakeNoVersion() {
+        setQuantity(SodaEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_EXPECTED_VERSION,
+                        String.valueOf(readVersion())).build(), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void versionIsNotAValue() {
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_VERSION, readVersion() + 1);
+        mResolver.update(mUri, values, null, null);
+    }
+
+    private static ContentValues wholeRow(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_NAME, name);
+        values.put(SodaEntry.COLUMN_QUANTITY, quantity);
+        values.put(SodaEntry.COLUMN_PRICE, 125);
+        values.put(SodaEntry.COLUMN_SOLD, 0);
+        values.putNull(SodaEntry.COLUMN_IMAGE);
+        values.put(SodaEntry.COLUMN_REORDER_THRESHOLD, 2);
+        return values;
+    }
+
+    private Uri atVersion(long version) {
+        return mUri.buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_EXPECTED_VERSION, String.valueOf(version))
+                .build();
+    }
+
+    private int setQuantity(Uri uri, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_QUANTITY, quantity);
+        return mResolver.update(uri, values, null, null);
+    }
+
+    private long readVersion() {
+        return readColumn(SodaEntry.COLUMN_VERSION);
+    }
+
+    private long readQuantity() {
+        return readColumn(SodaEntry.COLUMN_QUANTITY);
+    }
+
+    private long readColumn(String column) {
+        Cursor cursor = mResolver.query(mUri, PROJECTION, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            return cursor.getLong(cursor.getColumnIndex(column));
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares writing and reading sodas through {@link SodaRecordCodec} with the
+ * {@link ContentValues} path it replaces. Timings and allocation counts are written to logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaRecordCodecBenchmark {
+
+    private static final String LOG_TAG = SodaRecordCodecBenchmark.class.getSimpleName();
+    private static final String DATABASE_NAME = "sodas_codec_benchmark.db";
+    private static final int ROWS = 5000;
+
+    private Context mContext;
+    private SodaDbHelper mDbHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new SodaDbHelper(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void insertThroughCodec() throws Exception {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // Warm up both paths once, so the statement caches and buffers are filled
+        insertWithContentValues(db, 100);
+        insertWithCodec(db, 100);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        insertWithContentValues(db, ROWS);
+        long valuesElapsed = System.nanoTime() - start;
+        int valuesAllocations = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        insertWithCodec(db, ROWS);
+        long codecElapsed = System.nanoTime() - start;
+        int codecAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        Log.i(LOG_TAG, "Insert " + ROWS + " rows, ContentValues: " + valuesElapsed / ROWS
+                + " ns and " + valuesAllocations / ROWS + " allocations per row, codec: "
+                + codecElapsed / ROWS + " ns and " + codecAllocations / ROWS
+                + " allocations per row");
+        assertTrue("Codec inserts allocated more than ContentValues",
+                codecAllocations < valuesAllocations);
+    }
+
+    @Test
+    public void readThroughCodec() throws Exception {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        insertWithCodec(db, ROWS);
+
+        Cursor cursor = db.query(SodaEntry.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            // Fill the cursor window before measuring
+            cursor.getCount();
+            ContentValues values = new ContentValues();
+            SodaRecord record = new SodaRecord();
+            SodaRecordCodec codec = new SodaRecordCodec(cursor);
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            long start = System.nanoTime();
+            long valuesTotal = 0;
+            for (cursor.moveToPosition(-1); cursor.moveToNext(); ) {
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                valuesTotal += values.getAsInteger(SodaEntry.COLUMN_QUANTITY)
+                        + values.getAsLong(SodaEntry.COLUMN_PRICE);
+            }
+            long valuesElapsed = System.nanoTime() - start;
+            int valuesAllocations = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            long codecTotal = 0;
+            for (cursor.moveToPosition(-1); cursor.moveToNext(); ) {
+                codec.read(cursor, record);
+                codecTotal += record.quantity + record.priceCents;
+            }
+            long codecElapsed = System.nanoTime() - start;
+            int codecAllocations = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+
+            Log.i(LOG_TAG, "Read " + ROWS + " rows, ContentValues: " + valuesElapsed / ROWS
+                    + " ns and " + valuesAllocations / ROWS + " allocations per row, codec: "
+                    + codecElapsed / ROWS + " ns and " + codecAllocations / ROWS
+                    + " allocations per row");
+            assertEquals(valuesTotal, codecTotal);
+            // Only the name string is left to allocate per row, plus its char array on
+            // older runtimes
+            assertTrue("Codec reads allocated more than the name per row",
+                    codecAllocations <= 2 * ROWS);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void insertWithContentValues(SQLiteDatabase db, int rows) {
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                ContentValues values = new ContentValues();
+                values.put(SodaEntry.COLUMN_NAME, "Soda");
+                values.put(SodaEntry.COLUMN_QUANTITY, i % 100);
+                values.put(SodaEntry.COLUMN_SOLD, 0);
+                values.put(SodaEntry.COLUMN_PRICE, 150);
+                db.insert(SodaEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void insertWithCodec(SQLiteDatabase db, int rows) {
+        SodaRecord record = new SodaRecord();
+        record.name = "Soda";
+        record.priceCents = 150;
+
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(SodaRecordCodec.INSERT_SQL);
+        try {
+            for (int i = 0; i < rows; i++) {
+                record.quantity = i % 100;
+                SodaRecordCodec.bindInsert(insert, record);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+    }
+}
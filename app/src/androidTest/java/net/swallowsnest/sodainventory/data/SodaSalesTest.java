@@ -0,0 +1,189 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SalesEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the rollup triggers file every sale under its UTC hour and day, and that the
+ * provider reads sales windows from the rollups: per hour, per day, and as a summary
+ * stitched from the hours at both ends of the window and the whole days in between.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaSalesTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    /**
+     * Midnight UTC, 2020-09-13
+     */
+    private static final long MIDNIGHT = 1599955200000L;
+
+    private RenamingDelegatingContext mContext;
+    private SodaDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private SodaProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(),
+                "sales_test.");
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+        mProvider = new SodaProvider();
+        mProvider.attachInfo(mContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(SodaContract.CONTENT_AUTHORITY, mProvider);
+
+        // Sales are written straight to the ledger, so they can be dated
+        mDbHelper = new SodaDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+        sell(1, MIDNIGHT + 30 * 60 * 1000, 2);
+        sell(1, MIDNIGHT + HOUR + 10 * 60 * 1000, 3);
+        sell(1, MIDNIGHT + DAY + 2 * HOUR, 5);
+        sell(1, MIDNIGHT + 2 * DAY + 23 * HOUR + 30 * 60 * 1000, 7);
+        sell(2, MIDNIGHT + 45 * 60 * 1000, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void hourlyBucketsHoldTheSalesOfTheirHour() {
+        Uri uri = window(SalesEntry.buildSodaSalesUri(1), MIDNIGHT, MIDNIGHT + DAY)
+                .appendQueryParameter(SalesEntry.QUERY_BUCKET, SalesEntry.BUCKET_HOUR).build();
+        assertArrayEquals(new long[]{MIDNIGHT, 2, MIDNIGHT + HOUR, 3}, buckets(uri));
+    }
+
+    @Test
+    public void dailyBucketsStartAtMidnightUtcAndWidenTheWindow() {
+        Uri uri = window(SalesEntry.buildSodaSalesUri(1), MIDNIGHT + 5 * HOUR,
+                MIDNIGHT + 2 * DAY + HOUR)
+                .appendQueryParameter(SalesEntry.QUERY_BUCKET, SalesEntry.BUCKET_DAY).build();
+        assertArrayEquals(new long[]{MIDNIGHT, 5, MIDNIGHT + DAY, 5, MIDNIGHT + 2 * DAY, 7},
+                buckets(uri));
+    }
+
+    @Test
+    public void totalsAddUpEverySoda() {
+        Uri uri = window(SalesEntry.CONTENT_URI, MIDNIGHT, MIDNIGHT + HOUR)
+                .appendQueryParameter(SalesEntry.QUERY_BUCKET, SalesEntry.BUCKET_HOUR).build();
+        assertArrayEquals(new long[]{MIDNIGHT, 6}, buckets(uri));
+    }
+
+    @Test
+    public void summaryStitchesHoursAndDays() {
+        // One hour into the first day up to 23:00 on the third: the 3 sold in the second
+        // hour, the 5 of the whole second day, and none of the third day's hours
+        long from = MIDNIGHT + HOUR;
+        long to = MIDNIGHT + 2 * DAY + 23 * HOUR;
+        Cursor cursor = mResolver.query(window(SalesEntry.buildSodaSalesUri(1), from, to).build(),
+                null, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(1, cursor.getLong(cursor.getColumnIndex(SalesEntry.COLUMN_SODA_ID)));
+            assertEquals(from,
+                    cursor.getLong(cursor.getColumnIndex(SalesEntry.COLUMN_WINDOW_START)));
+            assertEquals(to, cursor.getLong(cursor.getColumnIndex(SalesEntry.COLUMN_WINDOW_END)));
+            assertEquals(8, cursor.getLong(cursor.getColumnIndex(SalesEntry.COLUMN_QUANTITY)));
+            assertEquals(8.0 * HOUR / (to - from),
+                    cursor.getDouble(cursor.getColumnIndex(SalesEntry.COLUMN_PER_HOUR)), 1e-9);
+        } finally {
+            cursor.close();
+        }
+
+        // A millisecond more widens the window to the end of the hour with the 7 in it
+        assertEquals(15, summaryQuantity(window(SalesEntry.buildSodaSalesUri(1), from, to + 1)));
+    }
+
+    @Test
+    public void summaryWithinADayReadsOnlyHours() {
+        assertEquals(3, summaryQuantity(window(SalesEntry.buildSodaSalesUri(1),
+                MIDNIGHT + HOUR, MIDNIGHT + 20 * HOUR)));
+        assertEquals(0, summaryQuantity(window(SalesEntry.buildSodaSalesUri(3),
+                MIDNIGHT, MIDNIGHT + 3 * DAY)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowEndingBeforeItStartsIsRejected() {
+        summaryQuantity(window(SalesEntry.CONTENT_URI, MIDNIGHT + HOUR, MIDNIGHT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyWindowIsRejected() {
+        summaryQuantity(window(SalesEntry.CONTENT_URI, MIDNIGHT, MIDNIGHT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unparsableTimeIsRejected() {
+        summaryQuantity(SalesEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(SalesEntry.QUERY_FROM, "yesterday"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownBucketIsRejected() {
+        summaryQuantity(window(SalesEntry.CONTENT_URI, MIDNIGHT, MIDNIGHT + DAY)
+                .appendQueryParameter(SalesEntry.QUERY_BUCKET, "week"));
+    }
+
+    private void sell(long sodaId, long timestamp, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(SalesEntry.COLUMN_SODA_ID, sodaId);
+        values.put(SalesEntry.COLUMN_TIMESTAMP, timestamp);
+        values.put(SalesEntry.COLUMN_QUANTITY, quantity);
+        mDb.insert(SalesEntry.TABLE_NAME, null, values);
+    }
+
+    private static Uri.Builder window(Uri uri, long from, long to) {
+        return uri.buildUpon()
+                .appendQueryParameter(SalesEntry.QUERY_FROM, String.valueOf(from))
+                .appendQueryParameter(SalesEntry.QUERY_TO, String.valueOf(to));
+    }
+
+    private long summaryQuantity(Uri.Builder uri) {
+        Cursor cursor = mResolver.query(uri.build(), null, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(cursor.getColumnIndex(SalesEntry.COLUMN_QUANTITY));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the bucket starts and quantities of a bucketed query, one pair after the other.
+     */
+    private long[] buckets(Uri uri) {
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        try {
+            long[] buckets = new long[cursor.getCount() * 2];
+            for (int i = 0; cursor.moveToNext(); i += 2) {
+                buckets[i] = cursor.getLong(cursor.getColumnIndex(SalesEntry.COLUMN_BUCKET));
+                buckets[i + 1] = cursor.getLong(cursor.getColumnIndex(SalesEntry.COLUMN_QUANTITY));
+            }
+            return buckets;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times searches for prefixes of one to three characters through the provider over 100,000
+ * sodas. Those match the most words, and are what gets searched after the first keystrokes.
+ * Timings are written to logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaSearchBenchmark {
+
+    private static final String LOG_TAG = SodaSearchBenchmark.class.getSimpleName();
+    private static final int ROWS = 100000;
+    private static final int BATCH_ROWS = 5000;
+    private static final int RUNS = 20;
+
+    /**
+     * Slowest a single search may take, well above what the prefix index needs
+     */
+    private static final long MAX_SEARCH_MILLIS = 100;
+
+    private static final String[] BRANDS = {
+            "Cola", "Root Beer", "Lemon Lime", "Orange", "Ginger Ale", "Cream Soda", "Grape",
+            "Cherry Cola", "Tonic", "Birch Beer"
+    };
+
+    /**
+     * Prefixes of first words, of later words and of the numbers, among them prefixes that
+     * only start first words, whose matches are all found by name
+     */
+    private static final String[] PREFIXES = {
+            "c", "co", "col", "l", "b", "be", "bee", "s", "so", "1", "12", "123", "9", "99"
+    };
+
+    private RenamingDelegatingContext mContext;
+    private MockContentResolver mResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(),
+                "search_benchmark.");
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+        SodaProvider provider = new SodaProvider();
+        provider.attachInfo(mContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(SodaContract.CONTENT_AUTHORITY, provider);
+
+        ContentValues[] sodas = new ContentValues[BATCH_ROWS];
+        for (int start = 0; start < ROWS; start += BATCH_ROWS) {
+            for (int i = 0; i < BATCH_ROWS; i++) {
+                int number = start + i;
+                sodas[i] = new ContentValues();
+                sodas[i].put(SodaEntry.COLUMN_NAME,
+                        BRANDS[number % BRANDS.length] + " " + number);
+                sodas[i].put(SodaEntry.COLUMN_QUANTITY, 10);
+                sodas[i].put(SodaEntry.COLUMN_PRICE, 150);
+            }
+            mResolver.bulkInsert(SodaEntry.CONTENT_URI, sodas);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContext.deleteDatabase(SodaDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void shortPrefixesAreFast() throws Exception {
+        // Warm up the page cache and the statements once
+        for (String prefix : PREFIXES) {
+            search(prefix);
+        }
+
+        for (String prefix : PREFIXES) {
+            long slowest = 0;
+            long total = 0;
+            int found = 0;
+            for (int i = 0; i < RUNS; i++) {
+                long start = SystemClock.elapsedRealtime();
+                found = search(prefix);
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                slowest = Math.max(slowest, elapsed);
+                total += elapsed;
+            }
+            Log.i(LOG_TAG, "\"" + prefix + "\": " + found + " sodas, average "
+                    + total / RUNS + " ms, slowest " + slowest + " ms");
+            assertTrue("Searching \"" + prefix + "\" took " + slowest + " ms",
+                    slowest <= MAX_SEARCH_MILLIS);
+        }
+    }
+
+    /**
+     * Search for the prefix and read every result like the list does, returning how many
+     * were found.
+     */
+    private int search(String prefix) {
+        Cursor cursor = mResolver.query(SodaEntry.buildSearchUri(prefix),
+                new String[]{SodaEntry._ID, SodaEntry.COLUMN_NAME}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getString(1);
+            }
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StoreEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StoreStockEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a store's stock list only reads the store's covering index entries, and that
+ * the stock goes away with its store or soda.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaStoreStockTest {
+
+    private static final String DATABASE_NAME = "sodas_store_stock_test.db";
+
+    private static final int STORES = 3;
+    private static final int SODAS = 200;
+
+    private Context mContext;
+    private SodaDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new SodaDbHelper(mContext, DATABASE_NAME);
+        mDb = mDbHelper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        for (int i = 1; i <= STORES; i++) {
+            values.put(StoreEntry.COLUMN_NAME, "Store " + i);
+            mDb.insert(StoreEntry.TABLE_NAME, null, values);
+        }
+        values.clear();
+        for (int i = 1; i <= SODAS; i++) {
+            values.put(SodaEntry.COLUMN_NAME, "Soda " + i);
+            values.put(SodaEntry.COLUMN_PRICE, 100 + i);
+            mDb.insert(SodaEntry.TABLE_NAME, null, values);
+        }
+
+        // Every store stocks every soda, each with its own quantity
+        SQLiteStatement insert = mDb.compileStatement(SodaStatements.INSERT_STORE_STOCK_SQL);
+        for (int store = 1; store <= STORES; store++) {
+            for (int soda = 1; soda <= SODAS; soda++) {
+                insert.bindLong(1, store);
+                insert.bindLong(2, soda);
+                insert.bindLong(3, (soda * store) % 7);
+                insert.executeInsert();
+            }
+        }
+        insert.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void storeListsReadOnlyCoveringIndexes() {
+        String[] filters = {null, SodaEntry.FILTER_IN_STOCK, SodaEntry.FILTER_OUT_OF_STOCK};
+        for (String sortKey : new String[]{SodaEntry._ID, SodaEntry.COLUMN_QUANTITY}) {
+            for (String sortOrder : new String[]{SodaEntry.SORT_ASCENDING,
+                    SodaEntry.SORT_DESCENDING}) {
+                for (String filter : filters) {
+                    Uri.Builder uri = StoreEntry.buildStoreSodasUri(2).buildUpon()
+                            .appendQueryParameter(SodaEntry.QUERY_SORT_KEY, sortKey)
+                            .appendQueryParameter(SodaEntry.QUERY_SORT_ORDER, sortOrder)
+                            .appendQueryParameter(SodaEntry.QUERY_PAGE_SIZE, "50");
+                    if (filter != null) {
+                        uri.appendQueryParameter(SodaEntry.QUERY_FILTER, filter);
+                    }
+                    String plan = explain(uri.build());
+                    assertFalse(uri + ": " + plan, plan.contains("TEMP B-TREE"));
+                    assertTrue(uri + ": " + plan, plan.contains("COVERING INDEX "
+                            + (sortKey.equals(SodaEntry._ID)
+                            ? StoreStockEntry.INDEX_SODA : StoreStockEntry.INDEX_QUANTITY)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void storeListHasTheStoresQuantities() {
+        Uri uri = StoreEntry.buildStoreSodasUri(3).buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_SORT_KEY, SodaEntry.COLUMN_QUANTITY)
+                .appendQueryParameter(SodaEntry.QUERY_FILTER, SodaEntry.FILTER_IN_STOCK)
+                .build();
+        SodaListQuery query = SodaListQuery.forStore(uri, 3, null, null);
+        Cursor cursor = mDb.query(StoreStockEntry.JOIN_TABLES,
+                new String[]{StoreStockEntry.QUALIFIED_SODA_ID, StoreStockEntry.QUALIFIED_QUANTITY},
+                query.selection, query.selectionArgs, null, null, query.orderBy, query.limit);
+        try {
+            int lastQuantity = 0;
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                int quantity = cursor.getInt(1);
+                assertEquals((cursor.getLong(0) * 3) % 7, quantity);
+                assertTrue(quantity > 0 && quantity >= lastQuantity);
+                lastQuantity = quantity;
+                rows++;
+            }
+            assertEquals(SODAS - SODAS / 7, rows);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void stockGoesWithItsStoreAndSoda() {
+        mDb.delete(StoreEntry.TABLE_NAME, StoreEntry._ID + "=1", null);
+        assertEquals((STORES - 1) * SODAS, countStock());
+
+        mDb.delete(SodaEntry.TABLE_NAME, SodaEntry._ID + "<=10", null);
+        assertEquals((STORES - 1) * (SODAS - 10), countStock());
+    }
+
+    @Test
+    public void stockingNeedsAStoreAndASoda() {
+        SQLiteStatement insert = mDb.compileStatement(SodaStatements.INSERT_STORE_STOCK_SQL);
+        try {
+            insert.bindLong(1, STORES + 1);
+            insert.bindLong(2, 1);
+            insert.bindLong(3, 5);
+            assertEquals(-1, insert.executeInsert());
+            insert.bindLong(1, 1);
+            insert.bindLong(2, SODAS + 1);
+            assertEquals(-1, insert.executeInsert());
+        } finally {
+            insert.close();
+        }
+        assertEquals(STORES * SODAS, countStock());
+    }
+
+    private long countStock() {
+        return DatabaseUtils.queryNumEntries(mDb, StoreStockEntry.TABLE_NAME);
+    }
+
+    private String explain(Uri uri) {
+        SodaListQuery query = SodaListQuery.forStore(uri, 2, null, null);
+        String sql = SQLiteQueryBuilder.buildQueryString(false, StoreStockEntry.JOIN_TABLES,
+                new String[]{StoreStockEntry.QUALIFIED_SODA_ID, SodaEntry.COLUMN_NAME,
+                        StoreStockEntry.QUALIFIED_QUANTITY},
+                query.selection, null, null, query.orderBy, query.limit);
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, query.selectionArgs);
+        StringBuilder plan = new StringBuilder();
+        try {
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnIndex("detail"))).append('|');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
@@ -0,0 +1,144 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Syncs two scratch databases through one {@link InMemorySyncServer} and checks that they end
+ * up with the same sodas while each sync only sends what changed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaSyncEngineTest {
+
+    private static final String FIRST_DATABASE_NAME = "sodas_sync_first_test.db";
+    private static final String SECOND_DATABASE_NAME = "sodas_sync_second_test.db";
+
+    // More than one batch
+    private static final int SODAS = SodaSyncEngine.BATCH_CHANGES + 100;
+
+    private Context mContext;
+    private SodaDbHelper mFirstHelper;
+    private SodaDbHelper mSecondHelper;
+    private SQLiteDatabase mFirst;
+    private SQLiteDatabase mSecond;
+    private SodaSyncEngine mFirstEngine;
+    private SodaSyncEngine mSecondEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(FIRST_DATABASE_NAME);
+        mContext.deleteDatabase(SECOND_DATABASE_NAME);
+        mFirstHelper = new SodaDbHelper(mContext, FIRST_DATABASE_NAME);
+        mSecondHelper = new SodaDbHelper(mContext, SECOND_DATABASE_NAME);
+        mFirst = mFirstHelper.getWritableDatabase();
+        mSecond = mSecondHelper.getWritableDatabase();
+
+        InMemorySyncServer server = new InMemorySyncServer();
+        mFirstEngine = new SodaSyncEngine(mFirst, server);
+        mSecondEngine = new SodaSyncEngine(mSecond, server);
+
+        ContentValues values = new ContentValues();
+        for (int i = 1; i <= SODAS; i++) {
+            values.put(SodaEntry.COLUMN_NAME, "Soda " + i);
+            values.put(SodaEntry.COLUMN_QUANTITY, i % 13);
+            values.put(SodaEntry.COLUMN_PRICE, 100 + i);
+            values.put(SodaEntry.COLUMN_REORDER_THRESHOLD, i % 3);
+            mFirst.insert(SodaEntry.TABLE_NAME, null, values);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFirstHelper.close();
+        mSecondHelper.close();
+        mContext.deleteDatabase(FIRST_DATABASE_NAME);
+        mContext.deleteDatabase(SECOND_DATABASE_NAME);
+    }
+
+    @Test
+    public void devicesConverge() throws IOException {
+        assertSync(mFirstEngine.sync(), SODAS, 0);
+        assertSync(mSecondEngine.sync(), 0, SODAS);
+        assertEquals(describeCatalog(mFirst), describeCatalog(mSecond));
+    }
+
+    @Test
+    public void syncSendsOnlyTheChanges() throws IOException {
+        mFirstEngine.sync();
+        mSecondEngine.sync();
+
+        // The same soda twice only sends its latest state
+        mSecond.execSQL("UPDATE soda SET quantity = quantity + 5 WHERE _id IN (1, 2, 3)");
+        mSecond.execSQL("UPDATE soda SET price = 99 WHERE _id = 2");
+        assertSync(mSecondEngine.sync(), 3, 0);
+        assertSync(mFirstEngine.sync(), 0, 3);
+        assertEquals(describeCatalog(mFirst), describeCatalog(mSecond));
+    }
+
+    @Test
+    public void mergedChangesArentSentBack() throws IOException {
+        mFirstEngine.sync();
+        mSecondEngine.sync();
+        assertSync(mSecondEngine.sync(), 0, 0);
+        assertSync(mFirstEngine.sync(), 0, 0);
+    }
+
+    @Test
+    public void deletesAndInsertsPropagate() throws IOException {
+        mFirstEngine.sync();
+        mSecondEngine.sync();
+
+        mFirst.delete(SodaEntry.TABLE_NAME, SodaEntry._ID + " <= 10", null);
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_NAME, "Soda 0");
+        values.put(SodaEntry.COLUMN_PRICE, 100);
+        mFirst.insert(SodaEntry.TABLE_NAME, null, values);
+        assertSync(mFirstEngine.sync(), 11, 0);
+        assertSync(mSecondEngine.sync(), 0, 11);
+        assertEquals(describeCatalog(mFirst), describeCatalog(mSecond));
+    }
+
+    private static void assertSync(SodaSyncEngine.Result result, int pushed, int pulled) {
+        assertEquals(pushed, result.pushed);
+        assertEquals(pulled, result.pulled);
+    }
+
+    /**
+     * Return every soda's synced columns in sync ID order as one string.
+     */
+    private static String describeCatalog(SQLiteDatabase database) {
+        Cursor cursor = database.query(SodaEntry.TABLE_NAME, new String[]{
+                        SodaEntry.COLUMN_SYNC_ID, SodaEntry.COLUMN_NAME, SodaEntry.COLUMN_QUANTITY,
+                        SodaEntry.COLUMN_SOLD, SodaEntry.COLUMN_PRICE,
+                        SodaEntry.COLUMN_REORDER_THRESHOLD},
+                null, null, null, null, SodaEntry.COLUMN_SYNC_ID);
+        try {
+            StringBuilder catalog = new StringBuilder();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    catalog.append(cursor.getString(i)).append(' ');
+                }
+                catalog.append('|');
+            }
+            return catalog.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every write moves a soda to a newer version, and that updates at an expected
+ * version lose no increments however many threads race for the same soda.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SodaVersionTest {
+
+    private static final String DATABASE_NAME = "sodas_version_test.db";
+
+    private static final int THREADS = 4;
+    private static final int INCREMENTS = 200;
+
+    private Context mContext;
+    private SodaDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private long mId;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new SodaDbHelper(mContext, DATABASE_NAME);
+        mDb = mDbHelper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(SodaEntry.COLUMN_NAME, "Cola");
+        values.put(SodaEntry.COLUMN_QUANTITY, 10);
+        values.put(SodaEntry.COLUMN_PRICE, 125);
+        mId = mDb.insert(SodaEntry.TABLE_NAME, null, values);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void everyWriteBumpsTheVersion() {
+        long inserted = readRecord().version;
+        assertTrue(inserted > 0);
+
+        mDb.execSQL("UPDATE soda SET quantity = 11 WHERE _id = " + mId);
+        long updated = readRecord().version;
+        assertTrue(updated > inserted);
+
+        SQLiteStatement sell = mDb.compileStatement(SodaStatements.SELL_SQL);
+        try {
+            sell.bindLong(1, 1);
+            sell.bindLong(2, mId);
+            assertEquals(1, sell.executeUpdateDelete());
+        } finally {
+            sell.close();
+        }
+        assertTrue(readRecord().version > updated);
+    }
+
+    @Test
+    public void staleUpdateIsRefused() {
+        SodaRecord first = readRecord();
+        SodaRecord second = readRecord();
+        SQLiteStatement update = mDb.compileStatement(SodaRecordCodec.UPDATE_IF_VERSION_SQL);
+        try {
+            first.name = "Diet Cola";
+            SodaRecordCodec.bindUpdateIfVersion(update, first, first.version);
+            assertEquals(1, update.executeUpdateDelete());
+
+            // The second writer read the soda before the first one saved
+            second.name = "Cherry Cola";
+            SodaRecordCodec.bindUpdateIfVersion(update, second, second.version);
+            assertEquals(0, update.executeUpdateDelete());
+        } finally {
+            update.close();
+        }
+        assertEquals("Diet Cola", readRecord().name);
+    }
+
+    @Test
+    public void racingIncrementsAreNotLost() throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ContentValues values = new ContentValues();
+                    for (int j = 0; j < INCREMENTS; j++) {
+                        // Read, then write back only if nobody wrote in between
+                        while (true) {
+                            SodaRecord record = readRecord();
+                            values.put(SodaEntry.COLUMN_QUANTITY, record.quantity + 1);
+                            if (mDb.update(SodaEntry.TABLE_NAME, values,
+                                    SodaEntry._ID + "=? AND " + SodaEntry.COLUMN_VERSION + "=?",
+                                    new String[]{String.valueOf(mId),
+                                            String.valueOf(record.version)}) == 1) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(10 + THREADS * INCREMENTS, readRecord().quantity);
+    }
+
+    private SodaRecord readRecord() {
+        Cursor cursor = mDb.query(SodaEntry.TABLE_NAME, SodaRowCache.COLUMNS,
+                SodaEntry._ID + "=?", new String[]{String.valueOf(mId)}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            SodaRecord record = new SodaRecord();
+            new SodaRecordCodec(cursor).read(cursor, record);
+            return record;
+        } finally {
+            cursor.close();
+        }
+    }
+}
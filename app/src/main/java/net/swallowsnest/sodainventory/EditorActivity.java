@@ -2,17 +2,20 @@ package net.swallowsnest.sodainventory;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.database.Cursor;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.support.v4.app.NavUtils;
+import android.support.v4.content.FileProvider;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
 import android.view.Menu;
@@ -26,6 +29,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 /**
  * Created by marshas on 10/28/16.
@@ -38,6 +46,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private static final int EXISTING_SODA_LOADER = 0;
 
+    /**
+     * Authority of the file provider the camera app writes new photos through
+     */
+    private static final String FILE_PROVIDER_AUTHORITY =
+            "net.swallowsnest.sodainventory.fileprovider";
+
+    /**
+     * Keys for the photo state kept across the camera app possibly recreating this activity
+     */
+    private static final String STATE_IMAGE_NAME = "image_name";
+    private static final String STATE_PENDING_IMAGE = "pending_image";
+
     /**
      * Content URI for the existing soda (null if it's a new soda)
      */
@@ -58,10 +78,36 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private EditText mPriceEditText;
 
+    /**
+     * EditText field to enter the quantity at which the soda should be reordered
+     */
+    private EditText mReorderThresholdEditText;
+
     private ImageView mImageView;
 
+    /**
+     * File name of the soda's photo, or null if it has none
+     */
+    private String mImageName;
+
+    /**
+     * File the camera app was asked to write the next photo to
+     */
+    private File mPendingImageFile;
+
     private TextView mSoldTextView;
 
+    /**
+     * Version of the soda the values in the editor were loaded at, or -1 before they are
+     * loaded. Saving only goes through if the soda is still at this version.
+     */
+    private long mVersion = -1;
+
+    /**
+     * Callbacks of the writes this editor started, dropped when it is destroyed
+     */
+    private final SodaWriter.CallbackScope mWriteCallbacks = new SodaWriter.CallbackScope();
+
     /**
      * Boolean flag that keeps track of whether the soda has been edited (true) or not (false)
      */
@@ -113,20 +159,30 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 if (mCurrentSodaUri == null) {
                     return;
                 }
-                int sodaQuantity;
-                int soldQuantity;
-                mSoldTextView = (TextView) findViewById(R.id.edit_sold_value);
-                sodaQuantity = Integer.valueOf(mQuantityEditText.getText().toString());
-                soldQuantity = Integer.valueOf(mSoldTextView.getText().toString());
-                if (sodaQuantity > 0) {
-                    sodaQuantity--;
-                    soldQuantity++;
-                }
-
-                ContentValues values = new ContentValues();
-                values.put(SodaEntry.COLUMN_QUANTITY, sodaQuantity);
-                values.put(SodaEntry.COLUMN_SOLD, soldQuantity);
-                getContentResolver().update(mCurrentSodaUri, values, null, null);
+                // The provider sells the soda atomically and hands back the new values,
+                // so there is no read-modify-write on the quantity shown on screen.
+                SodaWriter.getInstance(EditorActivity.this).call(SodaEntry.CONTENT_URI,
+                        SodaEntry.METHOD_SELL,
+                        String.valueOf(ContentUris.parseId(mCurrentSodaUri)), null,
+                        mWriteCallbacks.add(new SodaWriter.Callback<Bundle>() {
+                            @Override
+                            public void onComplete(Bundle result) {
+                                if (result != null) {
+                                    // The sale is the editor's own change, so saving after it
+                                    // doesn't count as a conflict
+                                    mVersion = result.getLong(SodaEntry.COLUMN_VERSION);
+                                    mQuantityEditText.setText(Integer.toString(
+                                            result.getInt(SodaEntry.COLUMN_QUANTITY)));
+                                    mSoldTextView.setText(Integer.toString(
+                                            result.getInt(SodaEntry.COLUMN_SOLD)));
+                                    if (result.getBoolean(SodaEntry.KEY_LOW_STOCK)) {
+                                        Toast.makeText(EditorActivity.this,
+                                                R.string.editor_low_stock,
+                                                Toast.LENGTH_SHORT).show();
+                                    }
+                                }
+                            }
+                        }));
             }
         });
 
@@ -135,10 +191,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText = (EditText) findViewById(R.id.edit_soda_name);
         mQuantityEditText = (EditText) findViewById(R.id.edit_soda_quantity);
         mPriceEditText = (EditText) findViewById(R.id.edit_soda_price);
+        mReorderThresholdEditText = (EditText) findViewById(R.id.edit_soda_reorder_threshold);
         mSoldTextView = (TextView) findViewById(R.id.edit_sold_value);
         mImageView = (ImageView) findViewById(R.id.pic_here);
 
-
+        if (savedInstanceState != null) {
+            mImageName = savedInstanceState.getString(STATE_IMAGE_NAME);
+            String pendingImage = savedInstanceState.getString(STATE_PENDING_IMAGE);
+            if (pendingImage != null) {
+                mPendingImageFile = new File(pendingImage);
+            }
+            showImage();
+        }
 
         // Setup OnTouchListeners on all the input fields, so we can determine if the user
         // has touched or modified them. This will let us know if there are unsaved changes
@@ -146,11 +210,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText.setOnTouchListener(mTouchListener);
         mQuantityEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
+        mReorderThresholdEditText.setOnTouchListener(mTouchListener);
 
     }
 
     /**
-     * Get user input from editor and save soda into database.
+     * Get user input from editor and save soda into database. The save runs in the background
+     * and the editor closes once it is done.
      */
     public void saveSoda() {
         // Read from input fields
@@ -159,6 +225,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         String quantityString = mQuantityEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
         String soldString = mSoldTextView.getText().toString().trim();
+        String thresholdString = mReorderThresholdEditText.getText().toString().trim();
 
         // Check if this is supposed to be a new soda
         // and check if any of the fields in the editor are blank
@@ -167,60 +234,133 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 TextUtils.isEmpty(priceString)) {
             // Since no fields were modified, we can return early without creating a new soda.
             // No need to create ContentValues and no need to do any ContentProvider operations.
+            finish();
+            return;
+        }
+
+        // The price is typed in as dollars and stored as whole cents
+        long priceCents;
+        try {
+            priceCents = SodaRecord.parsePrice(priceString);
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, R.string.editor_invalid_price, Toast.LENGTH_SHORT).show();
             return;
         }
 
         // Create a ContentValues object where column names are the keys,
-        // and soda attributes from the editor are the values.
+        // and soda attributes from the editor are the values. Every column is set, so the
+        // provider can write the whole row with one compiled statement.
         ContentValues values = new ContentValues();
         values.put(SodaEntry.COLUMN_NAME, nameString);
         values.put(SodaEntry.COLUMN_QUANTITY, quantityString);
-        values.put(SodaEntry.COLUMN_PRICE, priceString);
-        values.put(SodaEntry.COLUMN_SOLD, soldString);
-        // If the price is not provided by the user, don't try to parse the string into an
-        // integer value. Use 0 by default.
-        float price = 0;
-        if (!TextUtils.isEmpty(priceString)) {
-            price = Float.parseFloat(priceString);
-        }
-        values.put(SodaEntry.COLUMN_PRICE, price);
+        values.put(SodaEntry.COLUMN_SOLD, TextUtils.isEmpty(soldString) ? "0" : soldString);
+        values.put(SodaEntry.COLUMN_PRICE, priceCents);
+        values.put(SodaEntry.COLUMN_IMAGE, mImageName);
+        values.put(SodaEntry.COLUMN_REORDER_THRESHOLD,
+                TextUtils.isEmpty(thresholdString) ? "0" : thresholdString);
 
         // Determine if this is a new or existing soda by checking if mCurrentSodaUri is null or not
         if (mCurrentSodaUri == null) {
             // This is a NEW soda, so insert a new soda into the provider,
             // returning the content URI for the new soda.
-            Uri newUri = getContentResolver().insert(SodaEntry.CONTENT_URI, values);
-
-            // Show a toast message depending on whether or not the insertion was successful.
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error with insertion.
-                Toast.makeText(this, getString(R.string.editor_insert_soda_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_insert_soda_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            SodaWriter.getInstance(this).insert(SodaEntry.CONTENT_URI, values,
+                    mWriteCallbacks.add(new SodaWriter.Callback<Uri>() {
+                        @Override
+                        public void onComplete(Uri newUri) {
+                            // Show a toast message depending on whether or not the insertion
+                            // was successful.
+                            if (newUri == null) {
+                                // If the new content URI is null, then there was an error
+                                // with insertion.
+                                Toast.makeText(EditorActivity.this,
+                                        getString(R.string.editor_insert_soda_failed),
+                                        Toast.LENGTH_SHORT).show();
+                            } else {
+                                // Otherwise, the insertion was successful and we can display
+                                // a toast.
+                                Toast.makeText(EditorActivity.this,
+                                        getString(R.string.editor_insert_soda_successful),
+                                        Toast.LENGTH_SHORT).show();
+                            }
+                            finish();
+                        }
+                    }));
         } else {
             // Otherwise this is an EXISTING soda, so update the soda with content URI: mCurrentSodaUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentSodaUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentSodaUri, values, null, null);
-
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_update_soda_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_soda_successful),
-                        Toast.LENGTH_SHORT).show();
+            // and pass in the new ContentValues. mCurrentSodaUri already identifies the correct
+            // row in the database that we want to modify. Unless the soda is still at the
+            // version the editor loaded, the update is refused instead of overwriting a change
+            // made elsewhere meanwhile.
+            Uri uri = mCurrentSodaUri;
+            if (mVersion != -1) {
+                uri = mCurrentSodaUri.buildUpon().appendQueryParameter(
+                        SodaEntry.QUERY_EXPECTED_VERSION, String.valueOf(mVersion)).build();
             }
+            updateSoda(uri, values);
+        }
+    }
+
+    /**
+     * Save the values over the soda with the given URI in the background, and close the
+     * editor once it is done unless the soda had changed since it was loaded.
+     */
+    private void updateSoda(final Uri uri, final ContentValues values) {
+        SodaWriter.Callback<Integer> callback = mWriteCallbacks.add(
+                new SodaWriter.Callback<Integer>() {
+                    @Override
+                    public void onComplete(Integer rowsAffected) {
+                        // Another write of the soda came first, the user decides who wins
+                        if (rowsAffected == SodaWriter.CONFLICT) {
+                            showConflictDialog(values);
+                            return;
+                        }
+                        // Show a toast message depending on whether or not the update
+                        // was successful.
+                        if (rowsAffected == 0) {
+                            // If no rows were affected, the soda is gone or the update failed
+                            Toast.makeText(EditorActivity.this,
+                                    getString(R.string.editor_update_soda_failed),
+                                    Toast.LENGTH_SHORT).show();
+                        } else {
+                            // Otherwise, the update was successful and we can display a toast.
+                            Toast.makeText(EditorActivity.this,
+                                    getString(R.string.editor_update_soda_successful),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                        finish();
+                    }
+                });
+        if (uri.getQueryParameter(SodaEntry.QUERY_EXPECTED_VERSION) != null) {
+            SodaWriter.getInstance(this).updateAtVersion(uri, values, callback);
+        } else {
+            SodaWriter.getInstance(this).update(uri, values, callback);
         }
     }
 
+    /**
+     * Show a dialog that tells the user the soda changed somewhere else since the editor
+     * loaded it, and let them either save their values over it or reload it.
+     */
+    private void showConflictDialog(final ContentValues values) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.conflict_dialog_msg);
+        builder.setPositiveButton(R.string.overwrite, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // The user saw the conflict, so this save may overwrite the other change
+                updateSoda(mCurrentSodaUri, values);
+            }
+        });
+        builder.setNegativeButton(R.string.reload, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // Drop the edits and show the soda as it is now
+                mSodaHasChanged = false;
+                getLoaderManager().restartLoader(EXISTING_SODA_LOADER, null,
+                        EditorActivity.this);
+            }
+        });
+        builder.create().show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -250,10 +390,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save soda to database
+                // Save soda to database, the activity exits once the save is done
                 saveSoda();
-                // Exit activity
-                finish();
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -317,23 +455,80 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     static final int REQUEST_IMAGE_CAPTURE = 1;
 
+    /**
+     * Ask the camera app to write a full size photo into a new file in the app's private
+     * images directory.
+     */
     public void dispatchTakePictureIntent(View view) {
         Intent takePictureIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-        if (takePictureIntent.resolveActivity(getPackageManager()) != null) {
-            startActivityForResult(takePictureIntent, REQUEST_IMAGE_CAPTURE);
+        if (takePictureIntent.resolveActivity(getPackageManager()) == null) {
+            return;
+        }
 
+        File imageFile;
+        try {
+            imageFile = SodaImageLoader.getInstance(this).createImageFile();
+        } catch (IOException e) {
+            Toast.makeText(this, R.string.editor_photo_failed, Toast.LENGTH_SHORT).show();
+            return;
         }
+        Uri imageUri = FileProvider.getUriForFile(this, FILE_PROVIDER_AUTHORITY, imageFile);
+        takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, imageUri);
+        takePictureIntent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION
+                | Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        // Before Lollipop the flags don't cover EXTRA_OUTPUT, so grant every camera app
+        // access to the file explicitly
+        List<ResolveInfo> cameraApps = getPackageManager().queryIntentActivities(
+                takePictureIntent, PackageManager.MATCH_DEFAULT_ONLY);
+        for (ResolveInfo cameraApp : cameraApps) {
+            grantUriPermission(cameraApp.activityInfo.packageName, imageUri,
+                    Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+
+        mPendingImageFile = imageFile;
+        startActivityForResult(takePictureIntent, REQUEST_IMAGE_CAPTURE);
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == RESULT_OK) {
-            Bundle extras = data.getExtras();
-            Bitmap imageBitmap = (Bitmap) extras.get("data");
-            mImageView.setImageBitmap(imageBitmap);
+        if (requestCode != REQUEST_IMAGE_CAPTURE || mPendingImageFile == null) {
+            return;
         }
+        if (resultCode == RESULT_OK) {
+            // The photo is only referenced from the soda once it is saved
+            mImageName = mPendingImageFile.getName();
+            mSodaHasChanged = true;
+            showImage();
+        } else {
+            mPendingImageFile.delete();
+        }
+        mPendingImageFile = null;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Saves and deletes still running don't report back to a closed editor
+        mWriteCallbacks.clear();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_IMAGE_NAME, mImageName);
+        if (mPendingImageFile != null) {
+            outState.putString(STATE_PENDING_IMAGE, mPendingImageFile.getPath());
+        }
+    }
+
+    /**
+     * Show a thumbnail of the soda's photo, decoded in the background.
+     */
+    private void showImage() {
+        SodaImageLoader.getInstance(this).load(mImageName, mImageView,
+                getResources().getDimensionPixelSize(R.dimen.editor_image_size));
+    }
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
@@ -344,7 +539,10 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 SodaEntry.COLUMN_NAME,
                 SodaEntry.COLUMN_QUANTITY,
                 SodaEntry.COLUMN_PRICE,
-                SodaEntry.COLUMN_SOLD
+                SodaEntry.COLUMN_SOLD,
+                SodaEntry.COLUMN_IMAGE,
+                SodaEntry.COLUMN_REORDER_THRESHOLD,
+                SodaEntry.COLUMN_VERSION
         };
 
         // This loader will execute the ContentProvider's query method on a background thread
@@ -363,6 +561,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             return;
         }
 
+        // Keep the user's unsaved edits and the version they started from when the soda
+        // changes elsewhere, so saving them reports the conflict instead of losing either
+        if (mSodaHasChanged && mVersion != -1) {
+            return;
+        }
+
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
@@ -371,19 +575,30 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             int quantityColumnIndex = cursor.getColumnIndex(SodaEntry.COLUMN_QUANTITY);
             int priceColumnIndex = cursor.getColumnIndex(SodaEntry.COLUMN_PRICE);
             int soldColumnIndex = cursor.getColumnIndex(SodaEntry.COLUMN_SOLD);
+            int imageColumnIndex = cursor.getColumnIndex(SodaEntry.COLUMN_IMAGE);
+            int thresholdColumnIndex =
+                    cursor.getColumnIndex(SodaEntry.COLUMN_REORDER_THRESHOLD);
 
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
             int quantity = cursor.getInt(quantityColumnIndex);
-            float price = cursor.getInt(priceColumnIndex);
+            long priceCents = cursor.getLong(priceColumnIndex);
             int sold = cursor.getInt(soldColumnIndex);
+            int threshold = cursor.getInt(thresholdColumnIndex);
+            mVersion = cursor.getLong(cursor.getColumnIndex(SodaEntry.COLUMN_VERSION));
 
             // Update the views on the screen with the values from the database
             mNameEditText.setText(name);
             mQuantityEditText.setText(Integer.toString(quantity));
-            mPriceEditText.setText(Float.toString(price));
+            mPriceEditText.setText(SodaRecord.formatPrice(priceCents));
             mSoldTextView.setText(Integer.toString(sold));
+            mReorderThresholdEditText.setText(Integer.toString(threshold));
 
+            // Keep a photo that was taken but not saved yet
+            if (mImageName == null) {
+                mImageName = cursor.getString(imageColumnIndex);
+                showImage();
+            }
         }
     }
 
@@ -394,6 +609,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mQuantityEditText.setText("");
         mPriceEditText.setText("");
         mSoldTextView.setText("");
+        mReorderThresholdEditText.setText("");
     }
 
     /**
@@ -459,26 +675,36 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private void deleteSoda() {
         // Only perform the delete if this is an existing soda.
-        if (mCurrentSodaUri != null) {
-            // Call the ContentResolver to delete the soda at the given content URI.
-            // Pass in null for the selection and selection args because the mCurrentSodaUri
-            // content URI already identifies the soda that we want.
-            int rowsDeleted = getContentResolver().delete(mCurrentSodaUri, null, null);
-
-            // Show a toast message depending on whether or not the delete was successful.
-            if (rowsDeleted == 0) {
-                // If no rows were deleted, then there was an error with the delete.
-                Toast.makeText(this, getString(R.string.editor_delete_soda_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the delete was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_delete_soda_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+        if (mCurrentSodaUri == null) {
+            // Close the activity
+            finish();
+            return;
         }
 
-        // Close the activity
-        finish();
+        // Delete the soda at the given content URI in the background. The mCurrentSodaUri
+        // content URI already identifies the soda that we want.
+        SodaWriter.getInstance(this).delete(mCurrentSodaUri,
+                mWriteCallbacks.add(new SodaWriter.Callback<Integer>() {
+                    @Override
+                    public void onComplete(Integer rowsDeleted) {
+                        // Show a toast message depending on whether or not the delete was
+                        // successful.
+                        if (rowsDeleted == 0) {
+                            // If no rows were deleted, then there was an error with the delete.
+                            Toast.makeText(EditorActivity.this,
+                                    getString(R.string.editor_delete_soda_failed),
+                                    Toast.LENGTH_SHORT).show();
+                        } else {
+                            // Otherwise, the delete was successful and we can display a toast.
+                            Toast.makeText(EditorActivity.this,
+                                    getString(R.string.editor_delete_soda_successful),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+
+                        // Close the activity
+                        finish();
+                    }
+                }));
     }
 
     /**
@@ -1,42 +1,171 @@
 package net.swallowsnest.sodainventory;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
 import android.content.ContentUris;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
 import android.widget.Button;
-import android.widget.ListView;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaRecord;
+import net.swallowsnest.sodainventory.data.SodaContract.StatsEntry;
 
 public class MainActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>, SodaSellBuffer.Listener,
+        SodaCursorAdapter.Listener {
 
     /**
-     * Identifier for the soda data loader
+     * Identifier for the loader of the sodas list
      */
     private static final int SODA_LOADER = 0;
 
     /**
-     * Adapter for the ListView
+     * Identifier for the loader of search results
+     */
+    private static final int SEARCH_LOADER = -1;
+
+    /**
+     * Identifier for the loader of the soda totals
+     */
+    private static final int STATS_LOADER = -2;
+
+    /**
+     * How long to wait after the last keystroke before searching
+     */
+    private static final long SEARCH_DELAY_MS = 250;
+
+    /**
+     * Loader argument holding the search query
+     */
+    private static final String ARG_QUERY = "query";
+
+    /**
+     * Keys the list mode is saved under across configuration changes
+     */
+    private static final String STATE_SORT_KEY = "sort_key";
+    private static final String STATE_SORT_ORDER = "sort_order";
+    private static final String STATE_FILTER = "filter";
+    private static final String STATE_MIN_PRICE = "min_price";
+    private static final String STATE_MAX_PRICE = "max_price";
+
+    /**
+     * Request codes for picking the file to export to or import from
+     */
+    private static final int REQUEST_EXPORT_CSV = 1;
+    private static final int REQUEST_EXPORT_JSON = 2;
+    private static final int REQUEST_IMPORT = 3;
+
+    /**
+     * The sodas list, or null while it is being loaded
+     */
+    private Cursor mSodas;
+
+    /**
+     * Adapter for the RecyclerView
      */
     SodaCursorAdapter mCursorAdapter;
 
+    /**
+     * View shown instead of the list when there are no sodas
+     */
+    private View mEmptyView;
+
+    /**
+     * Text view showing the totals over all sodas
+     */
+    private TextView mStatsTextView;
+
+    /**
+     * Buffer that writes the list's sell taps in the background
+     */
+    private SodaSellBuffer mSellBuffer;
+
+    /**
+     * Callbacks of the writes this activity started, dropped when it is destroyed
+     */
+    private final SodaWriter.CallbackScope mWriteCallbacks = new SodaWriter.CallbackScope();
+
+    /**
+     * Current search query, or null when the whole list is shown
+     */
+    private String mSearchQuery;
+
+    /**
+     * Column and direction the list is sorted by
+     */
+    private String mSortKey = SodaEntry._ID;
+    private String mSortOrder = SodaEntry.SORT_ASCENDING;
+
+    /**
+     * Stock filter of the list, or null to show every soda
+     */
+    private String mFilter;
+
+    /**
+     * Ends of the price range filter in cents, or -1 where the range is open
+     */
+    private long mMinPrice = -1;
+    private long mMaxPrice = -1;
+
+    /**
+     * Dialog showing the progress of an export or import, or null if none is running
+     */
+    private ProgressDialog mTransferDialog;
+
+    private final Handler mHandler = new Handler();
+
+    /**
+     * Runs the search once the user has stopped typing for {@link #SEARCH_DELAY_MS}
+     */
+    private final Runnable mSearch = new Runnable() {
+        @Override
+        public void run() {
+            if (mSearchQuery == null) {
+                getLoaderManager().destroyLoader(SEARCH_LOADER);
+                showList();
+            } else {
+                Bundle args = new Bundle();
+                args.putString(ARG_QUERY, mSearchQuery);
+                getLoaderManager().restartLoader(SEARCH_LOADER, args, MainActivity.this);
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // The list loader outlives a rotation, so the mode its URI was built with must too
+        if (savedInstanceState != null) {
+            mSortKey = savedInstanceState.getString(STATE_SORT_KEY, mSortKey);
+            mSortOrder = savedInstanceState.getString(STATE_SORT_ORDER, mSortOrder);
+            mFilter = savedInstanceState.getString(STATE_FILTER);
+            mMinPrice = savedInstanceState.getLong(STATE_MIN_PRICE, -1);
+            mMaxPrice = savedInstanceState.getLong(STATE_MAX_PRICE, -1);
+        }
+
         // Setup button to open EditorActivity
         Button plus = (Button) findViewById(R.id.plus);
         plus.setOnClickListener(new View.OnClickListener() {
@@ -48,50 +177,305 @@ public class MainActivity extends AppCompatActivity implements
         });
 
 
-        // Find the ListView which will be populated with the soda data
-        ListView sodaListView = (ListView) findViewById(R.id.list);
+        // Find the RecyclerView which will be populated with the soda data
+        RecyclerView sodaListView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        sodaListView.setLayoutManager(layoutManager);
 
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        sodaListView.setEmptyView(emptyView);
+        // Find the empty view, so that it only shows when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
+        mStatsTextView = (TextView) findViewById(R.id.stats_summary);
 
-        // Setup an Adapter to create a list item for each row of soda data in the Cursor.
-        // There is no soda data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new SodaCursorAdapter(this, null);
+        // Setup an Adapter to create a list item for each row of soda data in the list.
+        // There is no soda data yet (until the loader finishes).
+        mSellBuffer = new SodaSellBuffer(getContentResolver(), this);
+        mCursorAdapter = new SodaCursorAdapter(this, mSellBuffer, this);
         sodaListView.setAdapter(mCursorAdapter);
 
-        // Setup the item click listener
-        sodaListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // The list cursor loads its rows around where the user scrolls by itself. A reload
+        // after a change starts where the list was left, so the rows on screen come first.
+        sodaListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-                // Create new intent to go to {@link EditorActivity}
-                Intent intent = new Intent(MainActivity.this, EditorActivity.class);
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                Loader<Cursor> loader = getLoaderManager().getLoader(SODA_LOADER);
+                if (mSearchQuery == null && loader != null) {
+                    ((SodaListLoader) loader).setAnchorPosition(
+                            layoutManager.findFirstVisibleItemPosition());
+                }
+            }
+        });
+
+        // Kick off the loaders for the list and the totals
+        getLoaderManager().initLoader(SODA_LOADER, null, this);
+        getLoaderManager().initLoader(STATS_LOADER, null, this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_SORT_KEY, mSortKey);
+        outState.putString(STATE_SORT_ORDER, mSortOrder);
+        outState.putString(STATE_FILTER, mFilter);
+        outState.putLong(STATE_MIN_PRICE, mMinPrice);
+        outState.putLong(STATE_MAX_PRICE, mMaxPrice);
+    }
 
-                // Form the content URI that represents the specific soda that was clicked on,
-                // by appending the "id" (passed as input to this method) onto the
-                // {@link SodaEntry#CONTENT_URI}.
-                // For example, the URI would be "content://com.example.android.sodas/sodas/2"
-                // if the soda with ID 2 was clicked on.
-                Uri currentSodaUri = ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id);
+    /**
+     * Reload the list from the top after its sort or filter changed.
+     */
+    private void reloadList() {
+        getLoaderManager().restartLoader(SODA_LOADER, null, this);
+    }
 
-                // Set the URI on the data field of the intent
-                intent.setData(currentSodaUri);
+    private void setSort(String sortKey, String sortOrder) {
+        mSortKey = sortKey;
+        mSortOrder = sortOrder;
+        reloadList();
+    }
 
-                // Launch the {@link EditorActivity} to display the data for the current soda.
-                startActivity(intent);
+    private void setFilter(String filter) {
+        mFilter = filter;
+        reloadList();
+    }
+
+    /**
+     * Ask the user for the lowest and highest price to show, in dollars. Either may be left
+     * empty to leave that end of the range open.
+     */
+    private void showPriceRangeDialog() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_price_range, null);
+        final EditText minEditText = (EditText) view.findViewById(R.id.price_range_min);
+        final EditText maxEditText = (EditText) view.findViewById(R.id.price_range_max);
+        if (mMinPrice != -1) {
+            minEditText.setText(SodaRecord.formatPrice(mMinPrice));
+        }
+        if (mMaxPrice != -1) {
+            maxEditText.setText(SodaRecord.formatPrice(mMaxPrice));
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_filter_price);
+        builder.setView(view);
+        builder.setPositiveButton(R.string.price_range_apply,
+                new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                long minPrice;
+                long maxPrice;
+                try {
+                    minPrice = parseRangeEnd(minEditText.getText().toString());
+                    maxPrice = parseRangeEnd(maxEditText.getText().toString());
+                    if (minPrice != -1 && maxPrice != -1 && minPrice > maxPrice) {
+                        throw new NumberFormatException("Price range ends before it starts");
+                    }
+                } catch (NumberFormatException e) {
+                    Toast.makeText(MainActivity.this, R.string.price_range_invalid,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                setPriceRange(minPrice, maxPrice);
             }
         });
+        builder.setNeutralButton(R.string.price_range_clear, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                setPriceRange(-1, -1);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
 
-        // Kick off the loader
-        getLoaderManager().initLoader(SODA_LOADER, null, this);
+    /**
+     * Parse one end of the price range in cents, or return -1 if it was left empty.
+     */
+    private static long parseRangeEnd(String price) {
+        price = price.trim();
+        return price.isEmpty() ? -1 : SodaRecord.parsePrice(price);
+    }
+
+    private void setPriceRange(long minPrice, long maxPrice) {
+        mMinPrice = minPrice;
+        mMaxPrice = maxPrice;
+        reloadList();
+    }
+
+    /**
+     * Show the sodas list once it is loaded.
+     */
+    private void showList() {
+        // Search results take the place of the list until the search is cleared
+        if (mSearchQuery != null) {
+            return;
+        }
+        showCursor(mSodas);
+    }
+
+    /**
+     * Show the totals from the given stats cursor above the list.
+     */
+    private void showStats(Cursor stats) {
+        if (stats == null || !stats.moveToFirst()) {
+            return;
+        }
+        mStatsTextView.setText(getString(R.string.stats_summary,
+                stats.getInt(stats.getColumnIndex(StatsEntry.COLUMN_SODA_COUNT)),
+                stats.getInt(stats.getColumnIndex(StatsEntry.COLUMN_TOTAL_STOCK)),
+                stats.getInt(stats.getColumnIndex(StatsEntry.COLUMN_TOTAL_SOLD)),
+                SodaRecord.formatPrice(
+                        stats.getLong(stats.getColumnIndex(StatsEntry.COLUMN_REVENUE)))));
+    }
+
+    /**
+     * Show the given cursor in the list, or the empty view if it holds no sodas.
+     */
+    private void showCursor(Cursor cursor) {
+        // The cursor belongs to its loader, so the adapter never closes it
+        mCursorAdapter.swapCursor(cursor);
+        mEmptyView.setVisibility(mCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void onSodaClicked(long id) {
+        // Create new intent to go to {@link EditorActivity}
+        Intent intent = new Intent(MainActivity.this, EditorActivity.class);
+
+        // Form the content URI that represents the specific soda that was clicked on,
+        // by appending the "id" (passed as input to this method) onto the
+        // {@link SodaEntry#CONTENT_URI}.
+        // For example, the URI would be "content://com.example.android.sodas/sodas/2"
+        // if the soda with ID 2 was clicked on.
+        Uri currentSodaUri = ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id);
+
+        // Set the URI on the data field of the intent
+        intent.setData(currentSodaUri);
+
+        // Launch the {@link EditorActivity} to display the data for the current soda.
+        startActivity(intent);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Don't leave sales sitting in memory while the user is somewhere else
+        mSellBuffer.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mWriteCallbacks.clear();
+        mSellBuffer.close();
+        if (mTransferDialog != null) {
+            mTransferDialog.dismiss();
+            mTransferDialog = null;
+        }
+    }
+
+    @Override
+    public void onPendingSalesChanged(long id) {
+        // Rebind the quantity of the soda so it shows the buffered sales
+        mCursorAdapter.notifyPendingSalesChanged(id);
+    }
+
+    @Override
+    public void onSalesDropped(long id, int count) {
+        Toast.makeText(this, getResources().getQuantityString(R.plurals.sales_dropped, count,
+                count), Toast.LENGTH_LONG).show();
     }
 
     /**
      * Helper method to delete all sodas in the database.
      */
     private void deleteAllSodas() {
-        int rowsDeleted = getContentResolver().delete(SodaEntry.CONTENT_URI, null, null);
-        Log.v("MainActivity", rowsDeleted + " rows deleted from soda database");
+        SodaWriter.getInstance(this).delete(SodaEntry.CONTENT_URI,
+                mWriteCallbacks.add(new SodaWriter.Callback<Integer>() {
+                    @Override
+                    public void onComplete(Integer rowsDeleted) {
+                        Log.v("MainActivity", rowsDeleted + " rows deleted from soda database");
+                    }
+                }));
+    }
+
+    /**
+     * Let the user pick a file to export to or import from. The document picker arrived in
+     * KitKat, the menu items are hidden before that.
+     */
+    private void pickTransferFile(int requestCode) {
+        Intent intent;
+        if (requestCode == REQUEST_IMPORT) {
+            intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.setType("*/*");
+            intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{SodaEntry.MIME_TYPE_CSV,
+                    "text/comma-separated-values", SodaEntry.MIME_TYPE_JSON, "text/plain"});
+        } else {
+            boolean json = requestCode == REQUEST_EXPORT_JSON;
+            intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.setType(json ? SodaEntry.MIME_TYPE_JSON : SodaEntry.MIME_TYPE_CSV);
+            intent.putExtra(Intent.EXTRA_TITLE, json ? "sodas.json" : "sodas.csv");
+        }
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, requestCode);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        Uri file = data.getData();
+        switch (requestCode) {
+            case REQUEST_EXPORT_CSV:
+            case REQUEST_EXPORT_JSON:
+                String format = requestCode == REQUEST_EXPORT_JSON
+                        ? SodaEntry.FORMAT_JSON : SodaEntry.FORMAT_CSV;
+                SodaTransfer.getInstance(this).exportTo(file, format,
+                        showTransferProgress(R.string.transfer_export_progress,
+                                R.string.transfer_export_done));
+                break;
+            case REQUEST_IMPORT:
+                String type = getContentResolver().getType(file);
+                boolean json = SodaEntry.MIME_TYPE_JSON.equals(type)
+                        || (type == null && file.getPath().endsWith(".json"));
+                SodaTransfer.getInstance(this).importFrom(file,
+                        json ? SodaEntry.FORMAT_JSON : SodaEntry.FORMAT_CSV,
+                        showTransferProgress(R.string.transfer_import_progress,
+                                R.string.transfer_import_done));
+                break;
+        }
+    }
+
+    /**
+     * Show a progress dialog for a transfer and return the listener that keeps it up to date.
+     */
+    private SodaTransfer.Listener showTransferProgress(int titleId, final int doneId) {
+        if (mTransferDialog != null) {
+            mTransferDialog.dismiss();
+        }
+        final ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setTitle(titleId);
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setIndeterminate(true);
+        dialog.setCancelable(false);
+        dialog.show();
+        mTransferDialog = dialog;
+
+        return new SodaTransfer.Listener() {
+            @Override
+            public void onProgress(int percent) {
+                dialog.setIndeterminate(percent < 0);
+                dialog.setProgress(Math.max(0, percent));
+            }
+
+            @Override
+            public void onComplete(boolean success) {
+                if (mTransferDialog == dialog) {
+                    dialog.dismiss();
+                    mTransferDialog = null;
+                }
+                Toast.makeText(getApplicationContext(),
+                        success ? doneId : R.string.transfer_failed, Toast.LENGTH_SHORT).show();
+            }
+        };
     }
 
     @Override
@@ -99,45 +483,199 @@ public class MainActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+
+        // Files are picked with the document picker, which needs KitKat
+        boolean canTransfer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        menu.findItem(R.id.action_export_csv).setVisible(canTransfer);
+        menu.findItem(R.id.action_export_json).setVisible(canTransfer);
+        menu.findItem(R.id.action_import).setVisible(canTransfer);
+
+        // Check the items of the list mode that survived a rotation
+        menu.findItem(getSortItemId()).setChecked(true);
+        menu.findItem(SodaEntry.FILTER_IN_STOCK.equals(mFilter) ? R.id.action_filter_in_stock
+                : SodaEntry.FILTER_OUT_OF_STOCK.equals(mFilter) ? R.id.action_filter_out_of_stock
+                : R.id.action_filter_all).setChecked(true);
+
+        // Search as the user types, but only once they pause for a moment
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return onQueryTextChange(query);
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                String query = newText.trim();
+                mSearchQuery = query.isEmpty() ? null : query;
+                mHandler.removeCallbacks(mSearch);
+                mHandler.postDelayed(mSearch, SEARCH_DELAY_MS);
+                return true;
+            }
+        });
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_filter_price).setChecked(mMinPrice != -1 || mMaxPrice != -1);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    /**
+     * Return the menu item of the current sort.
+     */
+    private int getSortItemId() {
+        switch (mSortKey) {
+            case SodaEntry.COLUMN_NAME:
+                return R.id.action_sort_name;
+            case SodaEntry.COLUMN_QUANTITY:
+                return R.id.action_sort_stock;
+            case SodaEntry.COLUMN_SOLD:
+                return R.id.action_sort_sold;
+            case SodaEntry.COLUMN_PRICE:
+                return R.id.action_sort_price;
+            default:
+                return R.id.action_sort_added;
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        // Sort and filter items show which one is on, except the price range, which asks first
+        if (item.isCheckable() && item.getItemId() != R.id.action_filter_price) {
+            item.setChecked(true);
+        }
+
         // User clicked on a menu option in the app bar overflow menu
-        deleteAllSodas();
-        return true;
+        switch (item.getItemId()) {
+            case R.id.action_sort_added:
+                setSort(SodaEntry._ID, SodaEntry.SORT_ASCENDING);
+                return true;
+            case R.id.action_sort_name:
+                setSort(SodaEntry.COLUMN_NAME, SodaEntry.SORT_ASCENDING);
+                return true;
+            case R.id.action_sort_stock:
+                setSort(SodaEntry.COLUMN_QUANTITY, SodaEntry.SORT_ASCENDING);
+                return true;
+            case R.id.action_sort_sold:
+                setSort(SodaEntry.COLUMN_SOLD, SodaEntry.SORT_DESCENDING);
+                return true;
+            case R.id.action_sort_price:
+                setSort(SodaEntry.COLUMN_PRICE, SodaEntry.SORT_ASCENDING);
+                return true;
+            case R.id.action_filter_all:
+                setFilter(null);
+                return true;
+            case R.id.action_filter_in_stock:
+                setFilter(SodaEntry.FILTER_IN_STOCK);
+                return true;
+            case R.id.action_filter_out_of_stock:
+                setFilter(SodaEntry.FILTER_OUT_OF_STOCK);
+                return true;
+            case R.id.action_filter_price:
+                showPriceRangeDialog();
+                return true;
+            case R.id.action_delete_all_entries:
+                deleteAllSodas();
+                return true;
+            case R.id.action_export_csv:
+                pickTransferFile(REQUEST_EXPORT_CSV);
+                return true;
+            case R.id.action_export_json:
+                pickTransferFile(REQUEST_EXPORT_JSON);
+                return true;
+            case R.id.action_import:
+                pickTransferFile(REQUEST_IMPORT);
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
+        if (i == STATS_LOADER) {
+            // The totals are a single row, so there is nothing to choose
+            return new CursorLoader(this, StatsEntry.CONTENT_URI, null, null, null, null);
+        }
+
         // Define a projection that specifies the columns from the table we care about.
         String[] projection = {
                 SodaEntry._ID,
                 SodaEntry.COLUMN_NAME,
                 SodaEntry.COLUMN_QUANTITY,
                 SodaEntry.COLUMN_PRICE,
-                SodaEntry.COLUMN_SOLD};
+                SodaEntry.COLUMN_SOLD,
+                SodaEntry.COLUMN_IMAGE};
+
+        if (i == SEARCH_LOADER) {
+            // This loader will run the search on a background thread
+            return new CursorLoader(this,
+                    SodaEntry.buildSearchUri(bundle.getString(ARG_QUERY)),
+                    projection,
+                    null,
+                    null,
+                    null);              // The provider ranks the results
+        }
 
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                SodaEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
+        // Ask the provider for the whole list in the current sort and filter. The loader
+        // reads it in chunks around where the user scrolls.
+        Uri.Builder listUri = SodaEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(SodaEntry.QUERY_SORT_KEY, mSortKey)
+                .appendQueryParameter(SodaEntry.QUERY_SORT_ORDER, mSortOrder);
+        if (mFilter != null) {
+            listUri.appendQueryParameter(SodaEntry.QUERY_FILTER, mFilter);
+        }
+        if (mMinPrice != -1) {
+            listUri.appendQueryParameter(SodaEntry.QUERY_MIN_PRICE, String.valueOf(mMinPrice));
+        }
+        if (mMaxPrice != -1) {
+            listUri.appendQueryParameter(SodaEntry.QUERY_MAX_PRICE, String.valueOf(mMaxPrice));
+        }
+
+        // This loader will execute the ContentProvider's queries on a background thread
+        return new SodaListLoader(this, listUri.build(), projection, mSortKey);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link SodaCursorAdapter} with this new cursor containing updated soda data
-        mCursorAdapter.swapCursor(data);
+        if (loader.getId() == STATS_LOADER) {
+            showStats(data);
+            return;
+        }
+
+        // The new data already includes the sales that were written so far
+        mSellBuffer.onDataReloaded();
+
+        if (loader.getId() == SEARCH_LOADER) {
+            // Results of an earlier query can still arrive after the search was cleared
+            if (mSearchQuery != null) {
+                showCursor(data);
+            }
+            return;
+        }
+
+        // Update {@link SodaCursorAdapter} with the updated soda data
+        mSodas = data;
+        showList();
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        if (loader.getId() == STATS_LOADER) {
+            mStatsTextView.setText("");
+            return;
+        }
+        if (loader.getId() == SEARCH_LOADER) {
+            if (mSearchQuery != null) {
+                showCursor(null);
+            }
+            return;
+        }
+        mSodas = null;
+        showList();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,659 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.util.Log;
+import android.util.SparseArray;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A read-only cursor over the whole sodas list in one sort and filter mode that only ever
+ * holds a few chunks of {@link #CHUNK_ROWS} rows of it, however long the list is.
+ * <p>
+ * The rows are counted when the cursor is opened, so the list has its full length from the
+ * start. Chunks are read as keyset pages of the provider on a background thread and copied
+ * out of the provider's cursor, which is closed right away, so no cursor window stays open
+ * behind this one. Moving to a row loads its chunk if it isn't there yet, then the
+ * {@link #PREFETCH_CHUNKS} chunks after it in the direction of scrolling. Chunks further
+ * away than that are dropped. Rows of chunks that aren't loaded yet read as nulls until
+ * {@link Listener#onRowsLoaded} says they arrived.
+ * <p>
+ * A page starts after the sort key and ID of the last row of the page before it, so the
+ * start of every chunk that was reached is kept, two strings per chunk. Jumping past the last
+ * known start skips there with one query that only reads the IDs and sort keys.
+ * <p>
+ * A cursor opened to replace another one after the sodas changed can be handed the chunk
+ * starts that one found. A handed over start is only used once counting the rows after it
+ * shows that its chunk still starts there, which is one count instead of reading the keys of
+ * every row up to it. Starts found wrong are dropped along with the ones after them.
+ * <p>
+ * Apart from opening it, the cursor must only be used on the main thread.
+ */
+public class SodaChunkedCursor extends AbstractCursor {
+
+    private static final String LOG_TAG = SodaChunkedCursor.class.getSimpleName();
+
+    /**
+     * Number of rows per chunk
+     */
+    static final int CHUNK_ROWS = 250;
+
+    /**
+     * Number of chunks loaded ahead of the current one, in the direction of scrolling
+     */
+    static final int PREFETCH_CHUNKS = 2;
+
+    /**
+     * Number of chunks kept behind the current one, in case the user turns around
+     */
+    private static final int KEEP_BEHIND_CHUNKS = 1;
+
+    /**
+     * Most chunks held at once. Lists with no more chunks than this are kept whole.
+     */
+    private static final int MAX_CHUNKS = PREFETCH_CHUNKS + KEEP_BEHIND_CHUNKS + 1;
+
+    /**
+     * Start of the first chunk, which has no row before it
+     */
+    private static final String[] LIST_START = new String[0];
+
+    /**
+     * Loads the chunks of every cursor, one at a time
+     */
+    private static final ExecutorService sLoader = Executors.newSingleThreadExecutor();
+
+    /**
+     * Callback for rows that finished loading.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread when the given rows have been loaded.
+         */
+        void onRowsLoaded(int start, int count);
+    }
+
+    private final ContentResolver mResolver;
+    private final Uri mListUri;
+    private final String[] mColumns;
+    private final String mSortKey;
+    private final int mCount;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Loaded chunks by chunk number, each an array of rows of column values
+     */
+    private final SparseArray<Object[][]> mChunks = new SparseArray<>();
+
+    /**
+     * Sort key and ID of the row before the start of every chunk that was reached
+     */
+    private final SparseArray<String[]> mChunkStarts = new SparseArray<>();
+
+    /**
+     * Chunk starts handed over from the cursor this one replaces that weren't checked yet
+     */
+    private final SparseArray<String[]> mHints;
+
+    /**
+     * Chunk of the current row and whether the list was last scrolled down (1) or up (-1)
+     */
+    private int mCurrentChunk;
+    private int mDirection = 1;
+
+    /**
+     * Chunk being loaded in the background, or -1 if there is none
+     */
+    private int mLoadingChunk = -1;
+
+    /**
+     * Values of the current row, or null if its chunk isn't loaded
+     */
+    private Object[] mRow;
+
+    private Listener mListener;
+
+    /**
+     * Cursor this one replaces and the changes between the two, until they are taken
+     */
+    private WeakReference<Cursor> mReplaced;
+    private DiffUtil.DiffResult mChanges;
+
+    /**
+     * Set once the cursor is closed, so loads that are still queued give up
+     */
+    private volatile boolean mReleased;
+
+    private SodaChunkedCursor(ContentResolver resolver, Uri listUri, String[] projection,
+                              String sortKey, int count, SparseArray<String[]> hints) {
+        mResolver = resolver;
+        mListUri = listUri;
+        mColumns = projection;
+        mSortKey = sortKey;
+        mCount = count;
+        mHints = hints == null ? new SparseArray<String[]>() : hints.clone();
+        mChunkStarts.put(0, LIST_START);
+    }
+
+    /**
+     * Count the rows of the list with the given URI and load the chunks around the given
+     * position, so it can be shown right away. Runs the queries on the calling thread, which
+     * mustn't be the main thread.
+     *
+     * @param listUri    URI of the sodas list with its sort and filter parameters, but without
+     *                   a page size or start
+     * @param projection Columns of the cursor, which must include the ID and the sort key
+     * @param sortKey    Column the list is sorted by
+     * @param position   Position in the list that is shown first
+     * @param hints      Chunk starts of the cursor over the same list that this one replaces,
+     *                   see {@link #copyChunkStarts}, or null if there is none
+     */
+    public static SodaChunkedCursor open(ContentResolver resolver, Uri listUri,
+                                         String[] projection, String sortKey, int position,
+                                         SparseArray<String[]> hints) {
+        SodaChunkedCursor cursor = new SodaChunkedCursor(resolver, listUri, projection, sortKey,
+                count(resolver, listUri), hints);
+        int chunks = cursor.getChunkCount();
+        int first = 0;
+        int last = chunks - 1;
+        if (chunks > MAX_CHUNKS) {
+            first = Math.max(0, Math.min(position / CHUNK_ROWS, chunks - 1 - PREFETCH_CHUNKS));
+            last = first + PREFETCH_CHUNKS;
+        }
+        for (int chunk = first; chunk <= last; chunk++) {
+            int startIndex = cursor.findStart(chunk);
+            int startChunk = cursor.mChunkStarts.keyAt(startIndex);
+            int hintChunk = cursor.findHint(startChunk, chunk);
+            Chunk loaded = cursor.load(chunk, startChunk, cursor.mChunkStarts.valueAt(startIndex),
+                    hintChunk, hintChunk == -1 ? null : cursor.mHints.get(hintChunk));
+            cursor.keep(loaded);
+            if (loaded.starts.get(chunk + 1) == null) {
+                break;
+            }
+        }
+        cursor.mCurrentChunk = first;
+
+        // The list changes whenever any soda changes
+        cursor.setNotificationUri(resolver, SodaEntry.CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Return a copy of the chunk starts known so far, for the cursor that replaces this one.
+     */
+    public SparseArray<String[]> copyChunkStarts() {
+        SparseArray<String[]> starts = mHints.clone();
+        for (int i = 0; i < mChunkStarts.size(); i++) {
+            starts.put(mChunkStarts.keyAt(i), mChunkStarts.valueAt(i));
+        }
+        return starts;
+    }
+
+    /**
+     * Return the rows of the list, each an array of column values, with null for the rows
+     * that aren't loaded. The rows are never changed once loaded, so the copy can be read on
+     * any thread.
+     */
+    public Object[][] copyRows() {
+        Object[][] rows = new Object[mCount][];
+        for (int i = 0; i < mChunks.size(); i++) {
+            Object[][] chunk = mChunks.valueAt(i);
+            int start = mChunks.keyAt(i) * CHUNK_ROWS;
+            System.arraycopy(chunk, 0, rows, start, Math.min(chunk.length, mCount - start));
+        }
+        return rows;
+    }
+
+    /**
+     * Return the position of the loaded row whose value in the given column is the given ID,
+     * or -1 if no loaded row has it. Doesn't move the cursor.
+     */
+    public int findLoadedRow(int column, long id) {
+        for (int i = 0; i < mChunks.size(); i++) {
+            Object[][] chunk = mChunks.valueAt(i);
+            for (int row = 0; row < chunk.length; row++) {
+                Object value = chunk[row][column];
+                if (value instanceof Number && ((Number) value).longValue() == id) {
+                    return mChunks.keyAt(i) * CHUNK_ROWS + row;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remember how the rows changed compared to the cursor this one replaces.
+     */
+    void setChanges(Cursor replaced, DiffUtil.DiffResult changes) {
+        mReplaced = new WeakReference<>(replaced);
+        mChanges = changes;
+    }
+
+    /**
+     * Return the changes compared to the given cursor, or null if this cursor doesn't replace
+     * that one, and forget them either way.
+     */
+    DiffUtil.DiffResult takeChanges(Cursor shown) {
+        DiffUtil.DiffResult changes = mReplaced != null && shown != null
+                && mReplaced.get() == shown ? mChanges : null;
+        mReplaced = null;
+        mChanges = null;
+        return changes;
+    }
+
+    /**
+     * Set the listener told about rows that finished loading, or null for none.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Return whether the current row is loaded. Rows that aren't read as nulls.
+     */
+    public boolean isRowLoaded() {
+        return mRow != null;
+    }
+
+    private int getChunkCount() {
+        return (mCount + CHUNK_ROWS - 1) / CHUNK_ROWS;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int chunk = newPosition / CHUNK_ROWS;
+        if (chunk != mCurrentChunk) {
+            mDirection = chunk > mCurrentChunk ? 1 : -1;
+            mCurrentChunk = chunk;
+            evictChunks();
+        }
+        Object[][] rows = mChunks.get(chunk);
+        int row = newPosition % CHUNK_ROWS;
+        mRow = rows != null && row < rows.length ? rows[row] : null;
+        requestChunk();
+        return true;
+    }
+
+    /**
+     * Drop the chunks outside of the window around the current chunk.
+     */
+    private void evictChunks() {
+        if (getChunkCount() <= MAX_CHUNKS) {
+            return;
+        }
+        int low = mCurrentChunk - (mDirection > 0 ? KEEP_BEHIND_CHUNKS : PREFETCH_CHUNKS);
+        int high = mCurrentChunk + (mDirection > 0 ? PREFETCH_CHUNKS : KEEP_BEHIND_CHUNKS);
+        for (int i = mChunks.size() - 1; i >= 0; i--) {
+            int chunk = mChunks.keyAt(i);
+            if (chunk < low || chunk > high) {
+                mChunks.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Return whether the chunk is within the window around the current chunk.
+     */
+    private boolean isWanted(int chunk) {
+        int ahead = (chunk - mCurrentChunk) * mDirection;
+        return chunk >= 0 && chunk < getChunkCount()
+                && ahead >= -KEEP_BEHIND_CHUNKS && ahead <= PREFETCH_CHUNKS;
+    }
+
+    /**
+     * Start loading the most needed missing chunk, unless one is loading already: the current
+     * chunk, then the ones ahead of it, then the one behind it.
+     */
+    private void requestChunk() {
+        if (mLoadingChunk != -1 || mReleased) {
+            return;
+        }
+        int target = -1;
+        for (int ahead = 0; ahead <= PREFETCH_CHUNKS + KEEP_BEHIND_CHUNKS && target == -1;
+             ahead++) {
+            int offset = ahead <= PREFETCH_CHUNKS ? ahead : PREFETCH_CHUNKS - ahead;
+            int chunk = mCurrentChunk + offset * mDirection;
+            if (isWanted(chunk) && mChunks.get(chunk) == null) {
+                target = chunk;
+            }
+        }
+        if (target == -1) {
+            return;
+        }
+
+        int startIndex = findStart(target);
+        final int chunk = target;
+        final int startChunk = mChunkStarts.keyAt(startIndex);
+        final String[] start = mChunkStarts.valueAt(startIndex);
+        final int hintChunk = findHint(startChunk, chunk);
+        final String[] hint = hintChunk == -1 ? null : mHints.get(hintChunk);
+        mLoadingChunk = chunk;
+        sLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mReleased) {
+                    return;
+                }
+                Chunk loaded = null;
+                try {
+                    loaded = load(chunk, startChunk, start, hintChunk, hint);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to load rows " + chunk * CHUNK_ROWS, e);
+                }
+                final Chunk result = loaded;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onChunkLoaded(chunk, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Keep a chunk loaded in the background if it is still wanted and load the next one.
+     * A chunk that failed to load is tried again the next time one of its rows is read.
+     */
+    private void onChunkLoaded(int chunk, Chunk loaded) {
+        mLoadingChunk = -1;
+        if (mReleased || loaded == null) {
+            return;
+        }
+        if (isWanted(chunk)) {
+            keep(loaded);
+            int start = chunk * CHUNK_ROWS;
+            if (mPos >= start && mPos < start + CHUNK_ROWS) {
+                onMove(mPos, mPos);
+            }
+            if (mListener != null && loaded.rows.length > 0) {
+                mListener.onRowsLoaded(start, loaded.rows.length);
+            }
+        } else {
+            // Still worth knowing where the chunks start
+            keepStarts(loaded);
+        }
+        requestChunk();
+    }
+
+    /**
+     * Return the index in {@link #mChunkStarts} of the closest chunk at or before the given
+     * one whose start is known. The keys of the starts are sorted, and chunk 0 always has one.
+     */
+    private int findStart(int chunk) {
+        int startIndex = mChunkStarts.size() - 1;
+        while (mChunkStarts.keyAt(startIndex) > chunk) {
+            startIndex--;
+        }
+        return startIndex;
+    }
+
+    /**
+     * Return the closest chunk at or before the given one with a handed over start that is
+     * past the known start, or -1 if there is none.
+     */
+    private int findHint(int startChunk, int chunk) {
+        int hintChunk = -1;
+        for (int i = 0; i < mHints.size() && mHints.keyAt(i) <= chunk; i++) {
+            if (mHints.keyAt(i) > startChunk) {
+                hintChunk = mHints.keyAt(i);
+            }
+        }
+        return hintChunk;
+    }
+
+    private void keep(Chunk loaded) {
+        keepStarts(loaded);
+        mChunks.put(loaded.chunk, loaded.rows);
+    }
+
+    private void keepStarts(Chunk loaded) {
+        for (int i = 0; i < loaded.starts.size(); i++) {
+            mChunkStarts.put(loaded.starts.keyAt(i), loaded.starts.valueAt(i));
+            mHints.remove(loaded.starts.keyAt(i));
+        }
+        if (loaded.staleHint != -1) {
+            // The list changed before that chunk, which most likely moved the ones after it too
+            for (int i = mHints.size() - 1; i >= 0 && mHints.keyAt(i) >= loaded.staleHint; i--) {
+                mHints.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Read the given chunk from the provider, first skipping over the chunks between it and
+     * the earlier chunk with the given start. A handed over start of a chunk in between is
+     * checked first and skipped from if it holds. Runs on a background thread and doesn't
+     * touch the state of the cursor. If the list got shorter since it was counted, the chunk
+     * can have fewer rows than it should, or none.
+     *
+     * @param hintChunk Chunk of the handed over start, or -1 if there is none
+     * @param hint      Handed over start of that chunk, or null
+     */
+    private Chunk load(int chunk, int startChunk, String[] start, int hintChunk, String[] hint) {
+        Chunk loaded = new Chunk(chunk);
+        if (hint != null) {
+            // The chunk starts there if that leaves as many rows before it as chunks before it
+            if (mCount - count(mResolver, after(hint).build()) == hintChunk * CHUNK_ROWS) {
+                loaded.starts.put(hintChunk, hint);
+                startChunk = hintChunk;
+                start = hint;
+            } else {
+                loaded.staleHint = hintChunk;
+            }
+        }
+        String[] keyProjection = mSortKey.equals(SodaEntry._ID)
+                ? new String[]{SodaEntry._ID} : new String[]{SodaEntry._ID, mSortKey};
+
+        if (startChunk < chunk) {
+            Cursor keys = query(keyProjection, start, (chunk - startChunk) * CHUNK_ROWS);
+            try {
+                for (int skipped = startChunk + 1; skipped <= chunk; skipped++) {
+                    if (!keys.moveToPosition((skipped - startChunk) * CHUNK_ROWS - 1)) {
+                        return loaded;
+                    }
+                    start = readStart(keys);
+                    loaded.starts.put(skipped, start);
+                }
+            } finally {
+                keys.close();
+            }
+        }
+
+        Cursor cursor = query(mColumns, start, CHUNK_ROWS);
+        try {
+            int columns = cursor.getColumnCount();
+            Object[][] rows = new Object[cursor.getCount()][];
+            for (int row = 0; cursor.moveToPosition(row); row++) {
+                Object[] values = new Object[columns];
+                for (int column = 0; column < columns; column++) {
+                    values[column] = readValue(cursor, column);
+                }
+                rows[row] = values;
+            }
+            loaded.rows = rows;
+            if (rows.length == CHUNK_ROWS && cursor.moveToLast()) {
+                loaded.starts.put(chunk + 1, readStart(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return loaded;
+    }
+
+    /**
+     * Query one page of the list with the given columns, starting after the given row.
+     */
+    private Cursor query(String[] projection, String[] start, int pageSize) {
+        Uri.Builder pageUri = after(start)
+                .appendQueryParameter(SodaEntry.QUERY_PAGE_SIZE, String.valueOf(pageSize));
+        Cursor cursor = mResolver.query(pageUri.build(), projection, null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("No cursor for " + pageUri);
+        }
+        return cursor;
+    }
+
+    /**
+     * Return a builder of the list URI restricted to the rows after the given row.
+     */
+    private Uri.Builder after(String[] start) {
+        Uri.Builder uri = mListUri.buildUpon();
+        if (start != LIST_START) {
+            uri.appendQueryParameter(SodaEntry.QUERY_AFTER_KEY, start[0])
+                    .appendQueryParameter(SodaEntry.QUERY_AFTER_ID, start[1]);
+        }
+        return uri;
+    }
+
+    /**
+     * Count the rows of the list with the given URI.
+     */
+    private static int count(ContentResolver resolver, Uri listUri) {
+        Cursor counter = resolver.query(listUri, new String[]{SodaEntry._COUNT},
+                null, null, null);
+        if (counter == null) {
+            return 0;
+        }
+        try {
+            return counter.moveToFirst() ? counter.getInt(0) : 0;
+        } finally {
+            counter.close();
+        }
+    }
+
+    /**
+     * Return the start of the chunk after the current row: its sort key and ID.
+     */
+    private String[] readStart(Cursor cursor) {
+        return new String[]{
+                cursor.getString(cursor.getColumnIndexOrThrow(mSortKey)),
+                cursor.getString(cursor.getColumnIndexOrThrow(SodaEntry._ID))};
+    }
+
+    private static Object readValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case FIELD_TYPE_NULL:
+                return null;
+            case FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mReleased = true;
+        mListener = null;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    private Object getValue(int column) {
+        return mRow == null ? null : mRow[column];
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = getValue(column);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getValue(column) == null;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = getValue(column);
+        return value == null || value instanceof String ? (String) value : value.toString();
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = getValue(column);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = getValue(column);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = getValue(column);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    /**
+     * Rows of a chunk read in the background, along with the starts of the chunks found on
+     * the way to it and the handed over start found wrong, if any.
+     */
+    private static class Chunk {
+        final int chunk;
+        final SparseArray<String[]> starts = new SparseArray<>();
+        Object[][] rows = new Object[0][];
+        int staleHint = -1;
+
+        Chunk(int chunk) {
+            this.chunk = chunk;
+        }
+    }
+}
@@ -1,116 +1,372 @@
 package net.swallowsnest.sodainventory;
 
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.net.Uri;
-import android.text.TextUtils;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
-import android.widget.CursorAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaRecord;
+
+import java.util.List;
 
 /**
- * {@link SodaCursorAdapter} is an adapter for a list or grid view
- * that uses a {@link Cursor} of soda data as its data source. This adapter knows
- * how to create list items for each row of soda data in the {@link Cursor}.
+ * {@link SodaCursorAdapter} is an adapter for a {@link RecyclerView} that uses a
+ * {@link Cursor} of soda data as its data source. This adapter knows how to create list items
+ * for each row of soda data in the {@link Cursor}.
+ * <p>
+ * Binding a row doesn't allocate: the views and text buffers live in the view holder, the
+ * column indices are looked up once per swap and one click handler serves every row.
+ * <p>
+ * Rows of a {@link SodaChunkedCursor} that aren't loaded yet are shown blank and rebound once
+ * they arrive. A chunked cursor that replaces the one shown brings along which rows changed,
+ * worked out by its loader, so only those are rebound. Sales waiting in the sell buffer only
+ * rebind the quantity of their soda.
  */
-public class SodaCursorAdapter extends CursorAdapter {
+public class SodaCursorAdapter extends RecyclerView.Adapter<SodaCursorAdapter.SodaViewHolder> {
+
+    /**
+     * Callback for clicks on a soda in the list.
+     */
+    public interface Listener {
+        /**
+         * Called when the user clicks the soda with the given ID.
+         */
+        void onSodaClicked(long id);
+    }
+
+    /**
+     * Payload of a row whose pending sales changed, which only rebinds its quantity
+     */
+    private static final Object PAYLOAD_PENDING_SALES = new Object();
+
+    private final Context mContext;
+    private final Listener mListener;
+
+    /**
+     * Buffer that sell taps go through, also used to show sales that aren't written yet
+     */
+    private final SodaSellBuffer mSellBuffer;
+
+    /**
+     * Loader for the product thumbnails and the size they are shown at
+     */
+    private final SodaImageLoader mImageLoader;
+    private final int mImageSizePx;
+
+    /**
+     * Cursor currently shown, or null if there is none
+     */
+    private Cursor mCursor;
+    private int mCount;
+
+    /**
+     * Column indices of the soda attributes, resolved once per swap
+     */
+    private int mIdColumnIndex;
+    private int mNameColumnIndex;
+    private int mQuantityColumnIndex;
+    private int mPriceColumnIndex;
+    private int mImageColumnIndex;
+
+    /**
+     * Click handler shared by the row and sell button of every view holder
+     */
+    private final View.OnClickListener mClickHandler = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            SodaViewHolder holder = (SodaViewHolder) view.getTag(R.id.soda_view_holder);
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            Cursor cursor = moveToPosition(position);
+            if (!isRowLoaded(cursor)) {
+                return;
+            }
+            long id = cursor.getLong(mIdColumnIndex);
+
+            if (view.getId() == R.id.list_sell_soda) {
+                // Don't sell more than what is shown as in stock. The buffer writes the sale
+                // later through the provider's atomic sell, so quick taps add up.
+                if (cursor.getInt(mQuantityColumnIndex) - mSellBuffer.getPendingSales(id) > 0) {
+                    mSellBuffer.sell(id);
+                }
+            } else {
+                mListener.onSodaClicked(id);
+            }
+        }
+    };
+
+    /**
+     * Rebinds the rows of a chunked cursor once they are loaded
+     */
+    private final SodaChunkedCursor.Listener mChunkListener = new SodaChunkedCursor.Listener() {
+        @Override
+        public void onRowsLoaded(int start, int count) {
+            notifyItemRangeChanged(start, count);
+        }
+    };
 
     /**
      * Constructs a new {@link SodaCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param context    The context
+     * @param sellBuffer The buffer that collects sales made from the list
+     * @param listener   The listener for clicks on a soda
      */
-    public SodaCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0);
+    public SodaCursorAdapter(Context context, SodaSellBuffer sellBuffer, Listener listener) {
+        mContext = context;
+        mSellBuffer = sellBuffer;
+        mListener = listener;
+        mImageLoader = SodaImageLoader.getInstance(context);
+        mImageSizePx = context.getResources().getDimensionPixelSize(R.dimen.list_image_size);
+        setHasStableIds(true);
     }
 
     /**
-     * Makes a new blank list item view. No data is set (or bound) to the views yet.
-     *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * Show the given cursor, or nothing if it is null. The cursor still belongs to the caller,
+     * so it is never closed here. If it is a chunked cursor that replaces the one shown, only
+     * the rows that were added, removed or changed are rebound.
+     */
+    public void swapCursor(Cursor cursor) {
+        DiffUtil.DiffResult changes = null;
+        if (mCursor instanceof SodaChunkedCursor) {
+            ((SodaChunkedCursor) mCursor).setListener(null);
+        }
+        if (cursor instanceof SodaChunkedCursor) {
+            SodaChunkedCursor chunked = (SodaChunkedCursor) cursor;
+            chunked.setListener(mChunkListener);
+            changes = chunked.takeChanges(mCursor);
+        }
+
+        mCursor = cursor;
+        mCount = cursor == null ? 0 : cursor.getCount();
+        if (cursor != null) {
+            mIdColumnIndex = cursor.getColumnIndexOrThrow(SodaEntry._ID);
+            mNameColumnIndex = cursor.getColumnIndexOrThrow(SodaEntry.COLUMN_NAME);
+            mQuantityColumnIndex = cursor.getColumnIndexOrThrow(SodaEntry.COLUMN_QUANTITY);
+            mPriceColumnIndex = cursor.getColumnIndexOrThrow(SodaEntry.COLUMN_PRICE);
+            mImageColumnIndex = cursor.getColumnIndex(SodaEntry.COLUMN_IMAGE);
+        }
+
+        if (changes == null) {
+            notifyDataSetChanged();
+        } else {
+            changes.dispatchUpdatesTo(this);
+        }
+    }
+
+    /**
+     * Rebind the quantity of the soda with the given ID, whose pending sales changed, if it
+     * is loaded.
+     */
+    public void notifyPendingSalesChanged(long id) {
+        int position = -1;
+        if (mCursor instanceof SodaChunkedCursor) {
+            position = ((SodaChunkedCursor) mCursor).findLoadedRow(mIdColumnIndex, id);
+        } else if (mCursor != null) {
+            for (int row = 0; row < mCount && position == -1; row++) {
+                if (moveToPosition(row).getLong(mIdColumnIndex) == id) {
+                    position = row;
+                }
+            }
+        }
+        if (position != -1) {
+            notifyItemChanged(position, PAYLOAD_PENDING_SALES);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mCount;
+    }
+
+    /**
+     * Return the ID of the soda at the position, or a negative ID unique to the position for
+     * a row that isn't loaded yet.
      */
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+    public long getItemId(int position) {
+        Cursor cursor = moveToPosition(position);
+        return isRowLoaded(cursor) ? cursor.getLong(mIdColumnIndex) : -1 - position;
+    }
+
+    /**
+     * Makes a new blank list item and its view holder. No data is set (or bound) to the views yet.
+     */
+    @Override
+    public SodaViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         // Inflate a list item view using the layout specified in list_item.xml
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        SodaViewHolder holder = new SodaViewHolder(view);
+
+        view.setTag(R.id.soda_view_holder, holder);
+        view.setOnClickListener(mClickHandler);
+        holder.sellButton.setTag(R.id.soda_view_holder, holder);
+        holder.sellButton.setOnClickListener(mClickHandler);
+        return holder;
     }
 
     /**
-     * This method binds the soda data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current soda can be set on the name TextView
-     * in the list item layout.
-     *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * Rows whose pending sales changed only get their quantity rebound. The only payload is
+     * {@link #PAYLOAD_PENDING_SALES}, and any other change of the row comes without one.
      */
     @Override
-    public void bindView(View view, final Context context, Cursor cursor) {
-        // Find individual views that we want to modify in the list item layout
-        final TextView nameTextView = (TextView) view.findViewById(R.id.soda_name);
-        final TextView quantityTextView = (TextView) view.findViewById(R.id.soda_quantity);
-        final TextView priceTextView = (TextView) view.findViewById(R.id.soda_price);
-        Button sellButton = (Button) view.findViewById(R.id.list_sell_soda);
-
-        // Find the columns of soda attributes that we're interested in
-        int idColumnIndex = cursor.getColumnIndex(SodaEntry._ID);
-        int nameColumnIndex = cursor.getColumnIndex(SodaEntry.COLUMN_NAME);
-        int quantityColumnIndex = cursor.getColumnIndex(SodaEntry.COLUMN_QUANTITY);
-        int priceColumnIndex = cursor.getColumnIndex(SodaEntry.COLUMN_PRICE);
-
-        // Read the soda attributes from the Cursor for the current soda
-        int rowId = cursor.getInt(idColumnIndex);
-        final String sodaName = cursor.getString(nameColumnIndex);
-        final String sodaQuantity = cursor.getString(quantityColumnIndex);
-        String sodaPrice = cursor.getString(priceColumnIndex);
-
-        // If the soda price is empty string or null, then use some default text
-        // that says "Unknown price", so the TextView isn't blank.
-        if (TextUtils.isEmpty(sodaPrice)) {
-            sodaPrice = context.getString(R.string.unknown_price);
+    public void onBindViewHolder(SodaViewHolder holder, int position, List<Object> payloads) {
+        Cursor cursor = moveToPosition(position);
+        if (payloads.isEmpty() || !isRowLoaded(cursor)) {
+            onBindViewHolder(holder, position);
+        } else {
+            bindQuantity(holder, cursor);
         }
+    }
 
-        // Update the TextViews with the attributes for the current soda
-        nameTextView.setText(sodaName);
-        nameTextView.setTag(rowId);
-        quantityTextView.setText(sodaQuantity);
-        priceTextView.setText(sodaPrice);
+    /**
+     * This method binds the soda data at the given position to the views of the view holder.
+     * For example, the name for the current soda is set on the name TextView.
+     */
+    @Override
+    public void onBindViewHolder(SodaViewHolder holder, int position) {
+        Cursor cursor = moveToPosition(position);
+        if (!isRowLoaded(cursor)) {
+            holder.nameTextView.setText(null);
+            holder.quantityTextView.setText(null);
+            holder.priceTextView.setText(null);
+            mImageLoader.load(null, holder.imageView, mImageSizePx);
+            return;
+        }
 
-        sellButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                ContentValues values = new ContentValues();
-                int sellOne = Integer.valueOf(quantityTextView.getText().toString());
+        cursor.copyStringToBuffer(mNameColumnIndex, holder.nameBuffer);
+        holder.nameTextView.setText(holder.nameBuffer.data, 0, holder.nameBuffer.sizeCopied);
 
-                if (sellOne == 0) {
-                    return;
-                }
-                sellOne = --sellOne;
+        bindQuantity(holder, cursor);
 
-                values.put(SodaEntry.COLUMN_QUANTITY, sellOne);
-                int rowid = (Integer) nameTextView.getTag();
+        // If the soda price is empty, then use some default text
+        // that says "Unknown price", so the TextView isn't blank.
+        if (cursor.isNull(mPriceColumnIndex)) {
+            holder.priceTextView.setText(R.string.unknown_price);
+        } else {
+            int length = SodaRecord.formatPrice(cursor.getLong(mPriceColumnIndex),
+                    holder.priceChars);
+            holder.priceTextView.setText(holder.priceChars, 0, length);
+        }
 
-                Uri currentSodaUri = ContentUris.withAppendedId(SodaEntry.CONTENT_URI, rowid);
-                int rowAffected = context.getContentResolver().update(currentSodaUri, values, null, null);
+        // Only the already scaled thumbnail is ever shown here, decoding happens in the
+        // background
+        if (mImageColumnIndex == -1 || cursor.isNull(mImageColumnIndex)) {
+            mImageLoader.load(null, holder.imageView, mImageSizePx);
+        } else {
+            // A view holder mostly gets rebound to the same soda, so the name and cache key
+            // are only made again when the photo changed
+            cursor.copyStringToBuffer(mImageColumnIndex, holder.imageBuffer);
+            if (!holder.hasImage(holder.imageBuffer)) {
+                holder.imageName = new String(holder.imageBuffer.data, 0,
+                        holder.imageBuffer.sizeCopied);
+                holder.imageKey = SodaImageLoader.getKey(holder.imageName, mImageSizePx);
             }
+            mImageLoader.load(holder.imageName, holder.imageKey, holder.imageView, mImageSizePx);
+        }
+    }
+
+    /**
+     * Show the stock of the current row minus any sales that are still on their way to the
+     * database.
+     */
+    private void bindQuantity(SodaViewHolder holder, Cursor cursor) {
+        int quantity = cursor.getInt(mQuantityColumnIndex)
+                - mSellBuffer.getPendingSales(cursor.getLong(mIdColumnIndex));
+        int length = formatInt(quantity, holder.quantityChars);
+        holder.quantityTextView.setText(holder.quantityChars, 0, length);
+    }
 
-        });
+    /**
+     * Move the cursor to the given list position and return it.
+     */
+    private Cursor moveToPosition(int position) {
+        mCursor.moveToPosition(position);
+        return mCursor;
+    }
 
+    /**
+     * Return whether the current row of the cursor is there to be shown.
+     */
+    private static boolean isRowLoaded(Cursor cursor) {
+        return !(cursor instanceof SodaChunkedCursor)
+                || ((SodaChunkedCursor) cursor).isRowLoaded();
     }
 
-}
+    /**
+     * Write the decimal digits of the value into the end-aligned buffer, then move them
+     * to the front. Returns the number of characters written.
+     */
+    private static int formatInt(int value, char[] buffer) {
+        boolean negative = value < 0;
+        long remaining = Math.abs((long) value);
+        int start = buffer.length;
+        do {
+            buffer[--start] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (negative) {
+            buffer[--start] = '-';
+        }
+        int length = buffer.length - start;
+        System.arraycopy(buffer, start, buffer, 0, length);
+        return length;
+    }
 
+    /**
+     * Holds the views of one list item together with reusable text buffers.
+     */
+    static class SodaViewHolder extends RecyclerView.ViewHolder {
+        final TextView nameTextView;
+        final TextView quantityTextView;
+        final TextView priceTextView;
+        final Button sellButton;
+        final ImageView imageView;
+
+        final CharArrayBuffer nameBuffer = new CharArrayBuffer(64);
+        final char[] priceChars = new char[21];
+        final char[] quantityChars = new char[11];
+
+        /**
+         * Photo last bound to this holder and its thumbnail key
+         */
+        final CharArrayBuffer imageBuffer = new CharArrayBuffer(64);
+        String imageName;
+        String imageKey;
+
+        SodaViewHolder(View view) {
+            super(view);
+            // Find individual views that we want to modify in the list item layout
+            nameTextView = (TextView) view.findViewById(R.id.soda_name);
+            quantityTextView = (TextView) view.findViewById(R.id.soda_quantity);
+            priceTextView = (TextView) view.findViewById(R.id.soda_price);
+            sellButton = (Button) view.findViewById(R.id.list_sell_soda);
+            imageView = (ImageView) view.findViewById(R.id.soda_image);
+        }
 
+        /**
+         * Return whether the photo name in the buffer is the one last bound to this holder.
+         */
+        boolean hasImage(CharArrayBuffer buffer) {
+            if (imageName == null || imageName.length() != buffer.sizeCopied) {
+                return false;
+            }
+            for (int i = 0; i < buffer.sizeCopied; i++) {
+                if (imageName.charAt(i) != buffer.data[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link SodaImageLoader} shows product photos as thumbnails. Thumbnails are kept in a memory
+ * LRU cache with a fixed byte budget and in a disk cache of pre-scaled JPEG files. Full size
+ * photos are only decoded on a background thread, downsampled with inSampleSize, the first
+ * time a thumbnail of a given size is needed.
+ * <p>
+ * Photos are stored in app-private files under {@link #IMAGES_DIR}, and the soda table only
+ * holds their file names. The provider deletes the file of a photo once no soda uses it.
+ */
+public class SodaImageLoader {
+
+    private static final String LOG_TAG = SodaImageLoader.class.getSimpleName();
+
+    /**
+     * Directory inside the app's files directory that holds the product photos
+     */
+    public static final String IMAGES_DIR = SodaEntry.IMAGES_DIR;
+
+    /**
+     * Directory inside the app's cache directory that holds the scaled thumbnails
+     */
+    private static final String THUMBNAILS_DIR = "thumbnails";
+
+    /**
+     * Upper limit for the disk cache of thumbnails
+     */
+    private static final long MAX_DISK_CACHE_BYTES = 10 * 1024 * 1024;
+
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    private static SodaImageLoader sInstance;
+
+    private final Context mContext;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(2);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Thumbnails in the disk cache by file name with their sizes, least recently written
+     * first, and their total size. The directory is listed once, on the first write, and the
+     * entries are kept up to date from then on. Guarded by this loader.
+     */
+    private LinkedHashMap<String, Long> mDiskEntries;
+    private long mDiskBytes;
+
+    private SodaImageLoader(Context context) {
+        // The directories are only looked up when needed, so nothing touches the disk
+        // on the main thread while binding rows
+        mContext = context;
+
+        // Use an eighth of the memory available to the app for thumbnails
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Return the image loader shared by the whole app.
+     */
+    public static synchronized SodaImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SodaImageLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Return the file a photo with the given name is stored in.
+     */
+    public File getImageFile(String imageName) {
+        return new File(getImagesDir(), imageName);
+    }
+
+    /**
+     * Create a new, empty file for a photo that is about to be taken.
+     */
+    public File createImageFile() throws IOException {
+        File imagesDir = getImagesDir();
+        imagesDir.mkdirs();
+        return File.createTempFile("soda_", ".jpg", imagesDir);
+    }
+
+    private File getImagesDir() {
+        return new File(mContext.getFilesDir(), IMAGES_DIR);
+    }
+
+    private File getThumbnailsDir() {
+        return new File(mContext.getCacheDir(), THUMBNAILS_DIR);
+    }
+
+    /**
+     * Return the cache key of the thumbnail of the photo with the given name at the given size.
+     * Lists that bind the same photo over and over can keep the key instead of making it anew.
+     */
+    public static String getKey(String imageName, int sizePx) {
+        return imageName + "_" + sizePx;
+    }
+
+    /**
+     * Show a thumbnail of the photo with the given name in the image view, scaled to fit a
+     * square of the given size. If the view is bound to another photo before this one is
+     * ready, it is left alone.
+     */
+    public void load(String imageName, ImageView imageView, int sizePx) {
+        load(imageName, imageName == null ? null : getKey(imageName, sizePx), imageView, sizePx);
+    }
+
+    /**
+     * Like {@link #load(String, ImageView, int)}, with the key from {@link #getKey} made by
+     * the caller.
+     */
+    public void load(final String imageName, final String key, final ImageView imageView,
+                     final int sizePx) {
+        if (imageName == null) {
+            imageView.setTag(R.id.soda_image_key, null);
+            imageView.setImageDrawable(null);
+            return;
+        }
+
+        imageView.setTag(R.id.soda_image_key, key);
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            imageView.setImageBitmap(cached);
+            return;
+        }
+
+        imageView.setImageDrawable(null);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = loadThumbnail(imageName, key, sizePx);
+                if (bitmap == null) {
+                    return;
+                }
+                mMemoryCache.put(key, bitmap);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The view may have been recycled for another soda in the meantime
+                        if (key.equals(imageView.getTag(R.id.soda_image_key))) {
+                            imageView.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Read the thumbnail from the disk cache, or make it from the full photo. Runs on a
+     * background thread.
+     */
+    private Bitmap loadThumbnail(String imageName, String key, int sizePx) {
+        File thumbnail = new File(getThumbnailsDir(), key + ".jpg");
+        if (thumbnail.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        File image = getImageFile(imageName);
+        Bitmap bitmap = decodeSampled(image, sizePx);
+        if (bitmap == null) {
+            Log.e(LOG_TAG, "Failed to decode " + image);
+            return null;
+        }
+
+        // Scale the rest of the way down, so the disk cache holds exactly what is shown
+        float scale = Math.min(1f, (float) sizePx / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        if (scale < 1f) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+
+        writeThumbnail(thumbnail, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Decode the image file with the largest power of two sample size that still keeps it
+     * at least as big as the requested size.
+     */
+    private static Bitmap decodeSampled(File image, int sizePx) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        int largestSide = Math.max(options.outWidth, options.outHeight);
+        while (largestSide / (sampleSize * 2) >= sizePx) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(image.getPath(), options);
+    }
+
+    /**
+     * Store a thumbnail in the disk cache and keep the cache within its size limit.
+     */
+    private synchronized void writeThumbnail(File thumbnail, Bitmap bitmap) {
+        FileOutputStream out = null;
+        try {
+            thumbnail.getParentFile().mkdirs();
+            out = new FileOutputStream(thumbnail);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write thumbnail " + thumbnail, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to close thumbnail " + thumbnail, e);
+                }
+            }
+        }
+        trimDiskCache(thumbnail);
+    }
+
+    /**
+     * Account for the thumbnail just written and delete the least recently written ones until
+     * the disk cache fits its limit. Only the first call lists the directory.
+     */
+    private void trimDiskCache(File thumbnail) {
+        if (mDiskEntries == null) {
+            readDiskCache();
+        } else {
+            Long previous = mDiskEntries.remove(thumbnail.getName());
+            if (previous != null) {
+                mDiskBytes -= previous;
+            }
+            long length = thumbnail.length();
+            mDiskEntries.put(thumbnail.getName(), length);
+            mDiskBytes += length;
+        }
+
+        File thumbnailsDir = getThumbnailsDir();
+        Iterator<Map.Entry<String, Long>> entries = mDiskEntries.entrySet().iterator();
+        while (mDiskBytes > MAX_DISK_CACHE_BYTES && entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            new File(thumbnailsDir, entry.getKey()).delete();
+            mDiskBytes -= entry.getValue();
+            entries.remove();
+        }
+    }
+
+    /**
+     * List the thumbnails on disk, oldest first, along with their total size.
+     */
+    private void readDiskCache() {
+        mDiskEntries = new LinkedHashMap<>();
+        mDiskBytes = 0;
+        File[] files = getThumbnailsDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            long length = file.length();
+            mDiskEntries.put(file.getName(), length);
+            mDiskBytes += length;
+        }
+    }
+}
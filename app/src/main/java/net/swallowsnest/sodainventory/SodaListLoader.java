@@ -0,0 +1,151 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v7.util.DiffUtil;
+import android.util.SparseArray;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import java.util.Arrays;
+
+/**
+ * Loads the sodas list as a {@link SodaChunkedCursor}. A reload after the sodas changed opens
+ * the new cursor around the position the list was last scrolled to, so the rows on screen
+ * are there as soon as it is delivered, and hands it the chunk starts the delivered cursor
+ * found, so it doesn't have to skip over the rows up to there again.
+ * <p>
+ * The load also works out which rows changed compared to the delivered cursor, so the list
+ * only rebinds those without diffing anything on the main thread. A row that isn't loaded
+ * only matches the row at the same position of the other cursor if that isn't loaded either.
+ */
+public class SodaListLoader extends CursorLoader {
+
+    private final String mSortKey;
+
+    /**
+     * Reloads the list whenever the sodas change, like the observer of a plain CursorLoader
+     */
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    /**
+     * First position shown in the list, set on the main thread and read by the load
+     */
+    private volatile int mAnchorPosition;
+
+    /**
+     * Cursor delivered last, only used on the main thread
+     */
+    private SodaChunkedCursor mDelivered;
+
+    /**
+     * The delivered cursor as it was when the load was started, read by the load
+     */
+    private volatile Replaced mReplaced;
+
+    /**
+     * @param listUri    URI of the sodas list with its sort and filter parameters
+     * @param projection Columns to load, which must include the ID and the sort key
+     * @param sortKey    Column the list is sorted by
+     */
+    public SodaListLoader(Context context, Uri listUri, String[] projection, String sortKey) {
+        super(context, listUri, projection, null, null, null);
+        mSortKey = sortKey;
+    }
+
+    /**
+     * Remember the first position shown in the list, where the next load starts.
+     */
+    public void setAnchorPosition(int position) {
+        mAnchorPosition = position;
+    }
+
+    @Override
+    protected void onForceLoad() {
+        // The delivered cursor is only closed once the new one is delivered
+        if (mDelivered != null && !mDelivered.isClosed()) {
+            mReplaced = new Replaced(mDelivered);
+        }
+        super.onForceLoad();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Replaced replaced = mReplaced;
+        SodaChunkedCursor cursor = SodaChunkedCursor.open(getContext().getContentResolver(),
+                getUri(), getProjection(), mSortKey, mAnchorPosition,
+                replaced == null ? null : replaced.chunkStarts);
+        if (replaced != null) {
+            // The new cursor isn't delivered yet, so its rows can still be read here
+            cursor.setChanges(replaced.cursor, diff(replaced.rows, cursor.copyRows(),
+                    cursor.getColumnIndexOrThrow(SodaEntry._ID)));
+        }
+        cursor.registerContentObserver(mObserver);
+        return cursor;
+    }
+
+    /**
+     * Work out how the old rows became the new ones. A row that isn't loaded is null.
+     */
+    private static DiffUtil.DiffResult diff(final Object[][] oldRows, final Object[][] newRows,
+                                            final int idColumn) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldRows.length;
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newRows.length;
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                Object[] oldRow = oldRows[oldItemPosition];
+                Object[] newRow = newRows[newItemPosition];
+                if (oldRow == null || newRow == null) {
+                    return oldRow == newRow && oldItemPosition == newItemPosition;
+                }
+                return oldRow[idColumn].equals(newRow[idColumn]);
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return Arrays.equals(oldRows[oldItemPosition], newRows[newItemPosition]);
+            }
+        }, false);
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (!isReset()) {
+            mDelivered = (SodaChunkedCursor) cursor;
+        }
+        super.deliverResult(cursor);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mDelivered = null;
+        mReplaced = null;
+    }
+
+    /**
+     * What a load needs to know about the cursor it replaces, copied on the main thread.
+     */
+    private static class Replaced {
+        final SodaChunkedCursor cursor;
+        final SparseArray<String[]> chunkStarts;
+        final Object[][] rows;
+
+        Replaced(SodaChunkedCursor cursor) {
+            this.cursor = cursor;
+            chunkStarts = cursor.copyChunkStarts();
+            rows = cursor.copyRows();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteDiskIOException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import net.swallowsnest.sodainventory.data.SodaContract;
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * {@link SodaSellBuffer} collects sell taps from the list and writes them behind the UI.
+ * Taps on the same soda are added together in memory and flushed on a background thread
+ * as one provider batch, either after {@link #FLUSH_DELAY_MS} or once
+ * {@link #MAX_PENDING_SALES} taps have piled up, whichever comes first.
+ * <p>
+ * A batch that fails on a locked database, a disk error or a dead provider process is put
+ * back into the buffer and tried again after {@link #RETRY_DELAY_MS}. A batch that fails for
+ * any other reason is written again one soda at a time, so a soda whose sale can never be
+ * written only costs its own sales. Those, and the sales of a soda that was deleted or no
+ * longer has the stock for them, are dropped and reported through
+ * {@link Listener#onSalesDropped}.
+ * <p>
+ * All public methods are meant to be called from the main thread.
+ */
+public class SodaSellBuffer {
+
+    /**
+     * Callback for when the pending sales change, so the list can show them right away.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread whenever sales of the soda with the given ID were added
+         * or dropped.
+         */
+        void onPendingSalesChanged(long id);
+
+        /**
+         * Called on the main thread when the given number of sales of the soda with the given
+         * ID couldn't be written and were dropped.
+         */
+        void onSalesDropped(long id, int count);
+    }
+
+    private static final String LOG_TAG = SodaSellBuffer.class.getSimpleName();
+
+    /**
+     * How long a sale may wait in the buffer before it is written
+     */
+    private static final long FLUSH_DELAY_MS = 500;
+
+    /**
+     * Number of buffered taps that forces a flush without waiting for the delay
+     */
+    private static final int MAX_PENDING_SALES = 20;
+
+    /**
+     * How long to wait before writing the sales of a failed batch again
+     */
+    private static final long RETRY_DELAY_MS = 5000;
+
+    /**
+     * What became of the sales of one soda in a batch
+     */
+    private static final int SOLD = 0;
+    private static final int DROPPED = 1;
+    private static final int RETRY = 2;
+
+    private final ContentResolver mContentResolver;
+    private final Listener mListener;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Sales per soda ID that have not been handed to the provider yet. Guarded by "this".
+     */
+    private final LongSparseArray<Integer> mPending = new LongSparseArray<>();
+
+    /**
+     * Sales per soda ID in the batch that is being written. Guarded by "this".
+     */
+    private final LongSparseArray<Integer> mInFlight = new LongSparseArray<>();
+
+    /**
+     * Sales that were committed, but the list may not have reloaded yet. Guarded by "this".
+     */
+    private final LongSparseArray<Integer> mWritten = new LongSparseArray<>();
+
+    /**
+     * Number of taps in {@link #mPending}. Guarded by "this".
+     */
+    private int mPendingSales;
+
+    /**
+     * Whether a flush is already scheduled. Guarded by "this".
+     */
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            writePendingSales();
+        }
+    };
+
+    public SodaSellBuffer(ContentResolver contentResolver, Listener listener) {
+        mContentResolver = contentResolver;
+        mListener = listener;
+        mThread = new HandlerThread(LOG_TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Buffer the sale of one soda with the given ID.
+     */
+    public void sell(long id) {
+        boolean flushNow;
+        synchronized (this) {
+            mPending.put(id, mPending.get(id, 0) + 1);
+            mPendingSales++;
+            flushNow = mPendingSales >= MAX_PENDING_SALES;
+            if (flushNow) {
+                mHandler.removeCallbacks(mFlush);
+                mHandler.post(mFlush);
+                mFlushScheduled = true;
+            } else if (!mFlushScheduled) {
+                mHandler.postDelayed(mFlush, FLUSH_DELAY_MS);
+                mFlushScheduled = true;
+            }
+        }
+        mListener.onPendingSalesChanged(id);
+    }
+
+    /**
+     * Return the number of sales of the given soda that the list does not show yet,
+     * either because they are still buffered or being written, or because the list has not
+     * reloaded since they were committed.
+     */
+    public synchronized int getPendingSales(long id) {
+        return mPending.get(id, 0) + mInFlight.get(id, 0) + mWritten.get(id, 0);
+    }
+
+    /**
+     * Let the buffer know that the list has reloaded its data, so sales that were already
+     * committed are part of the quantities it shows. Sales of a batch that is still being
+     * written keep counting until it commits.
+     */
+    public synchronized void onDataReloaded() {
+        mWritten.clear();
+    }
+
+    /**
+     * Write all buffered sales right away, e.g. when the activity is paused.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (mPendingSales == 0) {
+                return;
+            }
+            mHandler.removeCallbacks(mFlush);
+            mFlushScheduled = true;
+        }
+        mHandler.postAtFrontOfQueue(mFlush);
+    }
+
+    /**
+     * Write any buffered sales and stop the background thread afterwards.
+     */
+    public void close() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writePendingSales();
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Write the buffered sales as one batch. Runs on the background thread.
+     */
+    private void writePendingSales() {
+        ArrayList<ContentProviderOperation> operations;
+        final long[] ids;
+        final int[] counts;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPendingSales == 0) {
+                return;
+            }
+            operations = new ArrayList<>(mPending.size());
+            ids = new long[mPending.size()];
+            counts = new int[mPending.size()];
+            for (int i = 0; i < mPending.size(); i++) {
+                ids[i] = mPending.keyAt(i);
+                counts[i] = mPending.valueAt(i);
+                operations.add(ContentProviderOperation.newUpdate(SodaEntry.buildSellUri(ids[i]))
+                        .withValue(SodaEntry.KEY_SELL_COUNT, counts[i])
+                        .build());
+                mInFlight.put(ids[i], counts[i]);
+            }
+            mPending.clear();
+            mPendingSales = 0;
+        }
+
+        final int[] outcomes = new int[operations.size()];
+        try {
+            ContentProviderResult[] results = mContentResolver.applyBatch(
+                    SodaContract.CONTENT_AUTHORITY, operations);
+            for (int i = 0; i < results.length; i++) {
+                outcomes[i] = getOutcome(results[i]);
+            }
+        } catch (RemoteException | SQLiteDatabaseLockedException | SQLiteDiskIOException e) {
+            // The batch is one transaction, so none of its sales were written
+            Log.e(LOG_TAG, "Failed to write buffered sales, trying again later", e);
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = RETRY;
+            }
+        } catch (OperationApplicationException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to write buffered sales, writing them one soda at a time", e);
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = writeSales(operations.get(i));
+            }
+        }
+
+        boolean retry = false;
+        synchronized (this) {
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i] == SOLD) {
+                    mWritten.put(ids[i], mWritten.get(ids[i], 0) + counts[i]);
+                } else if (outcomes[i] == RETRY) {
+                    mPending.put(ids[i], mPending.get(ids[i], 0) + counts[i]);
+                    mPendingSales += counts[i];
+                    retry = true;
+                }
+            }
+            mInFlight.clear();
+            if (retry && !mFlushScheduled) {
+                mHandler.postDelayed(mFlush, RETRY_DELAY_MS);
+                mFlushScheduled = true;
+            }
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < outcomes.length; i++) {
+                    if (outcomes[i] == DROPPED) {
+                        mListener.onPendingSalesChanged(ids[i]);
+                        mListener.onSalesDropped(ids[i], counts[i]);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the sales of one soda as a batch of its own and return what became of them.
+     */
+    private int writeSales(ContentProviderOperation operation) {
+        try {
+            return getOutcome(mContentResolver.applyBatch(SodaContract.CONTENT_AUTHORITY,
+                    new ArrayList<>(Collections.singletonList(operation)))[0]);
+        } catch (RemoteException | SQLiteDatabaseLockedException | SQLiteDiskIOException e) {
+            Log.e(LOG_TAG, "Failed to write sales, trying again later: " + operation, e);
+            return RETRY;
+        } catch (OperationApplicationException | RuntimeException e) {
+            Log.e(LOG_TAG, "Dropping sales that can't be written: " + operation, e);
+            return DROPPED;
+        }
+    }
+
+    /**
+     * A sale changes no row if the soda was deleted or doesn't have the stock for all of it.
+     */
+    private static int getOutcome(ContentProviderResult result) {
+        return result.count != null && result.count > 0 ? SOLD : DROPPED;
+    }
+}
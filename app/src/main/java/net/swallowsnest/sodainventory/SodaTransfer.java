@@ -0,0 +1,246 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StatsEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link SodaTransfer} copies the catalog between a file the user picked and the provider's
+ * transfer URIs on a background thread, a buffer at a time, and reports progress on the main
+ * thread. Exports count the sodas going by against the total; imports count the bytes of the
+ * file.
+ * <p>
+ * The provider commits an import in chunks while it is being written, so a file with a bad
+ * soda leaves the sodas before it imported. The failure reaches this side through the pipe
+ * once the provider has read up to the bad soda.
+ */
+public class SodaTransfer {
+
+    /**
+     * Receives the progress of a transfer on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Called with the part of the transfer done so far in percent, or -1 while the total
+         * isn't known.
+         */
+        void onProgress(int percent);
+
+        /**
+         * Called once the transfer is over, with whether every soda was transferred.
+         */
+        void onComplete(boolean success);
+    }
+
+    private static final String LOG_TAG = SodaTransfer.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static SodaTransfer sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private SodaTransfer(Context context) {
+        mContentResolver = context.getContentResolver();
+    }
+
+    /**
+     * Return the transfer shared by the whole app, so transfers run one at a time.
+     */
+    public static synchronized SodaTransfer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SodaTransfer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Export every soda in the given format into the destination.
+     */
+    public void exportTo(final Uri destination, final String format, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    exportNow(destination, format, new Progress(listener));
+                    success = true;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Export to " + destination + " failed", e);
+                }
+                postComplete(listener, success);
+            }
+        });
+    }
+
+    /**
+     * Import the sodas of the source, which is in the given format, as new sodas.
+     */
+    public void importFrom(final Uri source, final String format, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    importNow(source, format, new Progress(listener));
+                    success = true;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Import from " + source + " failed", e);
+                }
+                postComplete(listener, success);
+            }
+        });
+    }
+
+    private void exportNow(Uri destination, String format, Progress progress)
+            throws IOException {
+        long total = countSodas();
+        RecordCounter counter = new RecordCounter(SodaEntry.FORMAT_CSV.equals(format));
+        InputStream in = mContentResolver.openInputStream(SodaEntry.buildTransferUri(format));
+        try {
+            OutputStream out = mContentResolver.openOutputStream(destination, "w");
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    progress.update(counter.count(buffer, read), total);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void importNow(Uri source, String format, Progress progress) throws IOException {
+        AssetFileDescriptor file = mContentResolver.openAssetFileDescriptor(source, "r");
+        long total = file.getLength();
+        InputStream in = file.createInputStream();
+        try {
+            ParcelFileDescriptor pipe = mContentResolver.openFileDescriptor(
+                    SodaEntry.buildTransferUri(format), "w");
+            OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long written = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    written += read;
+                    progress.update(written, total);
+                }
+                // A reliable pipe tells us if the provider has given up on the file
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    pipe.checkError();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the number of sodas from the totals row, or -1 if there is none.
+     */
+    private long countSodas() {
+        Cursor cursor = mContentResolver.query(StatsEntry.CONTENT_URI,
+                new String[]{StatsEntry.COLUMN_SODA_COUNT}, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void postComplete(final Listener listener, final boolean success) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onComplete(success);
+            }
+        });
+    }
+
+    /**
+     * Posts the progress to the main thread whenever the percentage changes.
+     */
+    private class Progress {
+        private final Listener mListener;
+        private int mLastPercent = Integer.MIN_VALUE;
+
+        Progress(Listener listener) {
+            mListener = listener;
+        }
+
+        void update(long done, long total) {
+            final int percent = total <= 0 ? -1 : (int) Math.min(100, done * 100 / total);
+            if (percent == mLastPercent) {
+                return;
+            }
+            mLastPercent = percent;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onProgress(percent);
+                }
+            });
+        }
+    }
+
+    /**
+     * Counts the sodas in an export as it streams by. Every soda ends a line in both formats;
+     * a CSV field may hold line breaks of its own, but only inside quotes, and JSON strings
+     * never do. Quotes and line breaks are single bytes in UTF-8, so bytes can be scanned
+     * without decoding.
+     */
+    private static class RecordCounter {
+        private final boolean mCsv;
+        private boolean mQuoted;
+        private long mLines;
+
+        RecordCounter(boolean csv) {
+            mCsv = csv;
+        }
+
+        /**
+         * Scan the next bytes and return the number of sodas seen so far.
+         */
+        long count(byte[] buffer, int length) {
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[i];
+                if (mCsv && b == '"') {
+                    mQuoted = !mQuoted;
+                } else if (b == '\n' && !mQuoted) {
+                    mLines++;
+                }
+            }
+            // The CSV header ends the first line, the JSON array is closed on the last
+            return Math.max(0, mLines - 1);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package net.swallowsnest.sodainventory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaVersionConflictException;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link SodaWriter} runs inserts, updates, deletes and provider calls on a background thread,
+ * so the UI thread never touches the database. Writes run one at a time in the order they were
+ * handed in, which keeps concurrent edits of the same soda in order, and every callback is
+ * delivered on the main thread once its write is done.
+ * <p>
+ * Screens hand in their callbacks through a {@link CallbackScope} they clear when they are
+ * destroyed, so writes still queued neither keep the screen alive nor call back into it.
+ */
+public class SodaWriter {
+
+    /**
+     * Receives the result of a write on the main thread.
+     */
+    public interface Callback<T> {
+        /**
+         * Called with the result of the write, or the failure value (null or 0) if it threw.
+         */
+        void onComplete(T result);
+    }
+
+    /**
+     * Callbacks of one screen, which are all dropped at once when the screen goes away. Must
+     * only be used on the main thread.
+     */
+    public static class CallbackScope {
+        private final Set<ScopedCallback<?>> mCallbacks = new HashSet<>();
+
+        /**
+         * Return a callback that forwards the result to the given one, unless this scope was
+         * cleared before the write finished.
+         */
+        public <T> Callback<T> add(Callback<T> callback) {
+            ScopedCallback<T> scoped = new ScopedCallback<>(this, callback);
+            mCallbacks.add(scoped);
+            return scoped;
+        }
+
+        /**
+         * Drop every callback that hasn't been called yet, along with whatever they hold on to.
+         */
+        public void clear() {
+            for (ScopedCallback<?> callback : mCallbacks) {
+                callback.mTarget = null;
+            }
+            mCallbacks.clear();
+        }
+    }
+
+    /**
+     * The only reference a queued write has to a callback of a {@link CallbackScope}.
+     */
+    private static class ScopedCallback<T> implements Callback<T> {
+        private final CallbackScope mScope;
+        private Callback<T> mTarget;
+
+        ScopedCallback(CallbackScope scope, Callback<T> target) {
+            mScope = scope;
+            mTarget = target;
+        }
+
+        @Override
+        public void onComplete(T result) {
+            Callback<T> target = mTarget;
+            if (target == null) {
+                return;
+            }
+            mTarget = null;
+            mScope.mCallbacks.remove(this);
+            target.onComplete(result);
+        }
+    }
+
+    private static final String LOG_TAG = SodaWriter.class.getSimpleName();
+
+    /**
+     * Result of {@link #updateAtVersion} when another write changed the soda first
+     */
+    public static final int CONFLICT = -1;
+
+    private static SodaWriter sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private SodaWriter(Context context) {
+        mContentResolver = context.getContentResolver();
+    }
+
+    /**
+     * Return the writer shared by the whole app, so writes from every screen are ordered.
+     */
+    public static synchronized SodaWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SodaWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Insert a row and hand back its content URI, or null if the insert failed.
+     */
+    public void insert(final Uri uri, final ContentValues values, Callback<Uri> callback) {
+        mExecutor.execute(new Write<Uri>(callback, null) {
+            @Override
+            Uri write() {
+                return mContentResolver.insert(uri, values);
+            }
+        });
+    }
+
+    /**
+     * Update rows and hand back the number of rows updated.
+     */
+    public void update(final Uri uri, final ContentValues values, Callback<Integer> callback) {
+        mExecutor.execute(new Write<Integer>(callback, 0) {
+            @Override
+            Integer write() {
+                return mContentResolver.update(uri, values, null, null);
+            }
+        });
+    }
+
+    /**
+     * Update a single soda with a {@link SodaEntry#QUERY_EXPECTED_VERSION} in its URI and hand
+     * back the number of rows updated: 1, 0 if the soda is gone, or {@link #CONFLICT} if it
+     * is still there at another version.
+     */
+    public void updateAtVersion(final Uri uri, final ContentValues values,
+                                Callback<Integer> callback) {
+        mExecutor.execute(new Write<Integer>(callback, 0) {
+            @Override
+            Integer write() {
+                try {
+                    return mContentResolver.update(uri, values, null, null);
+                } catch (SodaVersionConflictException e) {
+                    return CONFLICT;
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete rows and hand back the number of rows deleted.
+     */
+    public void delete(final Uri uri, Callback<Integer> callback) {
+        mExecutor.execute(new Write<Integer>(callback, 0) {
+            @Override
+            Integer write() {
+                return mContentResolver.delete(uri, null, null);
+            }
+        });
+    }
+
+    /**
+     * Run a provider call that writes, like {@code sell}, and hand back its result.
+     */
+    public void call(final Uri uri, final String method, final String arg, final Bundle extras,
+                     Callback<Bundle> callback) {
+        mExecutor.execute(new Write<Bundle>(callback, null) {
+            @Override
+            Bundle write() {
+                return mContentResolver.call(uri, method, arg, extras);
+            }
+        });
+    }
+
+    /**
+     * A write that runs on the executor and posts its result to the main thread.
+     */
+    private abstract class Write<T> implements Runnable {
+        private final Callback<T> mCallback;
+        private final T mFailure;
+
+        Write(Callback<T> callback, T failure) {
+            mCallback = callback;
+            mFailure = failure;
+        }
+
+        abstract T write();
+
+        @Override
+        public void run() {
+            T result;
+            try {
+                result = write();
+            } catch (RuntimeException e) {
+                // The provider rejects invalid values with exceptions, which the UI reports
+                // the same way as a write that changed nothing
+                Log.e(LOG_TAG, "Write failed", e);
+                result = mFailure;
+            }
+            if (mCallback == null) {
+                return;
+            }
+            final T delivered = result;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onComplete(delivered);
+                }
+            });
+        }
+    }
+}
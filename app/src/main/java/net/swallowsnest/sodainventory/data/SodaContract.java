@@ -1,6 +1,7 @@
 package net.swallowsnest.sodainventory.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -11,6 +12,14 @@ public class SodaContract {
 
     public static final String CONTENT_AUTHORITY = "net.swallowsnest.sodainventory";
     public static final String PATH_SODAS = "sodas";
+    public static final String PATH_SELL = "sell";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_METRICS = "metrics";
+    public static final String PATH_SALES = "sales";
+    public static final String PATH_LOW_STOCK = "low_stock";
+    public static final String PATH_TRANSFER = "transfer";
+    public static final String PATH_STORES = "stores";
 
     public static abstract class SodaEntry implements BaseColumns {
 
@@ -18,11 +27,74 @@ public class SodaContract {
 
         public static final String TABLE_NAME = "soda";
         public static final String _ID = BaseColumns._ID;
+
+        /**
+         * Only column of a sodas list query that counts the rows of the list instead, without
+         * its page size or start.
+         */
+        public static final String _COUNT = BaseColumns._COUNT;
+
         public static final String COLUMN_NAME = "name";
         public static final String COLUMN_QUANTITY = "quantity";
         public static final String COLUMN_SOLD = "sold";
+
+        /**
+         * Price in whole cents. See {@link SodaRecord#parsePrice} and
+         * {@link SodaRecord#formatPrice}.
+         */
         public static final String COLUMN_PRICE = "price";
 
+        /**
+         * File name of the product photo, relative to {@link #IMAGES_DIR}. Null if the soda
+         * has no photo.
+         */
+        public static final String COLUMN_IMAGE = "image";
+
+        /**
+         * Directory inside the app's files directory that holds the product photos
+         */
+        public static final String IMAGES_DIR = "images";
+
+        /**
+         * The soda is low on stock once its quantity is at or below this. Zero, the default,
+         * only flags sodas that sold out.
+         */
+        public static final String COLUMN_REORDER_THRESHOLD = "reorder_threshold";
+
+        /**
+         * Version of the row, set by a trigger from one counter for the whole database
+         * whenever the row changes, so it only ever goes up. See {@link SyncEntry}. Writes
+         * that must not overwrite a change they haven't seen pass the version they read as
+         * {@link #QUERY_EXPECTED_VERSION}.
+         */
+        public static final String COLUMN_VERSION = "version";
+
+        /**
+         * Random ID of the soda that is the same on every device it is synced to, unlike
+         * {@link #_ID}. New sodas get one by default.
+         */
+        public static final String COLUMN_SYNC_ID = "sync_id";
+
+        /**
+         * Full-text index over the soda names, kept in sync with the soda table by triggers.
+         * The docid of every row is the _id of its soda.
+         */
+        public static final String FTS_TABLE_NAME = "soda_fts";
+
+        /**
+         * Photos that were taken off their soda by a delete or a new photo, filled in by
+         * triggers until the provider deletes their files. Its only column is
+         * {@link #COLUMN_IMAGE}.
+         */
+        public static final String DISCARDED_IMAGES_TABLE_NAME = "discarded_images";
+
+        public static final String INDEX_NAME = "soda_name_index";
+        public static final String INDEX_NAME_NOCASE = "soda_name_nocase_index";
+        public static final String INDEX_QUANTITY = "soda_quantity_index";
+        public static final String INDEX_SOLD = "soda_sold_index";
+        public static final String INDEX_PRICE = "soda_price_index";
+        public static final String INDEX_SYNC_ID = "soda_sync_id_index";
+
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SODAS);
         public static final String CONTENT_LIST_TYPE =
@@ -31,6 +103,407 @@ public class SodaContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SODAS;
 
+        /**
+         * Query parameters for keyset pagination of the sodas list. {@link #QUERY_PAGE_SIZE}
+         * limits the number of rows, {@link #QUERY_SORT_KEY} names the column to order by
+         * (the ID by default), and {@link #QUERY_AFTER_KEY} plus {@link #QUERY_AFTER_ID} hold
+         * the sort key and ID of the last row of the previous page.
+         */
+        public static final String QUERY_PAGE_SIZE = "page_size";
+        public static final String QUERY_SORT_KEY = "sort_key";
+        public static final String QUERY_AFTER_KEY = "after_key";
+        public static final String QUERY_AFTER_ID = "after_id";
+
+        /**
+         * Query parameter for the direction of the sort, {@link #SORT_ASCENDING} by default.
+         */
+        public static final String QUERY_SORT_ORDER = "sort_order";
+        public static final String SORT_ASCENDING = "asc";
+        public static final String SORT_DESCENDING = "desc";
+
+        /**
+         * Query parameter that keeps only the sodas {@link #FILTER_IN_STOCK} or
+         * {@link #FILTER_OUT_OF_STOCK}.
+         */
+        public static final String QUERY_FILTER = "filter";
+        public static final String FILTER_IN_STOCK = "in_stock";
+        public static final String FILTER_OUT_OF_STOCK = "out_of_stock";
+
+        /**
+         * Query parameters that keep only the sodas priced within a range, in cents, both ends
+         * included. Either end may be left out.
+         */
+        public static final String QUERY_MIN_PRICE = "min_price";
+        public static final String QUERY_MAX_PRICE = "max_price";
+
+        /**
+         * Query parameter of a single soda update that only lets it through if the soda is
+         * still at the given {@link #COLUMN_VERSION}. If another write came first, the update
+         * changes nothing and throws a {@link SodaVersionConflictException} with the version
+         * the soda is at. An update of a soda that is gone returns 0 as usual.
+         */
+        public static final String QUERY_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Build the URI that searches soda names for words starting with the words of the
+         * given query, e.g. "sodas/search/coc".
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(query).build();
+        }
+
+        /**
+         * Formats of the transfer URIs built by {@link #buildTransferUri}, and their MIME types
+         */
+        public static final String FORMAT_CSV = "csv";
+        public static final String FORMAT_JSON = "json";
+        public static final String MIME_TYPE_CSV = "text/csv";
+        public static final String MIME_TYPE_JSON = "application/json";
+
+        /**
+         * Build the URI that streams the whole catalog in the given format, e.g.
+         * "sodas/transfer/csv". Opening it for reading exports every soda; opening it for
+         * writing imports the sodas written to it as new sodas, committed in chunks as they
+         * are parsed. A failed import closes the pipe with the error, which the writer sees
+         * when it writes or closes.
+         */
+        public static Uri buildTransferUri(String format) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_TRANSFER).appendPath(format).build();
+        }
+
+        /**
+         * Provider call that sells a soda atomically. The argument is the soda ID and the
+         * result holds the new {@link #COLUMN_QUANTITY}, {@link #COLUMN_SOLD} and
+         * {@link #COLUMN_VERSION} values, and {@link #KEY_LOW_STOCK} if this sale took the
+         * soda down to its reorder threshold.
+         */
+        public static final String METHOD_SELL = "sell";
+        public static final String KEY_LOW_STOCK = "low_stock";
+
+        /**
+         * Number of sodas to sell, used in the call extras or the values of a sell URI update.
+         */
+        public static final String KEY_SELL_COUNT = "count";
+
+        /**
+         * Provider call that returns the hit and miss counters and the size of the cache that
+         * serves single soda queries.
+         */
+        public static final String METHOD_CACHE_STATS = "cache_stats";
+        public static final String KEY_CACHE_HITS = "hits";
+        public static final String KEY_CACHE_MISSES = "misses";
+        public static final String KEY_CACHE_SIZE = "size";
+
+        /**
+         * Provider call that returns the provider's latency and row counters as text under
+         * {@link #KEY_METRICS}, and the latest slow operations under
+         * {@link #KEY_SLOW_OPERATIONS}. The same counters can be queried from
+         * {@link MetricsEntry#CONTENT_URI}.
+         */
+        public static final String METHOD_METRICS = "metrics";
+        public static final String KEY_METRICS = "metrics";
+        public static final String KEY_SLOW_OPERATIONS = "slow_operations";
+
+        /**
+         * Provider call that syncs the sodas with the server handed to
+         * {@link SodaProvider#setSyncServer}. The result holds the number of changes sent as
+         * {@link #KEY_SYNC_PUSHED} and merged as {@link #KEY_SYNC_PULLED}, or is null if the
+         * server failed; syncing again picks up where that sync stopped.
+         */
+        public static final String METHOD_SYNC = "sync";
+        public static final String KEY_SYNC_PUSHED = "pushed";
+        public static final String KEY_SYNC_PULLED = "pulled";
+
+        /**
+         * Build the URI used to sell the soda with the given ID, e.g. "sodas/3/sell".
+         */
+        public static Uri buildSellUri(long id) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(CONTENT_URI, id), PATH_SELL);
+        }
+
     }
-}
 
+    /**
+     * One-row summary of the whole soda table. Triggers on the soda table keep it up to date,
+     * so reading the totals never has to scan the sodas.
+     */
+    public static abstract class StatsEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "soda_stats";
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_SODA_COUNT = "soda_count";
+        public static final String COLUMN_TOTAL_STOCK = "total_stock";
+        public static final String COLUMN_TOTAL_SOLD = "total_sold";
+
+        /**
+         * Price times sold summed over every soda, in cents
+         */
+        public static final String COLUMN_REVENUE = "revenue";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(SodaEntry.CONTENT_URI, PATH_STATS);
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+    }
+
+    /**
+     * Latency and row counters of the provider, one row per operation and URI pattern that
+     * was used since the provider started. Latencies are in microseconds, and the
+     * percentiles are the upper bounds of power of two histogram buckets.
+     */
+    public static abstract class MetricsEntry {
+
+        public static final String COLUMN_OPERATION = "operation";
+        public static final String COLUMN_URI_PATTERN = "uri_pattern";
+        public static final String COLUMN_CALLS = "calls";
+        public static final String COLUMN_ROWS = "rows";
+        public static final String COLUMN_TOTAL_MICROS = "total_us";
+        public static final String COLUMN_MAX_MICROS = "max_us";
+        public static final String COLUMN_P50_MICROS = "p50_us";
+        public static final String COLUMN_P99_MICROS = "p99_us";
+
+        /**
+         * Space separated counts of the histogram buckets. Bucket i holds the operations
+         * that took less than 2^i microseconds but at least half of that.
+         */
+        public static final String COLUMN_HISTOGRAM = "histogram";
+
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(SodaEntry.CONTENT_URI, PATH_METRICS);
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+    }
+
+    /**
+     * Append-only ledger of sales, one row per sale. Every sale also adds its quantity to the
+     * hourly and daily rollup tables through triggers, both for its soda and for the total
+     * under {@link #TOTAL_SODA_ID}, so sales over any window are read from a handful of
+     * buckets instead of the raw events. Buckets start at whole UTC hours and days: a sale at
+     * timestamp t counts towards the day t - t % 86400000, which begins at midnight UTC and
+     * not at local midnight.
+     * <p>
+     * {@link #CONTENT_URI} serves the sales of all sodas and {@link #buildSodaSalesUri} those
+     * of one soda. Both take the window as {@link #QUERY_FROM} and {@link #QUERY_TO}, which
+     * default to the last day and are widened to whole hours. Without {@link #QUERY_BUCKET}
+     * the result is one row with {@link #COLUMN_SODA_ID}, {@link #COLUMN_WINDOW_START},
+     * {@link #COLUMN_WINDOW_END}, {@link #COLUMN_QUANTITY} and {@link #COLUMN_PER_HOUR}.
+     * With {@link #BUCKET_HOUR} or {@link #BUCKET_DAY} it is one row per bucket that had
+     * sales, with {@link #COLUMN_BUCKET} and {@link #COLUMN_QUANTITY}.
+     */
+    public static abstract class SalesEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "sale_events";
+        public static final String HOURLY_TABLE_NAME = "sales_hourly";
+        public static final String DAILY_TABLE_NAME = "sales_daily";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_SODA_ID = "soda_id";
+
+        /**
+         * Time of the sale in milliseconds since the epoch
+         */
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        public static final String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Start of a rollup bucket in milliseconds since the epoch
+         */
+        public static final String COLUMN_BUCKET = "bucket";
+
+        public static final String COLUMN_WINDOW_START = "window_start";
+        public static final String COLUMN_WINDOW_END = "window_end";
+
+        /**
+         * Average number sold per hour over the window
+         */
+        public static final String COLUMN_PER_HOUR = "per_hour";
+
+        /**
+         * Soda ID the rollups use for the sales of all sodas together
+         */
+        public static final long TOTAL_SODA_ID = 0;
+
+        public static final String QUERY_FROM = "from";
+        public static final String QUERY_TO = "to";
+        public static final String QUERY_BUCKET = "bucket";
+        public static final String BUCKET_HOUR = "hour";
+        public static final String BUCKET_DAY = "day";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(SodaEntry.CONTENT_URI, PATH_SALES);
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SALES;
+
+        /**
+         * Build the URI of the sales of the soda with the given ID, e.g. "sodas/3/sales".
+         */
+        public static Uri buildSodaSalesUri(long id) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id),
+                    PATH_SALES);
+        }
+    }
+
+    /**
+     * The sodas at or below their reorder threshold. Triggers on the soda table add a soda
+     * when a write takes it down to its threshold and remove it when it is restocked above
+     * it, so only the changed rows are ever looked at. Querying {@link #CONTENT_URI} returns
+     * the columns of {@link SodaEntry} for the sodas in the set, plus {@link #COLUMN_SINCE},
+     * longest low first.
+     */
+    public static abstract class LowStockEntry {
+
+        public static final String TABLE_NAME = "low_stock";
+
+        /**
+         * ID of the soda, which is also the primary key of the set
+         */
+        public static final String COLUMN_SODA_ID = "soda_id";
+
+        /**
+         * When the soda went low on stock, in milliseconds since the epoch
+         */
+        public static final String COLUMN_SINCE = "since";
+
+        public static final String INDEX_SINCE = "low_stock_since_index";
+
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(SodaEntry.CONTENT_URI, PATH_LOW_STOCK);
+    }
+
+    /**
+     * The stores of the shop. The sodas are the products every store can carry; how many of
+     * a soda a store has is kept per store in {@link StoreStockEntry}.
+     */
+    public static abstract class StoreEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "stores";
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_NAME = "name";
+
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(SodaEntry.BASE_CONTENT_URI, PATH_STORES);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STORES;
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STORES;
+
+        /**
+         * Build the URI of the stock list of a store, e.g. "stores/2/sodas".
+         */
+        public static Uri buildStoreSodasUri(long storeId) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(CONTENT_URI, storeId),
+                    PATH_SODAS);
+        }
+
+        /**
+         * Build the URI of the stock of one soda in a store, e.g. "stores/2/sodas/3".
+         */
+        public static Uri buildStoreSodaUri(long storeId, long sodaId) {
+            return ContentUris.withAppendedId(buildStoreSodasUri(storeId), sodaId);
+        }
+    }
+
+    /**
+     * The stock of the sodas a store carries, one row per store and soda. Inserting into
+     * {@link StoreEntry#buildStoreSodasUri} takes {@link #COLUMN_SODA_ID} and
+     * {@link #COLUMN_QUANTITY}; the single soda URIs of a store update or delete its stock.
+     * <p>
+     * Querying a store's stock list returns the columns of {@link SodaEntry}, with the ID of
+     * the soda as {@link SodaEntry#_ID} and the store's own quantity as
+     * {@link SodaEntry#COLUMN_QUANTITY}. It takes the list parameters of the sodas list, but
+     * only sorts by the ID or the quantity: each has a covering index that starts with the
+     * store, so listing one store never reads another store's rows. Selections have to name
+     * the columns with their table, like {@link #QUALIFIED_QUANTITY}.
+     */
+    public static abstract class StoreStockEntry {
+
+        public static final String TABLE_NAME = "store_stock";
+        public static final String COLUMN_STORE_ID = "store_id";
+        public static final String COLUMN_SODA_ID = "soda_id";
+        public static final String COLUMN_QUANTITY = "quantity";
+
+        public static final String QUALIFIED_STORE_ID = TABLE_NAME + "." + COLUMN_STORE_ID;
+        public static final String QUALIFIED_SODA_ID = TABLE_NAME + "." + COLUMN_SODA_ID;
+        public static final String QUALIFIED_QUANTITY = TABLE_NAME + "." + COLUMN_QUANTITY;
+
+        /**
+         * The stock joined with its sodas. The stock comes first, so the join walks one
+         * store's index entries and looks every soda up by its ID.
+         */
+        public static final String JOIN_TABLES = TABLE_NAME + " CROSS JOIN "
+                + SodaEntry.TABLE_NAME + " ON " + SodaEntry.TABLE_NAME + "." + SodaEntry._ID
+                + " = " + QUALIFIED_SODA_ID;
+
+        /**
+         * Covering indexes of a store's stock by soda and by quantity. The primary key
+         * starts with the soda instead, so deleting a soda finds its stock in every store.
+         */
+        public static final String INDEX_SODA = "store_stock_soda_index";
+        public static final String INDEX_QUANTITY = "store_stock_quantity_index";
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_STORES + "." + PATH_SODAS;
+
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_STORES + "." + PATH_SODAS;
+    }
+
+    /**
+     * The state of the delta sync of the sodas with a server, see {@link SodaSyncEngine}.
+     * <p>
+     * Triggers on the soda table give every inserted, updated or deleted soda the next
+     * version of the database and record it in the change log, which holds one entry per
+     * soda with changes the server hasn't acknowledged yet. A push sends the log after
+     * {@link #COLUMN_PUSHED_VERSION} and trims it once acknowledged, so syncing costs what
+     * changed since the last sync however big the catalog is. Changes merged from the server
+     * set {@link #COLUMN_REMOTE} while they are written, so they aren't logged and sent back.
+     */
+    public static abstract class SyncEntry {
+
+        public static final String CHANGE_LOG_TABLE_NAME = "change_log";
+
+        /**
+         * Version of the change, the primary key of the log
+         */
+        public static final String COLUMN_VERSION = "version";
+        public static final String COLUMN_SYNC_ID = "sync_id";
+
+        /**
+         * Whether the change deleted the soda, 1 or 0
+         */
+        public static final String COLUMN_DELETED = "deleted";
+
+        /**
+         * Single row of sync state
+         */
+        public static final String STATE_TABLE_NAME = "sync_state";
+
+        /**
+         * The last version given to a change
+         */
+        public static final String COLUMN_LAST_VERSION = "last_version";
+
+        /**
+         * The last version of a local change the server acknowledged
+         */
+        public static final String COLUMN_PUSHED_VERSION = "pushed_version";
+
+        /**
+         * The server's position after the last remote change merged here
+         */
+        public static final String COLUMN_PULLED_TOKEN = "pulled_token";
+
+        /**
+         * 1 while remote changes are being merged, 0 otherwise
+         */
+        public static final String COLUMN_REMOTE = "remote";
+
+        /**
+         * Random ID of this database, so the server doesn't send a device its own changes
+         */
+        public static final String COLUMN_DEVICE_ID = "device_id";
+    }
+}
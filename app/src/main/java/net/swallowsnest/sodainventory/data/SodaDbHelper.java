@@ -3,8 +3,15 @@ package net.swallowsnest.sodainventory.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import net.swallowsnest.sodainventory.data.SodaContract.LowStockEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.SalesEntry;
 import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StatsEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StoreEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StoreStockEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.SyncEntry;
 
 /**
  * Created by marshas on 10/27/16.
@@ -18,29 +25,483 @@ public class SodaDbHelper extends SQLiteOpenHelper {
     public static final String DATABASE_NAME = "sodas.db";
 
     //database version
-    public static final int DATABASE_VERSION = 8;
+    public static final int DATABASE_VERSION = 22;
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    // 32 random hex digits, the default of every sync ID
+    private static final String RANDOM_ID = "lower(hex(randomblob(16)))";
+
+    // the current time in milliseconds
+    private static final String NOW = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
 
     public SodaDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Create a helper for a database with a different name, e.g. a scratch database in tests.
+     */
+    SodaDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+
+        // Write-ahead logging lets the list keep reading while sales are being written
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Older platforms can only switch to write-ahead logging once the database is open
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        //string for the SQL create table statement
-        String SQL_CREATE_SODAS_TABLE = "CREATE TABLE " + SodaEntry.TABLE_NAME + "("
+        db.execSQL(createSodasTable(SodaEntry.TABLE_NAME));
+        createSodaIndexes(db);
+
+        // full-text index over the names for search
+        createFts(db);
+
+        // one-row summary of the sodas
+        createStats(db);
+
+        // set of sodas at or below their reorder threshold
+        createLowStock(db);
+
+        // append-only ledger of sales, rolled up into hourly and daily buckets by a trigger
+        createSales(db);
+
+        // stores and the stock each of them keeps of the sodas
+        createStores(db);
+
+        // row versions and the log of changes the sync server hasn't seen yet
+        createSync(db);
+
+        // photos whose files are to be deleted
+        createDiscardedImages(db);
+
+        // the triggers on the sodas that keep all of the above up to date
+        createSodaTriggers(db);
+    }
+
+    /**
+     * Return the SQL create table statement for the sodas, under the given table name.
+     */
+    private static String createSodasTable(String table) {
+        return "CREATE TABLE " + table + "("
                 + SodaEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + SodaEntry.COLUMN_NAME + " TEXT NOT NULL, "
-                + SodaEntry.COLUMN_QUANTITY + " INTEGER, "
-                + SodaEntry.COLUMN_SOLD + " INTEGER, "
-                + SodaEntry.COLUMN_PRICE + " INTEGER NOT NULL DEFAULT 0);";
+                + SodaEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + SodaEntry.COLUMN_SOLD + " INTEGER NOT NULL DEFAULT 0, "
+                + SodaEntry.COLUMN_PRICE + " INTEGER NOT NULL DEFAULT 0, "
+                + SodaEntry.COLUMN_IMAGE + " TEXT, "
+                + SodaEntry.COLUMN_REORDER_THRESHOLD + " INTEGER NOT NULL DEFAULT 0, "
+                + SodaEntry.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, "
+                + SodaEntry.COLUMN_SYNC_ID + " TEXT NOT NULL DEFAULT (" + RANDOM_ID + "));";
+    }
+
+    /**
+     * Create the indexes for looking sodas up by name and sync ID, finding low stock and
+     * ordering the list by any of its sort keys. The row ID ends every index, so ties come
+     * out in ID order. Search reads the names in case-insensitive order.
+     */
+    private static void createSodaIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SodaEntry.INDEX_NAME + " ON "
+                + SodaEntry.TABLE_NAME + "(" + SodaEntry.COLUMN_NAME + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SodaEntry.INDEX_NAME_NOCASE + " ON "
+                + SodaEntry.TABLE_NAME + "(" + SodaEntry.COLUMN_NAME + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SodaEntry.INDEX_QUANTITY + " ON "
+                + SodaEntry.TABLE_NAME + "(" + SodaEntry.COLUMN_QUANTITY + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SodaEntry.INDEX_SOLD + " ON "
+                + SodaEntry.TABLE_NAME + "(" + SodaEntry.COLUMN_SOLD + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SodaEntry.INDEX_PRICE + " ON "
+                + SodaEntry.TABLE_NAME + "(" + SodaEntry.COLUMN_PRICE + ");");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + SodaEntry.INDEX_SYNC_ID + " ON "
+                + SodaEntry.TABLE_NAME + "(" + SodaEntry.COLUMN_SYNC_ID + ");");
+    }
+
+    /**
+     * Create the full-text index over the names. Search turns every word into a prefix
+     * match, so the index also keeps every prefix of one to three characters as a term of
+     * its own. Without them a short prefix has to merge the lists of every word it starts.
+     */
+    private static void createFts(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + SodaEntry.FTS_TABLE_NAME
+                + " USING fts4(" + SodaEntry.COLUMN_NAME + ", prefix=\"1,2,3\");");
+    }
+
+    /**
+     * Fill the full-text index with the names of every soda.
+     */
+    private static void fillFts(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + SodaEntry.FTS_TABLE_NAME + "(docid, "
+                + SodaEntry.COLUMN_NAME + ") SELECT " + SodaEntry._ID + ", "
+                + SodaEntry.COLUMN_NAME + " FROM " + SodaEntry.TABLE_NAME + ";");
+    }
+
+    private static void createStats(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + "("
+                + StatsEntry._ID + " INTEGER PRIMARY KEY CHECK (" + StatsEntry._ID + " = 1), "
+                + StatsEntry.COLUMN_SODA_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_TOTAL_STOCK + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_TOTAL_SOLD + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_REVENUE + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + "(" + StatsEntry._ID + ") VALUES (1);");
+    }
+
+    private static void createLowStock(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LowStockEntry.TABLE_NAME + "("
+                + LowStockEntry.COLUMN_SODA_ID + " INTEGER PRIMARY KEY, "
+                + LowStockEntry.COLUMN_SINCE + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + LowStockEntry.INDEX_SINCE + " ON "
+                + LowStockEntry.TABLE_NAME + "(" + LowStockEntry.COLUMN_SINCE + ");");
+    }
 
-        //execute db
-        db.execSQL(SQL_CREATE_SODAS_TABLE);
+    private static void createSales(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SalesEntry.TABLE_NAME + "("
+                + SalesEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + SalesEntry.COLUMN_SODA_ID + " INTEGER NOT NULL, "
+                + SalesEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + SalesEntry.COLUMN_QUANTITY + " INTEGER NOT NULL);");
+        createRollupTable(db, SalesEntry.HOURLY_TABLE_NAME);
+        createRollupTable(db, SalesEntry.DAILY_TABLE_NAME);
+        db.execSQL("CREATE TRIGGER sale_events_rollup AFTER INSERT ON " + SalesEntry.TABLE_NAME
+                + " BEGIN "
+                + addToRollup(SalesEntry.HOURLY_TABLE_NAME, "NEW." + SalesEntry.COLUMN_SODA_ID, HOUR_MILLIS)
+                + addToRollup(SalesEntry.HOURLY_TABLE_NAME, String.valueOf(SalesEntry.TOTAL_SODA_ID), HOUR_MILLIS)
+                + addToRollup(SalesEntry.DAILY_TABLE_NAME, "NEW." + SalesEntry.COLUMN_SODA_ID, DAY_MILLIS)
+                + addToRollup(SalesEntry.DAILY_TABLE_NAME, String.valueOf(SalesEntry.TOTAL_SODA_ID), DAY_MILLIS)
+                + "END;");
     }
 
+    /**
+     * Create the stores and their stock, with the trigger that drops the stock of a store
+     * along with it.
+     */
+    private static void createStores(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StoreEntry.TABLE_NAME + "("
+                + StoreEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + StoreEntry.COLUMN_NAME + " TEXT NOT NULL);");
+        db.execSQL("CREATE TABLE " + StoreStockEntry.TABLE_NAME + "("
+                + StoreStockEntry.COLUMN_STORE_ID + " INTEGER NOT NULL, "
+                + StoreStockEntry.COLUMN_SODA_ID + " INTEGER NOT NULL, "
+                + StoreStockEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + StoreStockEntry.COLUMN_SODA_ID + ", "
+                + StoreStockEntry.COLUMN_STORE_ID + "));");
+
+        // both lists of a store read only their index, which holds every column of the stock
+        db.execSQL("CREATE INDEX " + StoreStockEntry.INDEX_SODA + " ON "
+                + StoreStockEntry.TABLE_NAME + "(" + StoreStockEntry.COLUMN_STORE_ID + ", "
+                + StoreStockEntry.COLUMN_SODA_ID + ", " + StoreStockEntry.COLUMN_QUANTITY + ");");
+        db.execSQL("CREATE INDEX " + StoreStockEntry.INDEX_QUANTITY + " ON "
+                + StoreStockEntry.TABLE_NAME + "(" + StoreStockEntry.COLUMN_STORE_ID + ", "
+                + StoreStockEntry.COLUMN_QUANTITY + ", " + StoreStockEntry.COLUMN_SODA_ID + ");");
+
+        db.execSQL("CREATE TRIGGER store_stock_store_delete AFTER DELETE ON "
+                + StoreEntry.TABLE_NAME + " BEGIN DELETE FROM " + StoreStockEntry.TABLE_NAME
+                + " WHERE " + StoreStockEntry.COLUMN_STORE_ID + " = OLD." + StoreEntry._ID
+                + "; END;");
+    }
+
+    private static void createDiscardedImages(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SodaEntry.DISCARDED_IMAGES_TABLE_NAME + "("
+                + SodaEntry.COLUMN_IMAGE + " TEXT PRIMARY KEY);");
+    }
+
+    /**
+     * Create the sync state and the change log.
+     */
+    private static void createSync(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SyncEntry.STATE_TABLE_NAME + "("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + SyncEntry.COLUMN_LAST_VERSION + " INTEGER NOT NULL DEFAULT 0, "
+                + SyncEntry.COLUMN_PUSHED_VERSION + " INTEGER NOT NULL DEFAULT 0, "
+                + SyncEntry.COLUMN_PULLED_TOKEN + " INTEGER NOT NULL DEFAULT 0, "
+                + SyncEntry.COLUMN_REMOTE + " INTEGER NOT NULL DEFAULT 0, "
+                + SyncEntry.COLUMN_DEVICE_ID + " TEXT NOT NULL DEFAULT (" + RANDOM_ID + "));");
+        db.execSQL("INSERT INTO " + SyncEntry.STATE_TABLE_NAME + "(_id) VALUES (1);");
+
+        // one entry per soda, a newer change replaces the older one through the unique ID
+        db.execSQL("CREATE TABLE " + SyncEntry.CHANGE_LOG_TABLE_NAME + "("
+                + SyncEntry.COLUMN_VERSION + " INTEGER PRIMARY KEY, "
+                + SyncEntry.COLUMN_SYNC_ID + " TEXT NOT NULL UNIQUE, "
+                + SyncEntry.COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * Create every trigger on the sodas. They all go away when the table is dropped, so an
+     * upgrade that rebuilds the table creates them again through here.
+     */
+    private static void createSodaTriggers(SQLiteDatabase db) {
+        // search index
+        db.execSQL("CREATE TRIGGER soda_fts_insert AFTER INSERT ON " + SodaEntry.TABLE_NAME
+                + " BEGIN INSERT INTO " + SodaEntry.FTS_TABLE_NAME
+                + "(docid, " + SodaEntry.COLUMN_NAME + ") VALUES (NEW." + SodaEntry._ID
+                + ", NEW." + SodaEntry.COLUMN_NAME + "); END;");
+        db.execSQL("CREATE TRIGGER soda_fts_update AFTER UPDATE OF " + SodaEntry.COLUMN_NAME
+                + " ON " + SodaEntry.TABLE_NAME
+                + " BEGIN UPDATE " + SodaEntry.FTS_TABLE_NAME + " SET " + SodaEntry.COLUMN_NAME
+                + " = NEW." + SodaEntry.COLUMN_NAME + " WHERE docid = NEW." + SodaEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER soda_fts_delete AFTER DELETE ON " + SodaEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + SodaEntry.FTS_TABLE_NAME
+                + " WHERE docid = OLD." + SodaEntry._ID + "; END;");
+
+        // summary
+        db.execSQL("CREATE TRIGGER soda_stats_insert AFTER INSERT ON " + SodaEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_SODA_COUNT + " = " + StatsEntry.COLUMN_SODA_COUNT + " + 1, "
+                + StatsEntry.COLUMN_TOTAL_STOCK + " = " + StatsEntry.COLUMN_TOTAL_STOCK
+                + " + NEW." + SodaEntry.COLUMN_QUANTITY + ", "
+                + StatsEntry.COLUMN_TOTAL_SOLD + " = " + StatsEntry.COLUMN_TOTAL_SOLD
+                + " + NEW." + SodaEntry.COLUMN_SOLD + ", "
+                + StatsEntry.COLUMN_REVENUE + " = " + StatsEntry.COLUMN_REVENUE
+                + " + NEW." + SodaEntry.COLUMN_PRICE + " * NEW." + SodaEntry.COLUMN_SOLD + "; END;");
+        db.execSQL("CREATE TRIGGER soda_stats_update AFTER UPDATE OF "
+                + SodaEntry.COLUMN_QUANTITY + ", " + SodaEntry.COLUMN_SOLD + ", "
+                + SodaEntry.COLUMN_PRICE + " ON " + SodaEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_TOTAL_STOCK + " = " + StatsEntry.COLUMN_TOTAL_STOCK
+                + " - OLD." + SodaEntry.COLUMN_QUANTITY + " + NEW." + SodaEntry.COLUMN_QUANTITY + ", "
+                + StatsEntry.COLUMN_TOTAL_SOLD + " = " + StatsEntry.COLUMN_TOTAL_SOLD
+                + " - OLD." + SodaEntry.COLUMN_SOLD + " + NEW." + SodaEntry.COLUMN_SOLD + ", "
+                + StatsEntry.COLUMN_REVENUE + " = " + StatsEntry.COLUMN_REVENUE
+                + " - OLD." + SodaEntry.COLUMN_PRICE + " * OLD." + SodaEntry.COLUMN_SOLD
+                + " + NEW." + SodaEntry.COLUMN_PRICE + " * NEW." + SodaEntry.COLUMN_SOLD + "; END;");
+        db.execSQL("CREATE TRIGGER soda_stats_delete AFTER DELETE ON " + SodaEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_SODA_COUNT + " = " + StatsEntry.COLUMN_SODA_COUNT + " - 1, "
+                + StatsEntry.COLUMN_TOTAL_STOCK + " = " + StatsEntry.COLUMN_TOTAL_STOCK
+                + " - OLD." + SodaEntry.COLUMN_QUANTITY + ", "
+                + StatsEntry.COLUMN_TOTAL_SOLD + " = " + StatsEntry.COLUMN_TOTAL_SOLD
+                + " - OLD." + SodaEntry.COLUMN_SOLD + ", "
+                + StatsEntry.COLUMN_REVENUE + " = " + StatsEntry.COLUMN_REVENUE
+                + " - OLD." + SodaEntry.COLUMN_PRICE + " * OLD." + SodaEntry.COLUMN_SOLD + "; END;");
+
+        // low stock, only for rows whose quantity crosses their threshold
+        String isLow = SodaEntry.COLUMN_QUANTITY + " <= ";
+        String add = " BEGIN INSERT OR IGNORE INTO " + LowStockEntry.TABLE_NAME + "("
+                + LowStockEntry.COLUMN_SODA_ID + ", " + LowStockEntry.COLUMN_SINCE
+                + ") VALUES (NEW." + SodaEntry._ID + ", " + NOW + "); END;";
+        db.execSQL("CREATE TRIGGER low_stock_insert AFTER INSERT ON " + SodaEntry.TABLE_NAME
+                + " WHEN NEW." + isLow + "NEW." + SodaEntry.COLUMN_REORDER_THRESHOLD + add);
+        db.execSQL("CREATE TRIGGER low_stock_enter AFTER UPDATE OF "
+                + SodaEntry.COLUMN_QUANTITY + ", " + SodaEntry.COLUMN_REORDER_THRESHOLD
+                + " ON " + SodaEntry.TABLE_NAME
+                + " WHEN NEW." + isLow + "NEW." + SodaEntry.COLUMN_REORDER_THRESHOLD
+                + " AND NOT OLD." + isLow + "OLD." + SodaEntry.COLUMN_REORDER_THRESHOLD + add);
+        db.execSQL("CREATE TRIGGER low_stock_leave AFTER UPDATE OF "
+                + SodaEntry.COLUMN_QUANTITY + ", " + SodaEntry.COLUMN_REORDER_THRESHOLD
+                + " ON " + SodaEntry.TABLE_NAME
+                + " WHEN NOT NEW." + isLow + "NEW." + SodaEntry.COLUMN_REORDER_THRESHOLD
+                + " BEGIN DELETE FROM " + LowStockEntry.TABLE_NAME + " WHERE "
+                + LowStockEntry.COLUMN_SODA_ID + " = NEW." + SodaEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER low_stock_delete AFTER DELETE ON " + SodaEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + LowStockEntry.TABLE_NAME + " WHERE "
+                + LowStockEntry.COLUMN_SODA_ID + " = OLD." + SodaEntry._ID + "; END;");
+
+        // photos taken off their soda
+        createImageTriggers(db);
+
+        // store stock goes with its soda
+        db.execSQL("CREATE TRIGGER store_stock_soda_delete AFTER DELETE ON "
+                + SodaEntry.TABLE_NAME + " BEGIN DELETE FROM " + StoreStockEntry.TABLE_NAME
+                + " WHERE " + StoreStockEntry.COLUMN_SODA_ID + " = OLD." + SodaEntry._ID
+                + "; END;");
+
+        // versions and the change log, unless the change came from the server
+        String nextVersion = "UPDATE " + SyncEntry.STATE_TABLE_NAME + " SET "
+                + SyncEntry.COLUMN_LAST_VERSION + " = " + SyncEntry.COLUMN_LAST_VERSION + " + 1; ";
+        String setVersion = "UPDATE " + SodaEntry.TABLE_NAME + " SET " + SodaEntry.COLUMN_VERSION
+                + " = (SELECT " + SyncEntry.COLUMN_LAST_VERSION + " FROM "
+                + SyncEntry.STATE_TABLE_NAME + ") WHERE " + SodaEntry._ID + " = NEW."
+                + SodaEntry._ID + "; ";
+        db.execSQL("CREATE TRIGGER sync_soda_insert AFTER INSERT ON " + SodaEntry.TABLE_NAME
+                + " BEGIN " + nextVersion + setVersion + logChange("NEW", 0) + "END;");
+        // every column but the version itself, so setting it doesn't fire this again
+        db.execSQL("CREATE TRIGGER sync_soda_update AFTER UPDATE OF "
+                + SodaEntry.COLUMN_NAME + ", " + SodaEntry.COLUMN_QUANTITY + ", "
+                + SodaEntry.COLUMN_SOLD + ", " + SodaEntry.COLUMN_PRICE + ", "
+                + SodaEntry.COLUMN_IMAGE + ", " + SodaEntry.COLUMN_REORDER_THRESHOLD
+                + " ON " + SodaEntry.TABLE_NAME
+                + " BEGIN " + nextVersion + setVersion + logChange("NEW", 0) + "END;");
+        db.execSQL("CREATE TRIGGER sync_soda_delete AFTER DELETE ON " + SodaEntry.TABLE_NAME
+                + " BEGIN " + nextVersion + logChange("OLD", 1) + "END;");
+    }
+
+    /**
+     * Create the triggers that note the photo of a deleted soda, or the old photo of a soda
+     * that got a new one. They may already be there, or run before their table exists during
+     * an upgrade, which is fine as long as nothing fires them meanwhile.
+     */
+    private static void createImageTriggers(SQLiteDatabase db) {
+        String discard = " BEGIN INSERT OR IGNORE INTO " + SodaEntry.DISCARDED_IMAGES_TABLE_NAME
+                + "(" + SodaEntry.COLUMN_IMAGE + ") VALUES (OLD." + SodaEntry.COLUMN_IMAGE
+                + "); END;";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS soda_image_delete AFTER DELETE ON "
+                + SodaEntry.TABLE_NAME + " WHEN OLD." + SodaEntry.COLUMN_IMAGE + " IS NOT NULL"
+                + discard);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS soda_image_update AFTER UPDATE OF "
+                + SodaEntry.COLUMN_IMAGE + " ON " + SodaEntry.TABLE_NAME
+                + " WHEN OLD." + SodaEntry.COLUMN_IMAGE + " IS NOT NULL AND OLD."
+                + SodaEntry.COLUMN_IMAGE + " IS NOT NEW." + SodaEntry.COLUMN_IMAGE + discard);
+    }
+
+    /**
+     * Return the trigger statement that logs a change of the NEW or OLD row at the last
+     * version, unless remote changes are being merged.
+     */
+    private static String logChange(String row, int deleted) {
+        return "INSERT OR REPLACE INTO " + SyncEntry.CHANGE_LOG_TABLE_NAME + "("
+                + SyncEntry.COLUMN_VERSION + ", " + SyncEntry.COLUMN_SYNC_ID + ", "
+                + SyncEntry.COLUMN_DELETED + ") SELECT " + SyncEntry.COLUMN_LAST_VERSION + ", "
+                + row + "." + SodaEntry.COLUMN_SYNC_ID + ", " + deleted + " FROM "
+                + SyncEntry.STATE_TABLE_NAME + " WHERE " + SyncEntry.COLUMN_REMOTE + " = 0; ";
+    }
+
+    /**
+     * Create a table of sales per soda and bucket. The primary key makes every window of
+     * one soda a range scan.
+     */
+    private static void createRollupTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + "("
+                + SalesEntry.COLUMN_SODA_ID + " INTEGER NOT NULL, "
+                + SalesEntry.COLUMN_BUCKET + " INTEGER NOT NULL, "
+                + SalesEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + SalesEntry.COLUMN_SODA_ID + ", " + SalesEntry.COLUMN_BUCKET
+                + "));");
+    }
+
+    /**
+     * Return the trigger statements that add the new sale to the bucket of the given soda in
+     * the rollup table, creating the bucket first if needed. The platform SQLite is too old
+     * for upserts, so this takes an insert and an update. Buckets are cut from the epoch as
+     * timestamp - timestamp % bucketMillis, so a day bucket runs from midnight UTC, not from
+     * local midnight.
+     */
+    private static String addToRollup(String table, String sodaId, long bucketMillis) {
+        String bucket = "NEW." + SalesEntry.COLUMN_TIMESTAMP
+                + " - NEW." + SalesEntry.COLUMN_TIMESTAMP + " % " + bucketMillis;
+        return "INSERT OR IGNORE INTO " + table + "(" + SalesEntry.COLUMN_SODA_ID + ", "
+                + SalesEntry.COLUMN_BUCKET + ") VALUES (" + sodaId + ", " + bucket + "); "
+                + "UPDATE " + table + " SET " + SalesEntry.COLUMN_QUANTITY + " = "
+                + SalesEntry.COLUMN_QUANTITY + " + NEW." + SalesEntry.COLUMN_QUANTITY
+                + " WHERE " + SalesEntry.COLUMN_SODA_ID + " = " + sodaId
+                + " AND " + SalesEntry.COLUMN_BUCKET + " = " + bucket + "; ";
+    }
+
+    /**
+     * Bring a database of any earlier version up to date, one schema change at a time, keeping
+     * the sodas and everything derived from them.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("drop table if exists " + SodaEntry.TABLE_NAME);
-        onCreate(db);
+        if (oldVersion < 11) {
+            createFts(db);
+            fillFts(db);
+        }
+        if (oldVersion < 12) {
+            // filled in below, once the prices are in cents
+            createStats(db);
+        }
+        if (oldVersion < 13) {
+            db.execSQL("ALTER TABLE " + SodaEntry.TABLE_NAME + " ADD COLUMN "
+                    + SodaEntry.COLUMN_IMAGE + " TEXT;");
+        }
+        if (oldVersion < 14) {
+            // prices used to be stored as floats
+            db.execSQL("UPDATE " + SodaEntry.TABLE_NAME + " SET " + SodaEntry.COLUMN_PRICE
+                    + " = CAST(ROUND(" + SodaEntry.COLUMN_PRICE + " * 100) AS INTEGER);");
+        }
+        if (oldVersion < 15) {
+            createSales(db);
+        }
+        if (oldVersion < 16) {
+            db.execSQL("ALTER TABLE " + SodaEntry.TABLE_NAME + " ADD COLUMN "
+                    + SodaEntry.COLUMN_REORDER_THRESHOLD + " INTEGER NOT NULL DEFAULT 0;");
+            createLowStock(db);
+            db.execSQL("INSERT INTO " + LowStockEntry.TABLE_NAME + "("
+                    + LowStockEntry.COLUMN_SODA_ID + ", " + LowStockEntry.COLUMN_SINCE
+                    + ") SELECT " + SodaEntry._ID + ", " + NOW + " FROM " + SodaEntry.TABLE_NAME
+                    + " WHERE " + SodaEntry.COLUMN_QUANTITY + " <= "
+                    + SodaEntry.COLUMN_REORDER_THRESHOLD + ";");
+        }
+        if (oldVersion < 18) {
+            createStores(db);
+        }
+        if (oldVersion < 19) {
+            upgradeToSync(db);
+        }
+        if (oldVersion < 20) {
+            createSodaIndexes(db);
+        }
+        if (oldVersion < 21) {
+            createDiscardedImages(db);
+            createImageTriggers(db);
+        }
+        if (oldVersion < 22 && oldVersion >= 11) {
+            // the prefix option can only be given when the table is created, and the
+            // triggers that keep it up to date only name it, so they carry over
+            db.execSQL("DROP TABLE " + SodaEntry.FTS_TABLE_NAME + ";");
+            createFts(db);
+            fillFts(db);
+        }
+    }
+
+    /**
+     * Rebuild the sodas with the version and sync ID columns. The sync ID defaults to a random
+     * value, which ALTER TABLE can't add, and the rebuild also makes the quantities of
+     * databases older than version 10 NOT NULL. Every soda starts out unsynced, so the next
+     * push sends all of them.
+     */
+    private static void upgradeToSync(SQLiteDatabase db) {
+        String columns = SodaEntry._ID + ", " + SodaEntry.COLUMN_NAME + ", "
+                + SodaEntry.COLUMN_QUANTITY + ", " + SodaEntry.COLUMN_SOLD + ", "
+                + SodaEntry.COLUMN_PRICE + ", " + SodaEntry.COLUMN_IMAGE + ", "
+                + SodaEntry.COLUMN_REORDER_THRESHOLD + ", " + SodaEntry.COLUMN_VERSION;
+        String newTable = SodaEntry.TABLE_NAME + "_new";
+
+        // dropping the old table takes its indexes and triggers with it, without firing them
+        db.execSQL(createSodasTable(newTable));
+        db.execSQL("INSERT INTO " + newTable + "(" + columns + ") SELECT "
+                + SodaEntry._ID + ", " + SodaEntry.COLUMN_NAME + ", "
+                + "IFNULL(" + SodaEntry.COLUMN_QUANTITY + ", 0), "
+                + "IFNULL(" + SodaEntry.COLUMN_SOLD + ", 0), "
+                + SodaEntry.COLUMN_PRICE + ", " + SodaEntry.COLUMN_IMAGE + ", "
+                + SodaEntry.COLUMN_REORDER_THRESHOLD + ", " + SodaEntry._ID
+                + " FROM " + SodaEntry.TABLE_NAME + ";");
+        db.execSQL("DROP TABLE " + SodaEntry.TABLE_NAME + ";");
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + SodaEntry.TABLE_NAME + ";");
+        createSodaIndexes(db);
+
+        // the row IDs serve as the first versions, and every soda goes into the change log
+        createSync(db);
+        db.execSQL("UPDATE " + SyncEntry.STATE_TABLE_NAME + " SET "
+                + SyncEntry.COLUMN_LAST_VERSION + " = (SELECT IFNULL(MAX(" + SodaEntry._ID
+                + "), 0) FROM " + SodaEntry.TABLE_NAME + ");");
+        db.execSQL("INSERT INTO " + SyncEntry.CHANGE_LOG_TABLE_NAME + "("
+                + SyncEntry.COLUMN_VERSION + ", " + SyncEntry.COLUMN_SYNC_ID + ") SELECT "
+                + SodaEntry.COLUMN_VERSION + ", " + SodaEntry.COLUMN_SYNC_ID + " FROM "
+                + SodaEntry.TABLE_NAME + ";");
+
+        // the summary was never filled in, or summed up float prices, so count it afresh
+        db.execSQL("UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_SODA_COUNT + " = (SELECT COUNT(*) FROM "
+                + SodaEntry.TABLE_NAME + "), "
+                + StatsEntry.COLUMN_TOTAL_STOCK + " = (SELECT IFNULL(SUM("
+                + SodaEntry.COLUMN_QUANTITY + "), 0) FROM " + SodaEntry.TABLE_NAME + "), "
+                + StatsEntry.COLUMN_TOTAL_SOLD + " = (SELECT IFNULL(SUM("
+                + SodaEntry.COLUMN_SOLD + "), 0) FROM " + SodaEntry.TABLE_NAME + "), "
+                + StatsEntry.COLUMN_REVENUE + " = (SELECT IFNULL(SUM(" + SodaEntry.COLUMN_PRICE
+                + " * " + SodaEntry.COLUMN_SOLD + "), 0) FROM " + SodaEntry.TABLE_NAME + ");");
+
+        createSodaTriggers(db);
     }
 }
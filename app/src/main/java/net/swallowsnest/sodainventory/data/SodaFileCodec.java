@@ -0,0 +1,435 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streams the catalog to and from CSV and JSON files for {@link SodaProvider#openFile}.
+ * Neither direction ever holds more than one chunk of {@link #CHUNK_ROWS} sodas: exports read
+ * the table in ID order one keyset page at a time, and imports parse one soda at a time and
+ * commit every chunk in its own transaction, so a long import never blocks the list for long.
+ * <p>
+ * Files have the columns of {@link #COLUMNS}, with prices in dollars like "1.25". CSV files
+ * start with a header row naming the columns, which may come in any order. JSON files are an
+ * array of objects, written one soda per line.
+ */
+final class SodaFileCodec {
+
+    /**
+     * Number of sodas read per query when exporting and committed per transaction when
+     * importing
+     */
+    static final int CHUNK_ROWS = 500;
+
+    /**
+     * Columns of a soda in a file, in the order they are written. IDs and photos only mean
+     * something on the device they came from, so they aren't exchanged.
+     */
+    static final String[] COLUMNS = {
+            SodaEntry.COLUMN_NAME,
+            SodaEntry.COLUMN_QUANTITY,
+            SodaEntry.COLUMN_SOLD,
+            SodaEntry.COLUMN_PRICE,
+            SodaEntry.COLUMN_REORDER_THRESHOLD
+    };
+
+    private static final String[] EXPORT_PROJECTION = {
+            SodaEntry._ID,
+            SodaEntry.COLUMN_NAME,
+            SodaEntry.COLUMN_QUANTITY,
+            SodaEntry.COLUMN_SOLD,
+            SodaEntry.COLUMN_PRICE,
+            SodaEntry.COLUMN_REORDER_THRESHOLD
+    };
+
+    /**
+     * Told about every chunk an import has committed.
+     */
+    interface ChunkListener {
+        void onChunkCommitted(int rowsSoFar);
+    }
+
+    private SodaFileCodec() {
+    }
+
+    /**
+     * Return whether the given format is one of {@link SodaEntry#FORMAT_CSV} and
+     * {@link SodaEntry#FORMAT_JSON}.
+     */
+    static boolean isFormat(String format) {
+        return SodaEntry.FORMAT_CSV.equals(format) || SodaEntry.FORMAT_JSON.equals(format);
+    }
+
+    /**
+     * Write every soda to the writer in the given format and return the number written.
+     * Sodas written while the export runs are included if they sort after the current chunk.
+     */
+    static int export(SQLiteDatabase database, String format, Writer out) throws IOException {
+        boolean json = SodaEntry.FORMAT_JSON.equals(format);
+        SodaRecord record = new SodaRecord();
+        char[] price = new char[21];
+        String[] afterId = {"0"};
+        int rows = 0;
+
+        if (json) {
+            out.write('[');
+        } else {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                out.write(i == 0 ? "" : ",");
+                out.write(COLUMNS[i]);
+            }
+            out.write("\r\n");
+        }
+
+        while (true) {
+            Cursor cursor = database.query(SodaEntry.TABLE_NAME, EXPORT_PROJECTION,
+                    SodaEntry._ID + " > ?", afterId, null, null, SodaEntry._ID,
+                    String.valueOf(CHUNK_ROWS));
+            try {
+                if (!cursor.moveToFirst()) {
+                    break;
+                }
+                SodaRecordCodec codec = new SodaRecordCodec(cursor);
+                do {
+                    codec.read(cursor, record);
+                    int priceLength = SodaRecord.formatPrice(record.priceCents, price);
+                    if (json) {
+                        writeJson(out, record, price, priceLength, rows == 0);
+                    } else {
+                        writeCsv(out, record, price, priceLength);
+                    }
+                    rows++;
+                } while (cursor.moveToNext());
+                afterId[0] = String.valueOf(record.id);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (json) {
+            out.write(rows == 0 ? "]\n" : "\n]\n");
+        }
+        out.flush();
+        return rows;
+    }
+
+    private static void writeCsv(Writer out, SodaRecord record, char[] price, int priceLength)
+            throws IOException {
+        writeCsvField(out, record.name);
+        out.write(',');
+        out.write(Integer.toString(record.quantity));
+        out.write(',');
+        out.write(Integer.toString(record.sold));
+        out.write(',');
+        out.write(price, 0, priceLength);
+        out.write(',');
+        out.write(Integer.toString(record.reorderThreshold));
+        out.write("\r\n");
+    }
+
+    /**
+     * Write a text field, quoted if it holds a comma, quote or line break.
+     */
+    private static void writeCsvField(Writer out, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    private static void writeJson(Writer out, SodaRecord record, char[] price, int priceLength,
+                                  boolean first) throws IOException {
+        out.write(first ? "\n{\"" : ",\n{\"");
+        out.write(SodaEntry.COLUMN_NAME);
+        out.write("\":");
+        writeJsonString(out, record.name);
+        out.write(",\"");
+        out.write(SodaEntry.COLUMN_QUANTITY);
+        out.write("\":");
+        out.write(Integer.toString(record.quantity));
+        out.write(",\"");
+        out.write(SodaEntry.COLUMN_SOLD);
+        out.write("\":");
+        out.write(Integer.toString(record.sold));
+        out.write(",\"");
+        out.write(SodaEntry.COLUMN_PRICE);
+        out.write("\":");
+        out.write(price, 0, priceLength);
+        out.write(",\"");
+        out.write(SodaEntry.COLUMN_REORDER_THRESHOLD);
+        out.write("\":");
+        out.write(Integer.toString(record.reorderThreshold));
+        out.write('}');
+    }
+
+    private static void writeJsonString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Read sodas in the given format and insert them, committing every {@link #CHUNK_ROWS}.
+     * Returns the number of sodas imported. A soda that isn't valid stops the import with an
+     * {@link IllegalArgumentException}; the chunks committed before it stay imported.
+     */
+    static int importRows(SQLiteDatabase database, String format, Reader in,
+                          ChunkListener listener) throws IOException {
+        RecordReader reader = SodaEntry.FORMAT_JSON.equals(format)
+                ? new JsonRecordReader(in) : new CsvRecordReader(in);
+        SodaRecord record = new SodaRecord();
+        SQLiteStatement insert = SodaStatements.get(database).insert;
+        int rows = 0;
+        int chunkRows = 0;
+
+        database.beginTransaction();
+        try {
+            while (reader.next(record)) {
+                SodaRecordCodec.bindInsert(insert, record);
+                insert.executeInsert();
+                rows++;
+                if (++chunkRows == CHUNK_ROWS) {
+                    database.setTransactionSuccessful();
+                    database.endTransaction();
+                    listener.onChunkCommitted(rows);
+                    chunkRows = 0;
+                    database.beginTransaction();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (chunkRows != 0) {
+            listener.onChunkCommitted(rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Set a column of the record from its text in a file.
+     */
+    private static void setColumn(SodaRecord record, String column, String value, int number) {
+        try {
+            switch (column) {
+                case SodaEntry.COLUMN_NAME:
+                    record.name = value;
+                    break;
+                case SodaEntry.COLUMN_QUANTITY:
+                    record.quantity = parseCount(value);
+                    break;
+                case SodaEntry.COLUMN_SOLD:
+                    record.sold = parseCount(value);
+                    break;
+                case SodaEntry.COLUMN_PRICE:
+                    record.priceCents = SodaRecord.parsePrice(value);
+                    break;
+                case SodaEntry.COLUMN_REORDER_THRESHOLD:
+                    record.reorderThreshold = parseCount(value);
+                    break;
+                default:
+                    // Other columns, like IDs from another device, are left out
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Soda " + number + " has an invalid " + column
+                    + ": " + value);
+        }
+    }
+
+    private static int parseCount(String value) {
+        int count = Integer.parseInt(value.trim());
+        if (count < 0) {
+            throw new NumberFormatException("Negative count: " + value);
+        }
+        return count;
+    }
+
+    private static void checkRecord(SodaRecord record, boolean hasPrice, int number) {
+        if (record.name == null || record.name.isEmpty()) {
+            throw new IllegalArgumentException("Soda " + number + " requires a name.");
+        }
+        if (!hasPrice) {
+            throw new IllegalArgumentException("Soda " + number + " requires a price.");
+        }
+    }
+
+    /**
+     * Reads the sodas of a file one at a time.
+     */
+    private abstract static class RecordReader {
+        /**
+         * Read the next soda into the record, or return false at the end of the file.
+         */
+        abstract boolean next(SodaRecord record) throws IOException;
+    }
+
+    private static class CsvRecordReader extends RecordReader {
+        private final Reader mIn;
+        private final List<String> mFields = new ArrayList<>();
+        private final StringBuilder mField = new StringBuilder();
+        private String[] mHeader;
+        private int mNumber;
+        private int mPending = -1;
+
+        CsvRecordReader(Reader in) {
+            mIn = in;
+        }
+
+        @Override
+        boolean next(SodaRecord record) throws IOException {
+            if (mHeader == null) {
+                if (!readRecord()) {
+                    return false;
+                }
+                mHeader = mFields.toArray(new String[mFields.size()]);
+                // Spreadsheets like to start UTF-8 files with a byte order mark
+                if (mHeader[0].startsWith("\uFEFF")) {
+                    mHeader[0] = mHeader[0].substring(1);
+                }
+                for (int i = 0; i < mHeader.length; i++) {
+                    mHeader[i] = mHeader[i].trim();
+                }
+            }
+
+            do {
+                if (!readRecord()) {
+                    return false;
+                }
+            } while (mFields.size() == 1 && mFields.get(0).isEmpty());
+            mNumber++;
+
+            record.clear();
+            boolean hasPrice = false;
+            int columns = Math.min(mHeader.length, mFields.size());
+            for (int i = 0; i < columns; i++) {
+                setColumn(record, mHeader[i], mFields.get(i), mNumber);
+                hasPrice |= SodaEntry.COLUMN_PRICE.equals(mHeader[i]);
+            }
+            checkRecord(record, hasPrice, mNumber);
+            return true;
+        }
+
+        /**
+         * Read the fields of the next record, which may span lines inside quotes. Returns
+         * false at the end of the file.
+         */
+        private boolean readRecord() throws IOException {
+            mFields.clear();
+            mField.setLength(0);
+            boolean quoted = false;
+            int c = read();
+            if (c == -1) {
+                return false;
+            }
+            for (; c != -1; c = read()) {
+                if (quoted) {
+                    if (c != '"') {
+                        mField.append((char) c);
+                    } else {
+                        int next = read();
+                        if (next == '"') {
+                            mField.append('"');
+                        } else {
+                            quoted = false;
+                            mPending = next;
+                        }
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    mFields.add(mField.toString());
+                    mField.setLength(0);
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    mField.append((char) c);
+                }
+            }
+            mFields.add(mField.toString());
+            return true;
+        }
+
+        private int read() throws IOException {
+            if (mPending != -1) {
+                int c = mPending;
+                mPending = -1;
+                return c;
+            }
+            return mIn.read();
+        }
+    }
+
+    private static class JsonRecordReader extends RecordReader {
+        private final JsonReader mIn;
+        private int mNumber;
+
+        JsonRecordReader(Reader in) throws IOException {
+            mIn = new JsonReader(in);
+            mIn.beginArray();
+        }
+
+        @Override
+        boolean next(SodaRecord record) throws IOException {
+            if (!mIn.hasNext()) {
+                mIn.endArray();
+                return false;
+            }
+            mNumber++;
+
+            record.clear();
+            boolean hasPrice = false;
+            mIn.beginObject();
+            while (mIn.hasNext()) {
+                String column = mIn.nextName();
+                if (mIn.peek() == JsonToken.NULL) {
+                    mIn.nextNull();
+                } else if (mIn.peek() == JsonToken.STRING || mIn.peek() == JsonToken.NUMBER) {
+                    setColumn(record, column, mIn.nextString(), mNumber);
+                    hasPrice |= SodaEntry.COLUMN_PRICE.equals(column);
+                } else {
+                    mIn.skipValue();
+                }
+            }
+            mIn.endObject();
+            checkRecord(record, hasPrice, mNumber);
+            return true;
+        }
+    }
+}
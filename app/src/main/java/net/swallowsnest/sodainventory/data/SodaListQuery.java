@@ -0,0 +1,260 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StoreStockEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The selection, order and limit of a sorted, filtered and keyset paginated query of the
+ * sodas list, built from the query parameters of its URI. Every parameter is validated, so
+ * nothing from the URI ends up in the SQL except as an argument.
+ * <p>
+ * Every sort key has an index that ends in the row ID, so ordering by the key and then the
+ * ID walks the index in either direction without a sort. Filters on another column than the
+ * sort key are written with a unary plus, which keeps SQLite from picking that column's index
+ * over the sort key's and then sorting the matches in a temporary B-tree; a page instead reads
+ * the sort index in order until it has enough matching rows.
+ * <p>
+ * The stock list of a store is built the same way over {@link StoreStockEntry#JOIN_TABLES},
+ * sorted by soda ID or by the store's quantity, whose indexes both start with the store.
+ */
+final class SodaListQuery {
+
+    final String selection;
+    final String[] selectionArgs;
+    final String orderBy;
+
+    /**
+     * Maximum number of rows, or null for all of them
+     */
+    final String limit;
+
+    private SodaListQuery(String selection, String[] selectionArgs, String orderBy,
+                          String limit) {
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        this.orderBy = orderBy;
+        this.limit = limit;
+    }
+
+    /**
+     * Return whether the URI asks for a sorted, filtered or paginated list.
+     */
+    static boolean isListQuery(Uri uri) {
+        return uri.getQueryParameter(SodaEntry.QUERY_PAGE_SIZE) != null
+                || uri.getQueryParameter(SodaEntry.QUERY_SORT_KEY) != null
+                || uri.getQueryParameter(SodaEntry.QUERY_FILTER) != null
+                || uri.getQueryParameter(SodaEntry.QUERY_MIN_PRICE) != null
+                || uri.getQueryParameter(SodaEntry.QUERY_MAX_PRICE) != null;
+    }
+
+    /**
+     * Build the query for the URI, on top of the caller's own selection.
+     *
+     * @throws IllegalArgumentException if a parameter isn't valid
+     */
+    static SodaListQuery fromUri(Uri uri, String selection, String[] selectionArgs) {
+        return build(uri, -1, selection, selectionArgs);
+    }
+
+    /**
+     * Build the query of the stock list of the given store for the URI, on top of the
+     * caller's own selection.
+     *
+     * @throws IllegalArgumentException if a parameter isn't valid
+     */
+    static SodaListQuery forStore(Uri uri, long storeId, String selection,
+                                  String[] selectionArgs) {
+        return build(uri, storeId, selection, selectionArgs);
+    }
+
+    /**
+     * Build the query of the sodas list, or of the stock list of the store with the given ID
+     * if it isn't -1.
+     */
+    private static SodaListQuery build(Uri uri, long storeId, String selection,
+                                       String[] selectionArgs) {
+        String sortKey = uri.getQueryParameter(SodaEntry.QUERY_SORT_KEY);
+        if (sortKey == null) {
+            sortKey = SodaEntry._ID;
+        } else if (storeId == -1 ? !isSortableColumn(sortKey) : !isStoreSortableColumn(sortKey)) {
+            throw new IllegalArgumentException("Cannot sort sodas by " + sortKey);
+        }
+
+        String sortOrder = uri.getQueryParameter(SodaEntry.QUERY_SORT_ORDER);
+        boolean descending = SodaEntry.SORT_DESCENDING.equals(sortOrder);
+        if (sortOrder != null && !descending && !SodaEntry.SORT_ASCENDING.equals(sortOrder)) {
+            throw new IllegalArgumentException("Unknown sort order in " + uri);
+        }
+
+        ArrayList<String> args = new ArrayList<>();
+        if (selectionArgs != null) {
+            args.addAll(Arrays.asList(selectionArgs));
+        }
+        ArrayList<String> terms = new ArrayList<>();
+        if (storeId != -1) {
+            // Leads every index of the stock, so the scan never leaves the store's entries
+            terms.add(StoreStockEntry.QUALIFIED_STORE_ID + " = " + storeId);
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            terms.add("(" + selection + ")");
+        }
+
+        String filter = uri.getQueryParameter(SodaEntry.QUERY_FILTER);
+        if (filter != null) {
+            String quantity = column(SodaEntry.COLUMN_QUANTITY, sortKey, storeId);
+            if (SodaEntry.FILTER_IN_STOCK.equals(filter)) {
+                terms.add(quantity + " > 0");
+            } else if (SodaEntry.FILTER_OUT_OF_STOCK.equals(filter)) {
+                terms.add(quantity + " = 0");
+            } else {
+                throw new IllegalArgumentException("Unknown filter in " + uri);
+            }
+        }
+
+        long minPrice = parsePrice(uri, SodaEntry.QUERY_MIN_PRICE);
+        long maxPrice = parsePrice(uri, SodaEntry.QUERY_MAX_PRICE);
+        if (minPrice != -1 && maxPrice != -1 && minPrice > maxPrice) {
+            throw new IllegalArgumentException("Price range ends before it starts in " + uri);
+        }
+        // The bounds are parsed numbers, written in like the quantity filter. Bound as
+        // arguments they would be text, which a price hidden from the index choice by the
+        // unary plus has no affinity to convert, and text sorts above every integer.
+        String price = column(SodaEntry.COLUMN_PRICE, sortKey, storeId);
+        if (minPrice != -1) {
+            terms.add(price + " >= " + minPrice);
+        }
+        if (maxPrice != -1) {
+            terms.add(price + " <= " + maxPrice);
+        }
+
+        // Only rows that come after the last row of the previous page
+        String id = qualify(SodaEntry._ID, storeId);
+        String key = qualify(sortKey, storeId);
+        String afterKey = uri.getQueryParameter(SodaEntry.QUERY_AFTER_KEY);
+        String afterId = uri.getQueryParameter(SodaEntry.QUERY_AFTER_ID);
+        String after = descending ? " < ?" : " > ?";
+        if (afterId != null) {
+            if (sortKey.equals(SodaEntry._ID)) {
+                terms.add(id + after);
+                args.add(afterId);
+            } else {
+                if (afterKey == null) {
+                    throw new IllegalArgumentException("Missing after key in " + uri);
+                }
+                // The first term starts the index range at the last key, the second skips
+                // the rows with that key that were on the previous page
+                terms.add(key + (descending ? " <= ?" : " >= ?"));
+                terms.add("(" + key + after + " OR " + id + after + ")");
+                args.add(afterKey);
+                args.add(afterKey);
+                args.add(afterId);
+            }
+        }
+
+        String direction = descending ? " DESC" : "";
+        String orderBy = sortKey.equals(SodaEntry._ID)
+                ? id + direction
+                : key + direction + ", " + id + direction;
+
+        String pageSize = uri.getQueryParameter(SodaEntry.QUERY_PAGE_SIZE);
+        return new SodaListQuery(
+                terms.isEmpty() ? null : TextUtils.join(" AND ", terms),
+                args.toArray(new String[args.size()]),
+                orderBy,
+                pageSize == null ? null : String.valueOf(parsePageSize(uri, 0)));
+    }
+
+    /**
+     * Return the column for a filter term, hidden from the index choice unless it is the
+     * sort key, whose index can serve the filter and the order at once. The unary plus also
+     * drops the column's affinity, so terms on it must compare with numbers, not arguments.
+     */
+    private static String column(String column, String sortKey, long storeId) {
+        String qualified = qualify(column, storeId);
+        return column.equals(sortKey) ? qualified : "+" + qualified;
+    }
+
+    /**
+     * Return the column as it is named in the query: the soda columns themselves for the
+     * sodas list, and for a store list the store's own soda ID and quantity or the soda's
+     * other columns.
+     */
+    private static String qualify(String column, long storeId) {
+        if (storeId == -1) {
+            return column;
+        }
+        switch (column) {
+            case SodaEntry._ID:
+                return StoreStockEntry.QUALIFIED_SODA_ID;
+            case SodaEntry.COLUMN_QUANTITY:
+                return StoreStockEntry.QUALIFIED_QUANTITY;
+            default:
+                return SodaEntry.TABLE_NAME + "." + column;
+        }
+    }
+
+    /**
+     * Read a price parameter in cents, or return -1 if there is none.
+     */
+    private static long parsePrice(Uri uri, String name) {
+        String parameter = uri.getQueryParameter(name);
+        if (parameter == null) {
+            return -1;
+        }
+        long price;
+        try {
+            price = Long.parseLong(parameter);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri);
+        }
+        if (price < 0) {
+            throw new IllegalArgumentException("Negative " + name + " in " + uri);
+        }
+        return price;
+    }
+
+    /**
+     * Read the page size query parameter of the URI, or return the default if there is none.
+     */
+    static int parsePageSize(Uri uri, int defaultPageSize) {
+        String parameter = uri.getQueryParameter(SodaEntry.QUERY_PAGE_SIZE);
+        if (parameter == null) {
+            return defaultPageSize;
+        }
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(parameter);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page size in " + uri);
+        }
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be greater than zero in " + uri);
+        }
+        return pageSize;
+    }
+
+    /**
+     * Return whether sodas can be sorted and paginated by the given column.
+     */
+    static boolean isSortableColumn(String column) {
+        return SodaEntry._ID.equals(column)
+                || SodaEntry.COLUMN_NAME.equals(column)
+                || SodaEntry.COLUMN_QUANTITY.equals(column)
+                || SodaEntry.COLUMN_SOLD.equals(column)
+                || SodaEntry.COLUMN_PRICE.equals(column);
+    }
+
+    /**
+     * Return whether the stock list of a store can be sorted and paginated by the given
+     * column, which only its own indexes can do.
+     */
+    static boolean isStoreSortableColumn(String column) {
+        return SodaEntry._ID.equals(column) || SodaEntry.COLUMN_QUANTITY.equals(column);
+    }
+}
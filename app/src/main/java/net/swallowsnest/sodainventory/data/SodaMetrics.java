@@ -0,0 +1,234 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import net.swallowsnest.sodainventory.data.SodaContract.MetricsEntry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and row counts of {@link SodaProvider}, kept per operation and per URI
+ * pattern. Recording only updates atomic counters, so it never allocates or takes a lock.
+ * Operations slower than {@link #SLOW_NANOS} are additionally kept as samples with their
+ * URI and selection in a small ring buffer.
+ */
+class SodaMetrics {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    static final int CALL = 5;
+    static final int BATCH = 6;
+    static final int EXPORT = 7;
+    static final int IMPORT = 8;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete", "call", "batch", "export",
+            "import"
+    };
+
+    /**
+     * Bucket i counts operations that took less than 2^i microseconds, and more than half
+     * of that. The last bucket takes everything slower.
+     */
+    private static final int BUCKETS = 24;
+
+    /**
+     * Operations slower than this are sampled, about a frame at 60 fps
+     */
+    static final long SLOW_NANOS = 16000000;
+
+    private static final int SLOW_SAMPLES = 32;
+
+    /**
+     * Name of every URI pattern, indexed by its match code minus the first match code.
+     * Unmatched URIs are counted in one more slot after the patterns.
+     */
+    private final String[] mPatterns;
+    private final int mFirstMatch;
+    private final int mSlots;
+
+    private final AtomicLongArray mCalls;
+    private final AtomicLongArray mRows;
+    private final AtomicLongArray mTotalNanos;
+    private final AtomicLongArray mMaxNanos;
+    private final AtomicLongArray mBuckets;
+
+    /**
+     * Ring buffer of the latest slow operations. Guarded by "this".
+     */
+    private final String[] mSlowSamples = new String[SLOW_SAMPLES];
+    private int mNextSlowSample;
+
+    /**
+     * @param firstMatch The lowest URI matcher code of the provider
+     * @param patterns   The URI pattern of every match code from the first one on
+     */
+    SodaMetrics(int firstMatch, String[] patterns) {
+        mFirstMatch = firstMatch;
+        mPatterns = patterns;
+        mSlots = OPERATION_NAMES.length * (patterns.length + 1);
+        mCalls = new AtomicLongArray(mSlots);
+        mRows = new AtomicLongArray(mSlots);
+        mTotalNanos = new AtomicLongArray(mSlots);
+        mMaxNanos = new AtomicLongArray(mSlots);
+        mBuckets = new AtomicLongArray(mSlots * BUCKETS);
+    }
+
+    /**
+     * Record one operation. The URI and selection are only looked at if it was slow.
+     */
+    void record(int operation, int match, long nanos, int rows, Uri uri, String selection) {
+        int pattern = match - mFirstMatch;
+        if (pattern < 0 || pattern >= mPatterns.length) {
+            pattern = mPatterns.length;
+        }
+        int slot = operation * (mPatterns.length + 1) + pattern;
+
+        mCalls.incrementAndGet(slot);
+        mRows.addAndGet(slot, rows);
+        mTotalNanos.addAndGet(slot, nanos);
+        long max = mMaxNanos.get(slot);
+        while (nanos > max && !mMaxNanos.compareAndSet(slot, max, nanos)) {
+            max = mMaxNanos.get(slot);
+        }
+        mBuckets.incrementAndGet(slot * BUCKETS + bucketOf(nanos));
+
+        if (nanos >= SLOW_NANOS) {
+            recordSlow(operation, nanos, rows, uri, selection);
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private synchronized void recordSlow(int operation, long nanos, int rows, Uri uri,
+                                         String selection) {
+        mSlowSamples[mNextSlowSample] = System.currentTimeMillis() + " "
+                + OPERATION_NAMES[operation] + " " + uri + " took " + nanos / 1000 + " us, "
+                + rows + " rows, selection: " + selection;
+        mNextSlowSample = (mNextSlowSample + 1) % SLOW_SAMPLES;
+    }
+
+    /**
+     * Return one row for every operation and URI pattern that was used, with the columns
+     * of {@link MetricsEntry}.
+     */
+    Cursor toCursor() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                MetricsEntry.COLUMN_OPERATION,
+                MetricsEntry.COLUMN_URI_PATTERN,
+                MetricsEntry.COLUMN_CALLS,
+                MetricsEntry.COLUMN_ROWS,
+                MetricsEntry.COLUMN_TOTAL_MICROS,
+                MetricsEntry.COLUMN_MAX_MICROS,
+                MetricsEntry.COLUMN_P50_MICROS,
+                MetricsEntry.COLUMN_P99_MICROS,
+                MetricsEntry.COLUMN_HISTOGRAM});
+        for (int slot = 0; slot < mSlots; slot++) {
+            long calls = mCalls.get(slot);
+            if (calls == 0) {
+                continue;
+            }
+            int operation = slot / (mPatterns.length + 1);
+            int pattern = slot % (mPatterns.length + 1);
+            cursor.addRow(new Object[]{
+                    OPERATION_NAMES[operation],
+                    pattern < mPatterns.length ? mPatterns[pattern] : "other",
+                    calls,
+                    mRows.get(slot),
+                    mTotalNanos.get(slot) / 1000,
+                    mMaxNanos.get(slot) / 1000,
+                    percentileMicros(slot, calls, 0.50),
+                    percentileMicros(slot, calls, 0.99),
+                    histogram(slot)});
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the upper bound of the bucket that holds the given percentile, in microseconds.
+     */
+    private long percentileMicros(int slot, long calls, double fraction) {
+        long target = (long) Math.ceil(calls * fraction);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += mBuckets.get(slot * BUCKETS + bucket);
+            if (seen >= target) {
+                return 1L << bucket;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * Return the bucket counts of the slot up to the last used one, separated by spaces.
+     */
+    private String histogram(int slot) {
+        int last = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (mBuckets.get(slot * BUCKETS + bucket) != 0) {
+                last = bucket;
+            }
+        }
+        StringBuilder histogram = new StringBuilder();
+        for (int bucket = 0; bucket <= last; bucket++) {
+            histogram.append(bucket > 0 ? " " : "").append(mBuckets.get(slot * BUCKETS + bucket));
+        }
+        return histogram.toString();
+    }
+
+    /**
+     * Return the slow operation samples, oldest first.
+     */
+    synchronized String[] getSlowSamples() {
+        int count = 0;
+        for (String sample : mSlowSamples) {
+            if (sample != null) {
+                count++;
+            }
+        }
+        String[] samples = new String[count];
+        int next = 0;
+        for (int i = 0; i < SLOW_SAMPLES; i++) {
+            String sample = mSlowSamples[(mNextSlowSample + i) % SLOW_SAMPLES];
+            if (sample != null) {
+                samples[next++] = sample;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Return every counter as text, for dumping from a support build.
+     */
+    String dump() {
+        StringBuilder dump = new StringBuilder();
+        Cursor cursor = toCursor();
+        try {
+            while (cursor.moveToNext()) {
+                dump.append(cursor.getString(0)).append(' ').append(cursor.getString(1))
+                        .append(": calls=").append(cursor.getLong(2))
+                        .append(" rows=").append(cursor.getLong(3))
+                        .append(" total_us=").append(cursor.getLong(4))
+                        .append(" max_us=").append(cursor.getLong(5))
+                        .append(" p50_us<=").append(cursor.getLong(6))
+                        .append(" p99_us<=").append(cursor.getLong(7))
+                        .append(" buckets=[").append(cursor.getString(8)).append("]\n");
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String sample : getSlowSamples()) {
+            dump.append("slow: ").append(sample).append('\n');
+        }
+        return dump.toString();
+    }
+}
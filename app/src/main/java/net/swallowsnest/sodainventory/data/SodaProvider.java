@@ -1,17 +1,62 @@
 package net.swallowsnest.sodainventory.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static net.swallowsnest.sodainventory.data.SodaContract.CONTENT_AUTHORITY;
+import static net.swallowsnest.sodainventory.data.SodaContract.LowStockEntry;
+import static net.swallowsnest.sodainventory.data.SodaContract.MetricsEntry;
+import static net.swallowsnest.sodainventory.data.SodaContract.PATH_LOW_STOCK;
+import static net.swallowsnest.sodainventory.data.SodaContract.PATH_METRICS;
+import static net.swallowsnest.sodainventory.data.SodaContract.PATH_SALES;
+import static net.swallowsnest.sodainventory.data.SodaContract.PATH_SEARCH;
+import static net.swallowsnest.sodainventory.data.SodaContract.PATH_SELL;
 import static net.swallowsnest.sodainventory.data.SodaContract.PATH_SODAS;
+import static net.swallowsnest.sodainventory.data.SodaContract.PATH_STATS;
+import static net.swallowsnest.sodainventory.data.SodaContract.PATH_STORES;
+import static net.swallowsnest.sodainventory.data.SodaContract.PATH_TRANSFER;
+import static net.swallowsnest.sodainventory.data.SodaContract.SalesEntry;
 import static net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import static net.swallowsnest.sodainventory.data.SodaContract.StatsEntry;
+import static net.swallowsnest.sodainventory.data.SodaContract.StoreEntry;
+import static net.swallowsnest.sodainventory.data.SodaContract.StoreStockEntry;
 
 /**
  * Created by marshas on 10/28/16.
@@ -28,6 +73,95 @@ public class SodaProvider extends ContentProvider {
      */
     private static final int SODA_ID = 101;
 
+    /**
+     * URI matcher code for the content URI used to sell a single soda
+     */
+    private static final int SODA_SELL = 102;
+
+    /**
+     * URI matcher code for the content URI that searches soda names
+     */
+    private static final int SODA_SEARCH = 103;
+
+    /**
+     * URI matcher code for the content URI of the soda totals
+     */
+    private static final int SODA_STATS = 104;
+
+    /**
+     * URI matcher code for the content URI of the provider's own latency counters
+     */
+    private static final int SODA_METRICS = 105;
+
+    /**
+     * URI matcher code for the content URI of the sales of all sodas
+     */
+    private static final int SODA_SALES = 106;
+
+    /**
+     * URI matcher code for the content URI of the sales of a single soda
+     */
+    private static final int SODA_ID_SALES = 107;
+
+    /**
+     * URI matcher code for the content URI of the sodas that are low on stock
+     */
+    private static final int SODA_LOW_STOCK = 108;
+
+    /**
+     * URI matcher code for the content URI that exports or imports the catalog as a file
+     */
+    private static final int SODA_TRANSFER = 109;
+
+    /**
+     * URI matcher code for the content URI for the stores table
+     */
+    private static final int STORES = 110;
+
+    /**
+     * URI matcher code for the content URI for a single store
+     */
+    private static final int STORE_ID = 111;
+
+    /**
+     * URI matcher code for the content URI of the stock list of a store
+     */
+    private static final int STORE_SODAS = 112;
+
+    /**
+     * URI matcher code for the content URI of the stock of a single soda in a store
+     */
+    private static final int STORE_SODA_ID = 113;
+
+    /**
+     * Number of single soda rows kept in memory
+     */
+    private static final int ROW_CACHE_SIZE = 256;
+
+    /**
+     * Above this many changed rows a single notification for the whole table is sent
+     * instead of one per row
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 50;
+
+    /**
+     * Number of search results returned when the caller doesn't ask for a page size
+     */
+    private static final int SEARCH_LIMIT = 50;
+
+    /**
+     * Buffer size of the streams that export and import files
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    /**
+     * Columns of a store's stock list: the soda's, with the store's own quantity
+     */
+    private static final HashMap<String, String> sStoreStockProjection = new HashMap<>();
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -43,9 +177,89 @@ public class SodaProvider extends ContentProvider {
 
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS, SODAS);
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/#", SODA_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/#/" + PATH_SELL, SODA_SELL);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/" + PATH_SEARCH + "/*", SODA_SEARCH);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/" + PATH_STATS, SODA_STATS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/" + PATH_METRICS, SODA_METRICS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/" + PATH_SALES, SODA_SALES);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/#/" + PATH_SALES, SODA_ID_SALES);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/" + PATH_LOW_STOCK, SODA_LOW_STOCK);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SODAS + "/" + PATH_TRANSFER + "/*",
+                SODA_TRANSFER);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STORES, STORES);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STORES + "/#", STORE_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STORES + "/#/" + PATH_SODAS, STORE_SODAS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STORES + "/#/" + PATH_SODAS + "/#",
+                STORE_SODA_ID);
+
+        sStoreStockProjection.put(SodaEntry._ID,
+                StoreStockEntry.QUALIFIED_SODA_ID + " AS " + SodaEntry._ID);
+        sStoreStockProjection.put(SodaEntry.COLUMN_QUANTITY,
+                StoreStockEntry.QUALIFIED_QUANTITY + " AS " + SodaEntry.COLUMN_QUANTITY);
+        sStoreStockProjection.put(StoreStockEntry.COLUMN_STORE_ID,
+                StoreStockEntry.QUALIFIED_STORE_ID + " AS " + StoreStockEntry.COLUMN_STORE_ID);
+        for (String column : new String[]{SodaEntry.COLUMN_NAME, SodaEntry.COLUMN_SOLD,
+                SodaEntry.COLUMN_PRICE, SodaEntry.COLUMN_IMAGE,
+                SodaEntry.COLUMN_REORDER_THRESHOLD}) {
+            sStoreStockProjection.put(column,
+                    SodaEntry.TABLE_NAME + "." + column + " AS " + column);
+        }
     }
 
     private SodaDbHelper mDbHelper;
+
+    /**
+     * Cache of single soda rows, kept in step with every write through the change notifications
+     */
+    private final SodaRowCache mRowCache = new SodaRowCache(ROW_CACHE_SIZE);
+
+    /**
+     * Latency and row counters of every operation, by URI pattern in match code order
+     */
+    private final SodaMetrics mMetrics = new SodaMetrics(SODAS, new String[]{
+            PATH_SODAS,
+            PATH_SODAS + "/#",
+            PATH_SODAS + "/#/" + PATH_SELL,
+            PATH_SODAS + "/" + PATH_SEARCH + "/*",
+            PATH_SODAS + "/" + PATH_STATS,
+            PATH_SODAS + "/" + PATH_METRICS,
+            PATH_SODAS + "/" + PATH_SALES,
+            PATH_SODAS + "/#/" + PATH_SALES,
+            PATH_SODAS + "/" + PATH_LOW_STOCK,
+            PATH_SODAS + "/" + PATH_TRANSFER + "/*",
+            PATH_STORES,
+            PATH_STORES + "/#",
+            PATH_STORES + "/#/" + PATH_SODAS,
+            PATH_STORES + "/#/" + PATH_SODAS + "/#"});
+
+    /**
+     * Server of {@link SodaEntry#METHOD_SYNC}, or null until the app sets one
+     */
+    private volatile SodaSyncServer mSyncServer;
+
+    /**
+     * Runs the exports and imports of {@link #openFile}, apart from the shared AsyncTask pool
+     * so a long transfer never holds up the app's other background work. Threads are made as
+     * transfers need them, so an export feeding an import never waits on itself.
+     */
+    private final ExecutorService mTransferExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * Change notifications collected while {@link #applyBatch} runs on the current thread.
+     * They are sent once per distinct URI after the batch has committed.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
+    /**
+     * Record every Binder thread decodes the sodas it writes into, so writes don't allocate one
+     */
+    private final ThreadLocal<SodaRecord> mRecords = new ThreadLocal<SodaRecord>() {
+        @Override
+        protected SodaRecord initialValue() {
+            return new SodaRecord();
+        }
+    };
+
     /**
      * Tag for the log messages
      */
@@ -68,16 +282,42 @@ public class SodaProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rows = 0;
+        try {
+            Cursor cursor = query(match, uri, projection, selection, selectionArgs, sortOrder);
+            // Counting runs the query and fills the cursor window, which the caller would
+            // do right away anyway, so the time recorded covers the actual work
+            rows = cursor.getCount();
+            return cursor;
+        } finally {
+            mMetrics.record(SodaMetrics.QUERY, match, System.nanoTime() - start, rows, uri,
+                    selection);
+        }
+    }
+
+    private Cursor query(int match, Uri uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder) {
+        // The counters are kept in memory, not in the database
+        if (match == SODA_METRICS) {
+            return mMetrics.toCursor();
+        }
+
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case SODAS:
+                // List parameters ask for a sorted, filtered or keyset paginated list
+                if (SodaListQuery.isListQuery(uri)) {
+                    cursor = queryList(database, uri, projection, selection, selectionArgs);
+                    break;
+                }
                 // For the SODAS code, query the sodas table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the sodas table.
@@ -86,6 +326,12 @@ public class SodaProvider extends ContentProvider {
                 break;
 
             case SODA_ID:
+                // Plain lookups of cached columns are answered from the row cache
+                if (selection == null && SodaRowCache.canServe(projection)) {
+                    cursor = queryCachedRow(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
+
                 // For the SODA_ID code, extract out the ID from the URI.
                 // For an example URI such as "content://com.example.android.sodas/sodas/3",
                 // the selection will be "_id=?" and the selection argument will be a
@@ -102,6 +348,55 @@ public class SodaProvider extends ContentProvider {
                 cursor = database.query(SodaEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case SODA_SEARCH:
+                cursor = querySearch(database, uri, projection);
+                break;
+            case SODA_STATS:
+                // The totals live in a single row kept up to date by triggers
+                cursor = database.query(StatsEntry.TABLE_NAME, projection, null, null,
+                        null, null, null);
+                // They change whenever any soda changes
+                cursor.setNotificationUri(getContext().getContentResolver(), SodaEntry.CONTENT_URI);
+                return cursor;
+            case SODA_SALES:
+                cursor = querySales(database, uri, SalesEntry.TOTAL_SODA_ID);
+                // Every sale notifies the URI of its soda
+                cursor.setNotificationUri(getContext().getContentResolver(), SodaEntry.CONTENT_URI);
+                return cursor;
+            case SODA_ID_SALES:
+                long id = Long.parseLong(uri.getPathSegments().get(1));
+                cursor = querySales(database, uri, id);
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id));
+                return cursor;
+            case SODA_LOW_STOCK:
+                // The set is small and keyed by soda ID, so this is one primary key lookup
+                // per low soda, in the order they went low
+                cursor = database.query(LowStockEntry.TABLE_NAME + " JOIN " + SodaEntry.TABLE_NAME
+                                + " ON " + SodaEntry.TABLE_NAME + "." + SodaEntry._ID + " = "
+                                + LowStockEntry.TABLE_NAME + "." + LowStockEntry.COLUMN_SODA_ID,
+                        projection, selection, selectionArgs, null, null,
+                        sortOrder == null ? LowStockEntry.COLUMN_SINCE : sortOrder);
+                // Any write to a soda can take it in or out of the set
+                cursor.setNotificationUri(getContext().getContentResolver(), SodaEntry.CONTENT_URI);
+                return cursor;
+            case STORES:
+                cursor = database.query(StoreEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case STORE_ID:
+                cursor = database.query(StoreEntry.TABLE_NAME, projection, StoreEntry._ID + "=?",
+                        new String[]{String.valueOf(ContentUris.parseId(uri))}, null, null, null);
+                break;
+            case STORE_SODAS:
+                cursor = queryStoreStock(database, uri, parseStoreId(uri), projection,
+                        selection, selectionArgs);
+                break;
+            case STORE_SODA_ID:
+                cursor = queryStoreStock(database, uri, parseStoreId(uri), projection,
+                        StoreStockEntry.QUALIFIED_SODA_ID + "=?",
+                        new String[]{String.valueOf(ContentUris.parseId(uri))});
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -109,79 +404,616 @@ public class SodaProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Return a cursor for the soda with the given ID from the row cache, reading the row
+     * from the database and caching it first if needed.
+     */
+    private Cursor queryCachedRow(SQLiteDatabase database, long id, String[] projection) {
+        SodaRecord row = mRowCache.get(id);
+        if (row == null) {
+            long generation = mRowCache.getGeneration();
+            Cursor cursor = database.query(SodaEntry.TABLE_NAME, SodaRowCache.COLUMNS,
+                    SodaEntry._ID + "=?", new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    // Cached rows are shared between readers, so each gets its own record
+                    row = new SodaRecord();
+                    new SodaRecordCodec(cursor).read(cursor, row);
+                    mRowCache.put(row, generation);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return SodaRowCache.toCursor(row, projection);
+    }
+
+    /**
+     * Query the sodas list sorted, filtered and paginated as the query parameters of the URI
+     * say, see {@link SodaListQuery}. A page starts right after the row given by the after
+     * key and after ID parameters, so every page is an index range scan no matter how deep
+     * it is. A projection of just {@link SodaEntry#_COUNT} counts the rows of the list instead.
+     */
+    private Cursor queryList(SQLiteDatabase database, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs) {
+        SodaListQuery query = SodaListQuery.fromUri(uri, selection, selectionArgs);
+        if (projection != null && projection.length == 1
+                && SodaEntry._COUNT.equals(projection[0])) {
+            MatrixCursor count = new MatrixCursor(projection, 1);
+            count.addRow(new Object[]{DatabaseUtils.queryNumEntries(database,
+                    SodaEntry.TABLE_NAME, query.selection, query.selectionArgs)});
+            return count;
+        }
+        return database.query(SodaEntry.TABLE_NAME, projection, query.selection,
+                query.selectionArgs, null, null, query.orderBy, query.limit);
+    }
+
+    /**
+     * Query the stock list of a store, sorted, filtered and paginated like the sodas list.
+     * The stock is read from a covering index that starts with the store, and every soda
+     * in it is looked up by its ID.
+     */
+    private static Cursor queryStoreStock(SQLiteDatabase database, Uri uri, long storeId,
+                                          String[] projection, String selection,
+                                          String[] selectionArgs) {
+        SodaListQuery query = SodaListQuery.forStore(uri, storeId, selection, selectionArgs);
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(StoreStockEntry.JOIN_TABLES);
+        builder.setProjectionMap(sStoreStockProjection);
+        builder.setStrict(true);
+        return builder.query(database, projection, query.selection, query.selectionArgs,
+                null, null, query.orderBy, query.limit);
+    }
+
+    /**
+     * Return the store ID of a URI under a single store, like "stores/2/sodas".
+     */
+    private static long parseStoreId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    /**
+     * Update the soda with the given ID if it is still at the expected version. Return 1, or
+     * 0 if there is no such soda, and throw a {@link SodaVersionConflictException} if it is
+     * at another version. The version is checked in the update statement itself, and the soda
+     * looked up in the same transaction, so no other write can come in between.
+     */
+    private int updateSodaAtVersion(SQLiteDatabase database, Uri uri, long id,
+                                    ContentValues values, long expectedVersion) {
+        database.beginTransaction();
+        try {
+            int rowsUpdated;
+            if (SodaRecordCodec.isWholeRow(values)) {
+                SodaRecord record = mRecords.get();
+                SodaRecordCodec.readValues(values, record);
+                record.id = id;
+                SQLiteStatement update = SodaStatements.get(database).updateRowIfVersion;
+                SodaRecordCodec.bindUpdateIfVersion(update, record, expectedVersion);
+                rowsUpdated = update.executeUpdateDelete();
+            } else {
+                rowsUpdated = database.update(SodaEntry.TABLE_NAME, values,
+                        SodaEntry._ID + "=? AND " + SodaEntry.COLUMN_VERSION + "=?",
+                        new String[]{String.valueOf(id), String.valueOf(expectedVersion)});
+            }
+            if (rowsUpdated == 0) {
+                Cursor cursor = database.query(SodaEntry.TABLE_NAME,
+                        new String[]{SodaEntry.COLUMN_VERSION}, SodaEntry._ID + "=?",
+                        new String[]{String.valueOf(id)}, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        throw new SodaVersionConflictException(uri, expectedVersion,
+                                cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            database.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Read the {@link SodaEntry#QUERY_EXPECTED_VERSION} of an update URI, or return -1 if
+     * there is none.
+     */
+    private static long parseExpectedVersion(Uri uri) {
+        String parameter = uri.getQueryParameter(SodaEntry.QUERY_EXPECTED_VERSION);
+        if (parameter == null) {
+            return -1;
+        }
+        long version;
+        try {
+            version = Long.parseLong(parameter);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid expected version in " + uri);
+        }
+        if (version < 0) {
+            throw new IllegalArgumentException("Negative expected version in " + uri);
+        }
+        return version;
+    }
+
+    /**
+     * Search for sodas whose name has words starting with every word of the query. Names
+     * that start with the first word come first, in name order, read off the case-insensitive
+     * name index so only as many rows as fit are read. The remaining slots are filled from
+     * the full-text index, which is capped before its few matches are sorted by length and
+     * name, so no query sorts every match.
+     */
+    private Cursor querySearch(SQLiteDatabase database, Uri uri, String[] projection) {
+        // Keep only letters and digits of every word, so the query can't use FTS syntax,
+        // and turn every word into a prefix match
+        StringBuilder match = new StringBuilder();
+        String firstWord = null;
+        int words = 0;
+        for (String word : uri.getLastPathSegment().split("\\s+")) {
+            StringBuilder term = new StringBuilder();
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    term.append(c);
+                }
+            }
+            if (term.length() == 0) {
+                continue;
+            }
+            if (firstWord == null) {
+                firstWord = term.toString().toLowerCase(Locale.US);
+            }
+            match.append(match.length() > 0 ? " " : "").append(term).append('*');
+            words++;
+        }
+
+        int limit = SodaListQuery.parsePageSize(uri, SEARCH_LIMIT);
+
+        // A query without any words matches nothing
+        if (firstWord == null) {
+            return database.query(SodaEntry.TABLE_NAME, projection, "0", null,
+                    null, null, null);
+        }
+
+        // Names starting with the first word sort between it and the word with its last
+        // character bumped, which NOCASE compares the same as the lower case word
+        String from = firstWord;
+        String to = firstWord.substring(0, firstWord.length() - 1)
+                + (char) (firstWord.charAt(firstWord.length() - 1) + 1);
+        String prefix = SodaEntry.COLUMN_NAME + " >= ? COLLATE NOCASE AND "
+                + SodaEntry.COLUMN_NAME + " < ? COLLATE NOCASE";
+        String ftsMatch = SodaEntry._ID + " IN (SELECT docid FROM " + SodaEntry.FTS_TABLE_NAME
+                + " WHERE " + SodaEntry.FTS_TABLE_NAME + " MATCH ?)";
+
+        // A single word is matched by the prefix itself, more words also have to match
+        Cursor prefixed;
+        if (words == 1) {
+            prefixed = database.query(SodaEntry.TABLE_NAME, projection, prefix,
+                    new String[]{from, to}, null, null,
+                    SodaEntry.COLUMN_NAME + " COLLATE NOCASE", String.valueOf(limit));
+        } else {
+            prefixed = database.query(SodaEntry.TABLE_NAME, projection,
+                    prefix + " AND " + ftsMatch, new String[]{from, to, match.toString()},
+                    null, null, SodaEntry.COLUMN_NAME + " COLLATE NOCASE", String.valueOf(limit));
+        }
+        int rest = limit - prefixed.getCount();
+        if (rest <= 0) {
+            return prefixed;
+        }
+
+        // The index returns matches in docid order and stops at the limit. Every name found
+        // above is among its matches, so the limit leaves room for them and they are skipped
+        // afterwards. Skipping them inside the index would read back the name of every match,
+        // all of them for a prefix that only starts first words.
+        String selection = SodaEntry._ID + " IN (SELECT docid FROM " + SodaEntry.FTS_TABLE_NAME
+                + " WHERE " + SodaEntry.FTS_TABLE_NAME + " MATCH ? LIMIT "
+                + (rest + prefixed.getCount()) + ") AND NOT (" + prefix + ")";
+        String orderBy = "length(" + SodaEntry.COLUMN_NAME + "), " + SodaEntry.COLUMN_NAME;
+        Cursor others = database.query(SodaEntry.TABLE_NAME, projection, selection,
+                new String[]{match.toString(), from, to}, null, null, orderBy,
+                String.valueOf(rest));
+        return new MergeCursor(new Cursor[]{prefixed, others});
+    }
+
+    /**
+     * Query the sales of the soda with the given ID, or of all sodas for
+     * {@link SalesEntry#TOTAL_SODA_ID}, over the window of the URI. Only the rollup tables
+     * are read: a summary takes the daily buckets of the whole days in the window and the
+     * hourly buckets of the partial days at both ends, so it reads at most 46 hourly buckets
+     * plus one per day however many sales there were. Days are UTC days, like the daily
+     * buckets, so a window from local midnight to local midnight is stitched from hours at
+     * both ends in other time zones.
+     */
+    private static Cursor querySales(SQLiteDatabase database, Uri uri, long sodaId) {
+        long to = parseTime(uri, SalesEntry.QUERY_TO, System.currentTimeMillis());
+        long from = parseTime(uri, SalesEntry.QUERY_FROM, to - DAY_MILLIS);
+        // Hours are the smallest buckets, so the window is widened to whole hours
+        from = floor(from, HOUR_MILLIS);
+        to = ceil(to, HOUR_MILLIS);
+        if (from >= to) {
+            throw new IllegalArgumentException("Sales window ends before it starts in " + uri);
+        }
+
+        String id = String.valueOf(sodaId);
+        String bucket = uri.getQueryParameter(SalesEntry.QUERY_BUCKET);
+        if (bucket != null) {
+            String table;
+            if (SalesEntry.BUCKET_HOUR.equals(bucket)) {
+                table = SalesEntry.HOURLY_TABLE_NAME;
+            } else if (SalesEntry.BUCKET_DAY.equals(bucket)) {
+                table = SalesEntry.DAILY_TABLE_NAME;
+                from = floor(from, DAY_MILLIS);
+                to = ceil(to, DAY_MILLIS);
+            } else {
+                throw new IllegalArgumentException("Unknown sales bucket in " + uri);
+            }
+            return database.query(table,
+                    new String[]{SalesEntry.COLUMN_BUCKET, SalesEntry.COLUMN_QUANTITY},
+                    SalesEntry.COLUMN_SODA_ID + " = ? AND " + SalesEntry.COLUMN_BUCKET
+                            + " >= ? AND " + SalesEntry.COLUMN_BUCKET + " < ?",
+                    new String[]{id, String.valueOf(from), String.valueOf(to)},
+                    null, null, SalesEntry.COLUMN_BUCKET);
+        }
+
+        // Whole days in the window, or an empty range at its end if there are none
+        long firstDay = ceil(from, DAY_MILLIS);
+        long lastDay = floor(to, DAY_MILLIS);
+        if (firstDay >= lastDay) {
+            firstDay = to;
+            lastDay = to;
+        }
+
+        // Every sum is a range scan of the primary key of its rollup table
+        String sql = "SELECT ?1 AS " + SalesEntry.COLUMN_SODA_ID
+                + ", ?2 AS " + SalesEntry.COLUMN_WINDOW_START
+                + ", ?3 AS " + SalesEntry.COLUMN_WINDOW_END
+                + ", " + SalesEntry.COLUMN_QUANTITY
+                + ", " + SalesEntry.COLUMN_QUANTITY + " * " + HOUR_MILLIS + ".0 / (?3 - ?2) AS "
+                + SalesEntry.COLUMN_PER_HOUR
+                + " FROM (SELECT "
+                + sumSales(SalesEntry.DAILY_TABLE_NAME, "?4", "?5") + " + "
+                + sumSales(SalesEntry.HOURLY_TABLE_NAME, "?2", "?4") + " + "
+                + sumSales(SalesEntry.HOURLY_TABLE_NAME, "?5", "?3") + " AS "
+                + SalesEntry.COLUMN_QUANTITY + ")";
+        return database.rawQuery(sql, new String[]{id, String.valueOf(from), String.valueOf(to),
+                String.valueOf(firstDay), String.valueOf(lastDay)});
+    }
+
+    /**
+     * Return a subquery summing the buckets of the soda ?1 in the given rollup table between
+     * the given parameters.
+     */
+    private static String sumSales(String table, String from, String to) {
+        return "(SELECT IFNULL(SUM(" + SalesEntry.COLUMN_QUANTITY + "), 0) FROM " + table
+                + " WHERE " + SalesEntry.COLUMN_SODA_ID + " = ?1 AND "
+                + SalesEntry.COLUMN_BUCKET + " >= " + from + " AND "
+                + SalesEntry.COLUMN_BUCKET + " < " + to + ")";
+    }
+
+    /**
+     * Read a time query parameter of the URI, or return the default if there is none.
+     */
+    private static long parseTime(Uri uri, String name, long defaultTime) {
+        String parameter = uri.getQueryParameter(name);
+        if (parameter == null) {
+            return defaultTime;
+        }
+        try {
+            return Long.parseLong(parameter);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " time in " + uri);
+        }
+    }
+
+    private static long floor(long time, long unit) {
+        return time - ((time % unit) + unit) % unit;
+    }
+
+    private static long ceil(long time, long unit) {
+        return -floor(-time, unit);
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        Uri newUri = null;
+        try {
+            newUri = insert(match, uri, contentValues);
+            return newUri;
+        } finally {
+            mMetrics.record(SodaMetrics.INSERT, match, System.nanoTime() - start,
+                    newUri == null ? 0 : 1, uri, null);
+        }
+    }
+
+    private Uri insert(int match, Uri uri, ContentValues contentValues) {
         switch (match) {
             case SODAS:
                 return insertSoda(uri, contentValues);
+            case STORES:
+                return insertStore(uri, contentValues);
+            case STORE_SODAS:
+                return insertStoreStock(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
 
     /**
-     * Insert a soda into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Insert a store with the given name. Return the content URI of the new store.
      */
-    private Uri insertSoda(Uri uri, ContentValues values) {
+    private Uri insertStore(Uri uri, ContentValues values) {
+        String name = values.getAsString(StoreEntry.COLUMN_NAME);
+        if (name == null || values.size() != 1) {
+            throw new IllegalArgumentException("Store requires a name and nothing else");
+        }
+
+        long id = mDbHelper.getWritableDatabase().insert(StoreEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for: " + uri);
+            return null;
+        }
+        Uri storeUri = ContentUris.withAppendedId(StoreEntry.CONTENT_URI, id);
+        notifyChange(storeUri);
+        return storeUri;
+    }
 
-        //Check that the soda has a name
-        String name = values.getAsString(SodaEntry.COLUMN_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Soda requires a name.");
+    /**
+     * Start stocking a soda in the store of the URI. Return the content URI of the soda in the
+     * store, or null if the store or the soda doesn't exist or the store already stocks it.
+     */
+    private Uri insertStoreStock(Uri uri, ContentValues values) {
+        long storeId = parseStoreId(uri);
+        SQLiteStatement insert =
+                SodaStatements.get(mDbHelper.getWritableDatabase()).insertStoreStock;
+        long id = bindStoreStock(insert, storeId, values);
+        try {
+            if (insert.executeInsert() == -1) {
+                Log.e(LOG_TAG, "No store or soda to stock for: " + uri);
+                return null;
+            }
+        } catch (SQLiteConstraintException e) {
+            Log.e(LOG_TAG, "Soda " + id + " is already stocked for: " + uri);
+            return null;
         }
+        Uri stockUri = StoreEntry.buildStoreSodaUri(storeId, id);
+        notifyChange(stockUri);
+        return stockUri;
+    }
 
-        //Check that the quantity is greater than 0
-        Integer quantity = values.getAsInteger(SodaEntry.COLUMN_QUANTITY);
-        if (quantity != null && quantity < 0) {
-            throw new IllegalArgumentException("Soda requires quantity greater than zero.");
+    /**
+     * Validate the stock of a soda and bind it to the insert statement of the store stock.
+     * Return the ID of the soda.
+     */
+    private static long bindStoreStock(SQLiteStatement insert, long storeId,
+                                       ContentValues values) {
+        Long sodaId = values.getAsLong(StoreStockEntry.COLUMN_SODA_ID);
+        if (sodaId == null) {
+            throw new IllegalArgumentException("Store stock requires a soda ID");
         }
+        insert.bindLong(1, storeId);
+        insert.bindLong(2, sodaId);
+        insert.bindLong(3, parseStockQuantity(values));
+        return sodaId;
+    }
 
-        //Check that the price is also valid.
-        Integer price = values.getAsInteger(SodaEntry.COLUMN_PRICE);
-        if (price == null) {
-            throw new IllegalArgumentException("Soda requires a price.");
+    /**
+     * Return the quantity of stock in the values, zero if there is none.
+     */
+    private static int parseStockQuantity(ContentValues values) {
+        if (!values.containsKey(StoreStockEntry.COLUMN_QUANTITY)) {
+            return 0;
         }
+        Integer quantity = values.getAsInteger(StoreStockEntry.COLUMN_QUANTITY);
+        if (quantity == null || quantity < 0) {
+            throw new IllegalArgumentException("Store stock requires a valid quantity");
+        }
+        return quantity;
+    }
 
+    /**
+     * Insert a soda into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertSoda(Uri uri, ContentValues values) {
+
+        // Make sure the values describe a valid soda before touching the database
+        SodaRecord record = mRecords.get();
+        SodaRecordCodec.readValues(values, record);
 
         //Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        long id = database.insert(SodaEntry.TABLE_NAME, null, values);
+        SQLiteStatement insert = SodaStatements.get(database).insert;
+        SodaRecordCodec.bindInsert(insert, record);
+        long id = insert.executeInsert();
 
         if (id == -1) {
             Log.e(LOG_TAG, "Failed to insert row for: " + uri);
+            return null;
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id));
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
         return ContentUris.withAppendedId(uri, id);
     }
 
+    /**
+     * Insert a whole set of sodas, such as a supplier catalog, in a single transaction.
+     * Every row is validated before anything is written, so either all rows are inserted
+     * or none are. Every row is decoded once, while validating, and the records are then bound
+     * to the pooled insert statement. A single change notification is sent once the
+     * transaction has committed.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rowsInserted = 0;
+        try {
+            rowsInserted = bulkInsert(match, uri, values);
+            return rowsInserted;
+        } finally {
+            mMetrics.record(SodaMetrics.BULK_INSERT, match, System.nanoTime() - start,
+                    rowsInserted, uri, null);
+        }
+    }
+
+    private int bulkInsert(int match, Uri uri, ContentValues[] values) {
+        if (match == STORE_SODAS) {
+            return bulkInsertStoreStock(uri, values);
+        }
+        if (match != SODAS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        // Validate everything up front so a bad row can't leave a half imported catalog
+        SodaRecord[] records = new SodaRecord[values.length];
+        for (int i = 0; i < values.length; i++) {
+            records[i] = new SodaRecord();
+            SodaRecordCodec.readValues(values[i], records[i]);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsInserted = 0;
+
+        SQLiteStatement insert = SodaStatements.get(database).insert;
+
+        database.beginTransaction();
+        try {
+            for (SodaRecord record : records) {
+                SodaRecordCodec.bindInsert(insert, record);
+                if (insert.executeInsert() == -1) {
+                    Log.e(LOG_TAG, "Failed to insert row for: " + uri);
+                } else {
+                    rowsInserted++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsInserted != 0) {
+            notifyChange(uri);
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Stock a whole set of sodas in the store of the URI in a single transaction, such as
+     * when a store opens. Sodas that don't exist or are stocked already are skipped. A
+     * single change notification for the store's list is sent once the transaction has
+     * committed.
+     */
+    private int bulkInsertStoreStock(Uri uri, ContentValues[] values) {
+        long storeId = parseStoreId(uri);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteStatement insert = SodaStatements.get(database).insertStoreStock;
+        int rowsInserted = 0;
+
+        database.beginTransaction();
+        try {
+            for (ContentValues row : values) {
+                bindStoreStock(insert, storeId, row);
+                try {
+                    if (insert.executeInsert() != -1) {
+                        rowsInserted++;
+                    }
+                } catch (SQLiteConstraintException e) {
+                    // Already stocked, its quantity stays as it is
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsInserted != 0) {
+            notifyChange(StoreEntry.buildStoreSodasUri(storeId));
+        }
+        return rowsInserted;
+    }
+
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rowsUpdated = 0;
+        try {
+            rowsUpdated = update(match, uri, contentValues, selection, selectionArgs);
+            return rowsUpdated;
+        } finally {
+            mMetrics.record(SodaMetrics.UPDATE, match, System.nanoTime() - start, rowsUpdated,
+                    uri, selection);
+        }
+    }
+
+    private int update(int match, Uri uri, ContentValues contentValues, String selection,
+                       String[] selectionArgs) {
         switch (match) {
             case SODAS:
                 return updateSoda(uri, contentValues, selection, selectionArgs);
             case SODA_ID:
-                // For the SODA_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = SodaEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateSoda(uri, contentValues, selection, selectionArgs);
+                // For the SODA_ID code, the row to update is given by the ID in the URI,
+                // so any selection is ignored
+                return updateSoda(uri, contentValues, null, null);
+            case SODA_SELL:
+                // The URI looks like "sodas/3/sell", so the ID is the second path segment.
+                // The number of sodas to sell is optional and defaults to one.
+                long id = Long.parseLong(uri.getPathSegments().get(1));
+                Integer count = contentValues == null
+                        ? null : contentValues.getAsInteger(SodaEntry.KEY_SELL_COUNT);
+                return sellSoda(id, count == null ? 1 : count) == null ? 0 : 1;
+            case STORE_ID:
+                return updateStore(uri, contentValues);
+            case STORE_SODA_ID:
+                return updateStoreStock(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
+    /**
+     * Rename the store of the URI.
+     */
+    private int updateStore(Uri uri, ContentValues values) {
+        if (values.size() != 1 || values.getAsString(StoreEntry.COLUMN_NAME) == null) {
+            throw new IllegalArgumentException("Store updates require a name and nothing else");
+        }
+        int rowsUpdated = mDbHelper.getWritableDatabase().update(StoreEntry.TABLE_NAME, values,
+                StoreEntry._ID + "=?", new String[]{String.valueOf(ContentUris.parseId(uri))});
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Set the quantity of the soda of the URI in its store.
+     */
+    private int updateStoreStock(Uri uri, ContentValues values) {
+        if (values.size() != 1 || !values.containsKey(StoreStockEntry.COLUMN_QUANTITY)) {
+            throw new IllegalArgumentException("Store stock updates only set the quantity");
+        }
+        SQLiteStatement update =
+                SodaStatements.get(mDbHelper.getWritableDatabase()).updateStoreStock;
+        update.bindLong(1, parseStockQuantity(values));
+        update.bindLong(2, parseStoreId(uri));
+        update.bindLong(3, ContentUris.parseId(uri));
+        int rowsUpdated = update.executeUpdateDelete();
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+        return rowsUpdated;
+    }
+
     /**
      * Update sodas in the database with the given content values. Apply the changes to the rows
      * specified in the selection and selection arguments (which could be 0 or 1 or more sodas).
@@ -211,13 +1043,21 @@ public class SodaProvider extends ContentProvider {
         // If the {@link SodaEntry#COLUMN_SODA_PRICE} key is present,
         //Check that price isn't empty
         if (values.containsKey(SodaEntry.COLUMN_PRICE)) {
-            Integer price = values.getAsInteger(SodaEntry.COLUMN_PRICE);
-            if (price == null) {
+            Long price = values.getAsLong(SodaEntry.COLUMN_PRICE);
+            if (price == null || price < 0) {
                 throw new IllegalArgumentException("Soda requires a price.");
             }
         }
 
 
+        // The version and sync ID are only ever set by the database itself
+        if (values.containsKey(SodaEntry.COLUMN_VERSION)
+                || values.containsKey(SodaEntry.COLUMN_SYNC_ID)) {
+            throw new IllegalArgumentException("Soda versions and sync IDs cannot be updated.");
+        }
+
+        long expectedVersion = parseExpectedVersion(uri);
+
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0) {
             return 0;
@@ -226,32 +1066,302 @@ public class SodaProvider extends ContentProvider {
         // Otherwise, get writeable database to update the data
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Returns the number of database rows affected by the update statement
-        int rowsUpdated = database.update(SodaEntry.TABLE_NAME, values, selection, selectionArgs);
+        // A single soda URI already says which row changes
+        if (sUriMatcher.match(uri) == SODA_ID) {
+            int rowsUpdated;
+            long id = ContentUris.parseId(uri);
+            if (expectedVersion != -1) {
+                rowsUpdated = updateSodaAtVersion(database, uri, id, values, expectedVersion);
+            } else if (SodaRecordCodec.isWholeRow(values)) {
+                // The editor always saves every column, which binds straight from a record
+                SodaRecord record = mRecords.get();
+                SodaRecordCodec.readValues(values, record);
+                record.id = id;
+                SQLiteStatement update = SodaStatements.get(database).updateRow;
+                SodaRecordCodec.bindUpdate(update, record);
+                rowsUpdated = update.executeUpdateDelete();
+            } else if (values.size() == 1 && values.containsKey(SodaEntry.COLUMN_QUANTITY)) {
+                // Stock corrections only set the quantity
+                SQLiteStatement update = SodaStatements.get(database).updateQuantity;
+                update.bindLong(1, values.getAsInteger(SodaEntry.COLUMN_QUANTITY));
+                update.bindLong(2, id);
+                rowsUpdated = update.executeUpdateDelete();
+            } else {
+                rowsUpdated = database.update(SodaEntry.TABLE_NAME, values,
+                        SodaEntry._ID + "=?", new String[]{String.valueOf(id)});
+            }
+            if (rowsUpdated != 0) {
+                notifyChange(uri);
+            }
+            return rowsUpdated;
+        }
+
+        if (expectedVersion != -1) {
+            throw new IllegalArgumentException("Only single soda updates take an expected "
+                    + "version: " + uri);
+        }
+
+        // Otherwise find out which rows the selection hits, so only those are notified
+        long[] ids;
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            ids = queryIds(database, selection, selectionArgs);
+            // Returns the number of database rows affected by the update statement
+            rowsUpdated = database.update(SodaEntry.TABLE_NAME, values, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyRowsChanged(ids);
         }
         return rowsUpdated;
     }
 
+    /**
+     * Return the IDs of the sodas that match the selection.
+     */
+    private static long[] queryIds(SQLiteDatabase database, String selection,
+                                   String[] selectionArgs) {
+        Cursor cursor = database.query(SodaEntry.TABLE_NAME, new String[]{SodaEntry._ID},
+                selection, selectionArgs, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Notify observers of the single soda URIs of the given sodas. When there are many of them,
+     * one notification for the whole table is cheaper for everybody.
+     */
+    private void notifyRowsChanged(long[] ids) {
+        if (ids.length > MAX_ROW_NOTIFICATIONS) {
+            notifyChange(SodaEntry.CONTENT_URI);
+            return;
+        }
+        for (long id : ids) {
+            notifyChange(ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id));
+        }
+    }
+
+
+    /**
+     * Sell sodas in a single UPDATE statement, so concurrent sales can never overwrite each other.
+     * The quantity only goes down if there is enough stock for the whole sale.
+     * Return a bundle with the new quantity and sold values, or null if nothing was sold.
+     */
+    private Bundle sellSoda(long id, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Soda sales require a count greater than zero.");
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Bundle result = null;
+
+        database.beginTransaction();
+        try {
+            SQLiteStatement sell = SodaStatements.get(database).sell;
+            sell.bindLong(1, count);
+            sell.bindLong(2, id);
+            if (sell.executeUpdateDelete() == 0) {
+                return null;
+            }
+
+            // Record the sale in the ledger, whose trigger adds it to the rollups
+            SQLiteStatement insertSale = SodaStatements.get(database).insertSale;
+            insertSale.bindLong(1, id);
+            insertSale.bindLong(2, System.currentTimeMillis());
+            insertSale.bindLong(3, count);
+            insertSale.executeInsert();
+
+            // Read the new values back inside the same transaction
+            Cursor cursor = database.query(SodaEntry.TABLE_NAME,
+                    new String[]{SodaEntry.COLUMN_QUANTITY, SodaEntry.COLUMN_SOLD,
+                            SodaEntry.COLUMN_REORDER_THRESHOLD, SodaEntry.COLUMN_VERSION},
+                    SodaEntry._ID + "=?", new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    result = new Bundle();
+                    result.putInt(SodaEntry.COLUMN_QUANTITY, cursor.getInt(0));
+                    result.putInt(SodaEntry.COLUMN_SOLD, cursor.getInt(1));
+                    result.putLong(SodaEntry.COLUMN_VERSION, cursor.getLong(3));
+                    // The low stock trigger fired for this sale if it crossed the threshold
+                    int quantity = cursor.getInt(0);
+                    int threshold = cursor.getInt(2);
+                    result.putBoolean(SodaEntry.KEY_LOW_STOCK,
+                            quantity <= threshold && quantity + count > threshold);
+                }
+            } finally {
+                cursor.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        notifyChange(ContentUris.withAppendedId(SodaEntry.CONTENT_URI, id));
+        return result;
+    }
+
+    /**
+     * Handle provider specific calls. {@link SodaEntry#METHOD_SELL} sells the soda whose ID is
+     * given as the argument, optionally with {@link SodaEntry#KEY_SELL_COUNT} in the extras.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // Sales are the only hot call, count them with the sell URIs
+        int match = SodaEntry.METHOD_SELL.equals(method) ? SODA_SELL : UriMatcher.NO_MATCH;
+        long start = System.nanoTime();
+        Bundle result = null;
+        try {
+            result = callMethod(method, arg, extras);
+            return result;
+        } finally {
+            mMetrics.record(SodaMetrics.CALL, match, System.nanoTime() - start,
+                    result == null ? 0 : 1, SodaEntry.CONTENT_URI, method);
+        }
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if (SodaEntry.METHOD_SELL.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Selling a soda requires its ID.");
+            }
+            int count = extras == null ? 1 : extras.getInt(SodaEntry.KEY_SELL_COUNT, 1);
+            return sellSoda(Long.parseLong(arg), count);
+        }
+        if (SodaEntry.METHOD_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(SodaEntry.KEY_CACHE_HITS, mRowCache.getHits());
+            result.putLong(SodaEntry.KEY_CACHE_MISSES, mRowCache.getMisses());
+            result.putInt(SodaEntry.KEY_CACHE_SIZE, mRowCache.size());
+            return result;
+        }
+        if (SodaEntry.METHOD_SYNC.equals(method)) {
+            return sync();
+        }
+        if (SodaEntry.METHOD_METRICS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putString(SodaEntry.KEY_METRICS, mMetrics.dump());
+            result.putStringArray(SodaEntry.KEY_SLOW_OPERATIONS, mMetrics.getSlowSamples());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Set the server {@link SodaEntry#METHOD_SYNC} syncs with. The app reaches the provider
+     * in its own process through ContentProviderClient.getLocalContentProvider().
+     */
+    public void setSyncServer(SodaSyncServer server) {
+        mSyncServer = server;
+    }
+
+    /**
+     * Sync the sodas with the server, one sync at a time. The engine writes the soda table
+     * directly, so once it pulled anything every cached row is dropped and the whole table
+     * is notified, which also deletes the photos of the sodas it removed.
+     */
+    private synchronized Bundle sync() {
+        SodaSyncServer server = mSyncServer;
+        if (server == null) {
+            throw new IllegalStateException("No sync server to sync with");
+        }
+
+        SodaSyncEngine.Result result = null;
+        try {
+            result = new SodaSyncEngine(mDbHelper.getWritableDatabase(), server).sync();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Sync failed", e);
+            return null;
+        } finally {
+            // A failed sync may have merged some batches before it stopped
+            if (result == null || result.pulled > 0) {
+                notifyChange(SodaEntry.CONTENT_URI);
+            }
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(SodaEntry.KEY_SYNC_PUSHED, result.pushed);
+        bundle.putInt(SodaEntry.KEY_SYNC_PULLED, result.pulled);
+        return bundle;
+    }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rowsDeleted = 0;
+        try {
+            rowsDeleted = delete(match, uri, selection, selectionArgs);
+            return rowsDeleted;
+        } finally {
+            mMetrics.record(SodaMetrics.DELETE, match, System.nanoTime() - start, rowsDeleted,
+                    uri, selection);
+        }
+    }
+
+    private int delete(int match, Uri uri, String selection, String[] selectionArgs) {
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
         int rowsDeleted;
 
-        final int match = sUriMatcher.match(uri);
         switch (match) {
             case SODAS:
-                // Delete all rows that match the selection and selection args
-                return database.delete(SodaEntry.TABLE_NAME, selection, selectionArgs);
+                if (selection == null) {
+                    // Delete every soda, which concerns the whole table
+                    rowsDeleted = SodaStatements.get(database).deleteAll.executeUpdateDelete();
+                    if (rowsDeleted != 0) {
+                        notifyChange(SodaEntry.CONTENT_URI);
+                        notifyChange(StoreEntry.CONTENT_URI);
+                    }
+                    return rowsDeleted;
+                }
+
+                // Delete all rows that match the selection and selection args,
+                // remembering which ones they were so only those are notified
+                long[] ids;
+                database.beginTransaction();
+                try {
+                    ids = queryIds(database, selection, selectionArgs);
+                    rowsDeleted = database.delete(SodaEntry.TABLE_NAME, selection, selectionArgs);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                if (rowsDeleted != 0) {
+                    notifyRowsChanged(ids);
+                    notifyChange(StoreEntry.CONTENT_URI);
+                }
+                return rowsDeleted;
             case SODA_ID:
                 // Delete a single row given by the ID in the URI
-                selection = SodaEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = database.delete(SodaEntry.TABLE_NAME, selection, selectionArgs);
+                SQLiteStatement delete = SodaStatements.get(database).delete;
+                delete.bindLong(1, ContentUris.parseId(uri));
+                rowsDeleted = delete.executeUpdateDelete();
+                if (rowsDeleted != 0) {
+                    // A trigger took the soda out of every store along with it
+                    notifyChange(StoreEntry.CONTENT_URI);
+                }
+                break;
+            case STORE_ID:
+                // A trigger deletes the stock of the store along with it
+                rowsDeleted = database.delete(StoreEntry.TABLE_NAME, StoreEntry._ID + "=?",
+                        new String[]{String.valueOf(ContentUris.parseId(uri))});
+                break;
+            case STORE_SODA_ID:
+                SQLiteStatement deleteStock = SodaStatements.get(database).deleteStoreStock;
+                deleteStock.bindLong(1, parseStoreId(uri));
+                deleteStock.bindLong(2, ContentUris.parseId(uri));
+                rowsDeleted = deleteStock.executeUpdateDelete();
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
@@ -259,11 +1369,294 @@ public class SodaProvider extends ContentProvider {
 
         // Returns the number of database rows affected by the update statement
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
 
+    /**
+     * Open a transfer URI: for reading it streams an export of every soda, for writing it
+     * imports what is written into it. Either way the work happens on a background thread
+     * on the other end of a pipe, so neither side ever holds the whole catalog.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != SODA_TRANSFER) {
+            throw new FileNotFoundException("No file at " + uri);
+        }
+        String format = uri.getLastPathSegment();
+        if (!SodaFileCodec.isFormat(format)) {
+            throw new FileNotFoundException("Unknown transfer format in " + uri);
+        }
+
+        switch (mode) {
+            case "r":
+                return openExportPipe(uri, format);
+            case "w":
+            case "wt":
+                return openImportPipe(uri, format);
+            default:
+                throw new FileNotFoundException("Cannot open " + uri + " with mode " + mode);
+        }
+    }
+
+    /**
+     * Return the read end of a pipe the export is written into on a background thread.
+     */
+    private ParcelFileDescriptor openExportPipe(final Uri uri, final String format)
+            throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe = createTransferPipe(uri);
+        mTransferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                exportToPipe(uri, format, pipe[1]);
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Return the write end of a pipe whose read end is imported on a background thread.
+     */
+    private ParcelFileDescriptor openImportPipe(final Uri uri, final String format)
+            throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe = createTransferPipe(uri);
+        mTransferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                importFromPipe(uri, format, pipe[0]);
+            }
+        });
+        return pipe[1];
+    }
+
+    /**
+     * Create the pipe of a transfer. On KitKat and later the pipe is reliable, so a failed
+     * transfer reaches the other end as an error instead of looking like a short file.
+     */
+    private static ParcelFileDescriptor[] createTransferPipe(Uri uri)
+            throws FileNotFoundException {
+        try {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    ? ParcelFileDescriptor.createReliablePipe()
+                    : ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to open a pipe for " + uri);
+        }
+    }
+
+    private void exportToPipe(Uri uri, String format, ParcelFileDescriptor output) {
+        long start = System.nanoTime();
+        int rows = 0;
+        String error = null;
+        try {
+            // The export flushes everything it wrote before it returns
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(output.getFileDescriptor()), "UTF-8"),
+                    TRANSFER_BUFFER_SIZE);
+            rows = SodaFileCodec.export(mDbHelper.getReadableDatabase(), format, out);
+        } catch (IOException e) {
+            // The reader went away before the end, there is nobody left to tell
+            Log.w(LOG_TAG, "Export to " + uri + " stopped", e);
+        } catch (RuntimeException e) {
+            // E.g. the database failed to open, which the reader must not take for an
+            // empty catalog
+            Log.e(LOG_TAG, "Export to " + uri + " failed", e);
+            error = "Export failed: " + e;
+        } finally {
+            closeTransfer(uri, output, error);
+            mMetrics.record(SodaMetrics.EXPORT, SODA_TRANSFER, System.nanoTime() - start,
+                    rows, uri, error);
+        }
+    }
+
+    private void importFromPipe(Uri uri, String format, ParcelFileDescriptor input) {
+        long start = System.nanoTime();
+        int rows = 0;
+        String error = null;
+        try {
+            Reader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(input.getFileDescriptor()), "UTF-8"),
+                    TRANSFER_BUFFER_SIZE);
+            rows = SodaFileCodec.importRows(mDbHelper.getWritableDatabase(), format, in,
+                    new SodaFileCodec.ChunkListener() {
+                        @Override
+                        public void onChunkCommitted(int rowsSoFar) {
+                            // The list fills in while the import is running
+                            notifyChange(SodaEntry.CONTENT_URI);
+                        }
+                    });
+        } catch (IOException e) {
+            error = "Failed to read import: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            error = e.getMessage();
+        } catch (RuntimeException e) {
+            // E.g. the disk filled up, the chunk that failed was rolled back
+            Log.e(LOG_TAG, "Import into " + uri + " failed", e);
+            error = "Import failed: " + e;
+        } finally {
+            closeTransfer(uri, input, error);
+            mMetrics.record(SodaMetrics.IMPORT, SODA_TRANSFER, System.nanoTime() - start,
+                    rows, uri, error);
+        }
+    }
+
+    /**
+     * Close our end of a transfer pipe, handing the error to the other end if there was one.
+     */
+    private static void closeTransfer(Uri uri, ParcelFileDescriptor fd, String error) {
+        try {
+            if (error == null) {
+                fd.close();
+                return;
+            }
+            Log.e(LOG_TAG, "Transfer of " + uri + " failed: " + error);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                fd.closeWithError(error);
+            } else {
+                fd.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to close transfer of " + uri, e);
+        }
+    }
+
+    /**
+     * Apply a batch of operations atomically in a single transaction. Operations marked with
+     * {@link ContentProviderOperation.Builder#withYieldAllowed} are used as yield points, so a
+     * long batch can let other threads use the database in between. Change notifications are
+     * held back until the end and sent once per distinct URI.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Every operation is counted on its own as well, this covers the whole transaction
+        long start = System.nanoTime();
+        try {
+            return applyBatchInTransaction(operations);
+        } finally {
+            mMetrics.record(SodaMetrics.BATCH, UriMatcher.NO_MATCH, System.nanoTime() - start,
+                    operations.size(), SodaEntry.CONTENT_URI, null);
+        }
+    }
+
+    private ContentProviderResult[] applyBatchInTransaction(
+            ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Set<Uri> pending = new LinkedHashSet<>();
+        boolean successful = false;
+        boolean yielded = false;
+
+        mPendingNotifications.set(pending);
+        database.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                // Yielding commits what we have so far, which is only allowed between operations
+                if (i > 0 && operation.isYieldAllowed()) {
+                    yielded |= database.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            database.endTransaction();
+            mPendingNotifications.remove();
+
+            // Work committed at a yield point stays in the database even if the batch failed
+            // afterwards, so observers still need to hear about it.
+            if (successful || yielded) {
+                for (Uri uri : pending) {
+                    // Readers may have cached rows again before the batch committed
+                    invalidateCachedRows(uri);
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                deleteDiscardedImages();
+            }
+        }
+    }
+
+    /**
+     * Notify observers that the data at the given URI changed. While a batch is being applied
+     * on this thread the notification is deferred until the batch is done.
+     */
+    private void notifyChange(Uri uri) {
+        invalidateCachedRows(uri);
+
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+            if (sUriMatcher.match(uri) < STORES) {
+                deleteDiscardedImages();
+            }
+        }
+    }
+
+    /**
+     * Delete the files of the photos that committed writes took off their sodas, unless
+     * another soda uses the same photo by now. Triggers note the photos, so this covers
+     * deletes, new photos, imports and sync alike. Only ever runs outside of a transaction,
+     * so a write that is rolled back never loses a photo.
+     */
+    private void deleteDiscardedImages() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (database.inTransaction()
+                || SodaStatements.get(database).countDiscardedImages.simpleQueryForLong() == 0) {
+            return;
+        }
+
+        ArrayList<String> names = new ArrayList<>();
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.rawQuery("SELECT " + SodaEntry.COLUMN_IMAGE + " FROM "
+                    + SodaEntry.DISCARDED_IMAGES_TABLE_NAME + " WHERE " + SodaEntry.COLUMN_IMAGE
+                    + " NOT IN (SELECT " + SodaEntry.COLUMN_IMAGE + " FROM " + SodaEntry.TABLE_NAME
+                    + " WHERE " + SodaEntry.COLUMN_IMAGE + " IS NOT NULL)", null);
+            try {
+                while (cursor.moveToNext()) {
+                    names.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            database.delete(SodaEntry.DISCARDED_IMAGES_TABLE_NAME, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        File imagesDir = new File(getContext().getFilesDir(), SodaEntry.IMAGES_DIR);
+        for (String name : names) {
+            File image = new File(imagesDir, name);
+            if (!image.delete() && image.exists()) {
+                Log.w(LOG_TAG, "Failed to delete photo " + image);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached rows that changed at the given URI: one soda for a single soda URI,
+     * everything otherwise.
+     */
+    private void invalidateCachedRows(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        if (match >= STORES) {
+            // Stores keep their own stock, the sodas themselves didn't change
+            return;
+        }
+        if (match == SODA_ID) {
+            mRowCache.invalidate(ContentUris.parseId(uri));
+        } else {
+            mRowCache.invalidateAll();
+        }
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -272,9 +1665,31 @@ public class SodaProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case SODAS:
+            case SODA_SEARCH:
                 return SodaEntry.CONTENT_LIST_TYPE;
             case SODA_ID:
+            case SODA_SELL:
                 return SodaEntry.CONTENT_ITEM_TYPE;
+            case SODA_STATS:
+                return StatsEntry.CONTENT_ITEM_TYPE;
+            case SODA_METRICS:
+                return MetricsEntry.CONTENT_TYPE;
+            case SODA_SALES:
+            case SODA_ID_SALES:
+                return SalesEntry.CONTENT_TYPE;
+            case SODA_LOW_STOCK:
+                return SodaEntry.CONTENT_LIST_TYPE;
+            case SODA_TRANSFER:
+                return SodaEntry.FORMAT_JSON.equals(uri.getLastPathSegment())
+                        ? SodaEntry.MIME_TYPE_JSON : SodaEntry.MIME_TYPE_CSV;
+            case STORES:
+                return StoreEntry.CONTENT_LIST_TYPE;
+            case STORE_ID:
+                return StoreEntry.CONTENT_ITEM_TYPE;
+            case STORE_SODAS:
+                return StoreStockEntry.CONTENT_LIST_TYPE;
+            case STORE_SODA_ID:
+                return StoreStockEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,117 @@
+package net.swallowsnest.sodainventory.data;
+
+/**
+ * One soda with every column of the soda table as a plain field. The price is a whole number
+ * of cents, so it is stored exactly.
+ * <p>
+ * Records are meant to be reused: {@link SodaRecordCodec} reads rows into an existing record
+ * and binds a record into a compiled statement without boxing any value.
+ */
+public class SodaRecord {
+
+    /**
+     * Most dollar digits a price can have without overflowing a long of cents
+     */
+    private static final int MAX_DOLLAR_DIGITS = 16;
+
+    public long id;
+    public String name;
+    public int quantity;
+    public int sold;
+    public long priceCents;
+
+    /**
+     * The soda counts as low on stock when its quantity is at or below this
+     */
+    public int reorderThreshold;
+
+    /**
+     * File name of the product photo, or null if there is none
+     */
+    public String image;
+
+    /**
+     * Version of the row when it was read, see {@link SodaContract.SodaEntry#COLUMN_VERSION}
+     */
+    public long version;
+
+    /**
+     * Reset every field to the column defaults of the soda table.
+     */
+    public void clear() {
+        id = 0;
+        name = null;
+        quantity = 0;
+        sold = 0;
+        priceCents = 0;
+        image = null;
+        reorderThreshold = 0;
+        version = 0;
+    }
+
+    /**
+     * Parse a price typed in as dollars, like "1.5" or "2.25", into cents.
+     *
+     * @throws NumberFormatException if the text isn't a price of zero or more with at most two
+     *                               decimals
+     */
+    public static long parsePrice(String price) {
+        int point = price.indexOf('.');
+        String dollars = point == -1 ? price : price.substring(0, point);
+        String cents = point == -1 ? "" : price.substring(point + 1);
+        if ((dollars.isEmpty() && cents.isEmpty()) || dollars.length() > MAX_DOLLAR_DIGITS
+                || cents.length() > 2 || !isDigits(dollars) || !isDigits(cents)) {
+            throw new NumberFormatException("Invalid price: " + price);
+        }
+
+        long value = dollars.isEmpty() ? 0 : Long.parseLong(dollars) * 100;
+        for (int i = 0; i < 2; i++) {
+            int digit = i < cents.length() ? cents.charAt(i) - '0' : 0;
+            value += digit * (i == 0 ? 10 : 1);
+        }
+        return value;
+    }
+
+    private static boolean isDigits(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the price in cents as dollars with two decimals, like "2.25".
+     */
+    public static String formatPrice(long priceCents) {
+        char[] buffer = new char[21];
+        return new String(buffer, 0, formatPrice(priceCents, buffer));
+    }
+
+    /**
+     * Write the price in cents as dollars with two decimals into the buffer, without
+     * allocating. The buffer needs room for 21 characters. Returns the number of characters
+     * written.
+     */
+    public static int formatPrice(long priceCents, char[] buffer) {
+        boolean negative = priceCents < 0;
+        long remaining = Math.abs(priceCents);
+        int start = buffer.length;
+        buffer[--start] = (char) ('0' + remaining % 10);
+        remaining /= 10;
+        buffer[--start] = (char) ('0' + remaining % 10);
+        remaining /= 10;
+        buffer[--start] = '.';
+        do {
+            buffer[--start] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (negative) {
+            buffer[--start] = '-';
+        }
+        int length = buffer.length - start;
+        System.arraycopy(buffer, start, buffer, 0, length);
+        return length;
+    }
+}
@@ -0,0 +1,191 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+/**
+ * Moves {@link SodaRecord}s in and out of the soda table without boxing. Records are bound
+ * straight into compiled statements for {@link #INSERT_SQL} and {@link #UPDATE_SQL}, and a
+ * codec made for a cursor reads its rows into a reused record with the column indices looked
+ * up only once.
+ * <p>
+ * {@link ContentValues} coming through the provider are decoded and validated once by
+ * {@link #readValues}, after which the rest of the write path only sees the record.
+ */
+public final class SodaRecordCodec {
+
+    /**
+     * Inserts a whole soda. Bind it with {@link #bindInsert}.
+     */
+    public static final String INSERT_SQL = "INSERT INTO " + SodaEntry.TABLE_NAME + " ("
+            + SodaEntry.COLUMN_NAME + ", "
+            + SodaEntry.COLUMN_QUANTITY + ", "
+            + SodaEntry.COLUMN_SOLD + ", "
+            + SodaEntry.COLUMN_PRICE + ", "
+            + SodaEntry.COLUMN_IMAGE + ", "
+            + SodaEntry.COLUMN_REORDER_THRESHOLD + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Replaces every column of the soda with the record's ID. Bind it with {@link #bindUpdate}.
+     */
+    public static final String UPDATE_SQL = "UPDATE " + SodaEntry.TABLE_NAME + " SET "
+            + SodaEntry.COLUMN_NAME + " = ?, "
+            + SodaEntry.COLUMN_QUANTITY + " = ?, "
+            + SodaEntry.COLUMN_SOLD + " = ?, "
+            + SodaEntry.COLUMN_PRICE + " = ?, "
+            + SodaEntry.COLUMN_IMAGE + " = ?, "
+            + SodaEntry.COLUMN_REORDER_THRESHOLD + " = ? WHERE " + SodaEntry._ID + " = ?";
+
+    /**
+     * Replaces every column of the soda with the record's ID if it is still at the expected
+     * version. Bind it with {@link #bindUpdateIfVersion}.
+     */
+    public static final String UPDATE_IF_VERSION_SQL = UPDATE_SQL
+            + " AND " + SodaEntry.COLUMN_VERSION + " = ?";
+
+    /**
+     * Column indices of the cursor this codec reads, -1 for columns it doesn't have
+     */
+    private final int mIdIndex;
+    private final int mNameIndex;
+    private final int mQuantityIndex;
+    private final int mSoldIndex;
+    private final int mPriceIndex;
+    private final int mImageIndex;
+    private final int mReorderThresholdIndex;
+    private final int mVersionIndex;
+
+    /**
+     * Make a codec that reads rows of cursors with the same columns as the given one.
+     */
+    public SodaRecordCodec(Cursor cursor) {
+        mIdIndex = cursor.getColumnIndex(SodaEntry._ID);
+        mNameIndex = cursor.getColumnIndex(SodaEntry.COLUMN_NAME);
+        mQuantityIndex = cursor.getColumnIndex(SodaEntry.COLUMN_QUANTITY);
+        mSoldIndex = cursor.getColumnIndex(SodaEntry.COLUMN_SOLD);
+        mPriceIndex = cursor.getColumnIndex(SodaEntry.COLUMN_PRICE);
+        mImageIndex = cursor.getColumnIndex(SodaEntry.COLUMN_IMAGE);
+        mReorderThresholdIndex = cursor.getColumnIndex(SodaEntry.COLUMN_REORDER_THRESHOLD);
+        mVersionIndex = cursor.getColumnIndex(SodaEntry.COLUMN_VERSION);
+    }
+
+    /**
+     * Read the current row of the cursor into the record. Columns the cursor doesn't have
+     * get their defaults.
+     */
+    public void read(Cursor cursor, SodaRecord record) {
+        record.id = mIdIndex == -1 ? 0 : cursor.getLong(mIdIndex);
+        record.name = mNameIndex == -1 ? null : cursor.getString(mNameIndex);
+        record.quantity = mQuantityIndex == -1 ? 0 : cursor.getInt(mQuantityIndex);
+        record.sold = mSoldIndex == -1 ? 0 : cursor.getInt(mSoldIndex);
+        record.priceCents = mPriceIndex == -1 ? 0 : cursor.getLong(mPriceIndex);
+        record.image = mImageIndex == -1 ? null : cursor.getString(mImageIndex);
+        record.reorderThreshold = mReorderThresholdIndex == -1
+                ? 0 : cursor.getInt(mReorderThresholdIndex);
+        record.version = mVersionIndex == -1 ? 0 : cursor.getLong(mVersionIndex);
+    }
+
+    /**
+     * Bind the record to a statement compiled from {@link #INSERT_SQL}.
+     */
+    public static void bindInsert(SQLiteStatement statement, SodaRecord record) {
+        bindColumns(statement, record);
+    }
+
+    /**
+     * Bind the record to a statement compiled from {@link #UPDATE_SQL}.
+     */
+    public static void bindUpdate(SQLiteStatement statement, SodaRecord record) {
+        bindColumns(statement, record);
+        statement.bindLong(7, record.id);
+    }
+
+    /**
+     * Bind the record and the version it has to be at to a statement compiled from
+     * {@link #UPDATE_IF_VERSION_SQL}.
+     */
+    public static void bindUpdateIfVersion(SQLiteStatement statement, SodaRecord record,
+                                           long expectedVersion) {
+        bindUpdate(statement, record);
+        statement.bindLong(8, expectedVersion);
+    }
+
+    private static void bindColumns(SQLiteStatement statement, SodaRecord record) {
+        statement.bindString(1, record.name);
+        statement.bindLong(2, record.quantity);
+        statement.bindLong(3, record.sold);
+        statement.bindLong(4, record.priceCents);
+        if (record.image == null) {
+            statement.bindNull(5);
+        } else {
+            statement.bindString(5, record.image);
+        }
+        statement.bindLong(6, record.reorderThreshold);
+    }
+
+    /**
+     * Return whether the values set every column that {@link #UPDATE_SQL} replaces, so an
+     * update with them can go through a record.
+     */
+    static boolean isWholeRow(ContentValues values) {
+        return values.size() == 6
+                && values.containsKey(SodaEntry.COLUMN_NAME)
+                && values.containsKey(SodaEntry.COLUMN_QUANTITY)
+                && values.containsKey(SodaEntry.COLUMN_SOLD)
+                && values.containsKey(SodaEntry.COLUMN_PRICE)
+                && values.containsKey(SodaEntry.COLUMN_IMAGE)
+                && values.containsKey(SodaEntry.COLUMN_REORDER_THRESHOLD);
+    }
+
+    /**
+     * Decode the content values of a new or wholly replaced soda into the record. Missing
+     * columns get their defaults, except the name and price which every soda needs.
+     * Throws an {@link IllegalArgumentException} if the values don't describe a valid soda.
+     */
+    static void readValues(ContentValues values, SodaRecord record) {
+        record.clear();
+
+        //Check that the soda has a name
+        record.name = values.getAsString(SodaEntry.COLUMN_NAME);
+        if (record.name == null) {
+            throw new IllegalArgumentException("Soda requires a name.");
+        }
+
+        //Check that the quantity is greater than 0
+        if (values.containsKey(SodaEntry.COLUMN_QUANTITY)) {
+            Integer quantity = values.getAsInteger(SodaEntry.COLUMN_QUANTITY);
+            if (quantity == null || quantity < 0) {
+                throw new IllegalArgumentException("Soda requires quantity greater than zero.");
+            }
+            record.quantity = quantity;
+        }
+
+        if (values.containsKey(SodaEntry.COLUMN_SOLD)) {
+            Integer sold = values.getAsInteger(SodaEntry.COLUMN_SOLD);
+            if (sold == null || sold < 0) {
+                throw new IllegalArgumentException("Soda requires a valid number sold.");
+            }
+            record.sold = sold;
+        }
+
+        //Check that the price is also valid.
+        Long price = values.getAsLong(SodaEntry.COLUMN_PRICE);
+        if (price == null || price < 0) {
+            throw new IllegalArgumentException("Soda requires a price.");
+        }
+        record.priceCents = price;
+
+        record.image = values.getAsString(SodaEntry.COLUMN_IMAGE);
+
+        if (values.containsKey(SodaEntry.COLUMN_REORDER_THRESHOLD)) {
+            Integer threshold = values.getAsInteger(SodaEntry.COLUMN_REORDER_THRESHOLD);
+            if (threshold == null || threshold < 0) {
+                throw new IllegalArgumentException("Soda requires a valid reorder threshold.");
+            }
+            record.reorderThreshold = threshold;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+
+/**
+ * In-memory LRU cache of single soda rows, keyed by ID, used by {@link SodaProvider} to answer
+ * single soda queries without going to SQLite.
+ * <p>
+ * Every write must invalidate the rows it touched. A row read from the database is only
+ * cached if nothing was invalidated while it was being read, so a reader can never put back
+ * a row that a concurrent writer just changed.
+ */
+class SodaRowCache {
+
+    /**
+     * Columns held for every cached soda, in the order they are read from the database
+     */
+    static final String[] COLUMNS = {
+            SodaEntry._ID,
+            SodaEntry.COLUMN_NAME,
+            SodaEntry.COLUMN_QUANTITY,
+            SodaEntry.COLUMN_SOLD,
+            SodaEntry.COLUMN_PRICE,
+            SodaEntry.COLUMN_IMAGE,
+            SodaEntry.COLUMN_REORDER_THRESHOLD,
+            SodaEntry.COLUMN_VERSION
+    };
+
+    private final LruCache<Long, SodaRecord> mRows;
+
+    /**
+     * Bumped on every invalidation. Guarded by "this".
+     */
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+
+    SodaRowCache(int maxRows) {
+        mRows = new LruCache<>(maxRows);
+    }
+
+    /**
+     * Return whether a query with the given projection can be answered from the cache.
+     * A null projection means every column of the table, which may be more than is cached.
+     */
+    static boolean canServe(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            boolean cached = false;
+            for (String cachedColumn : COLUMNS) {
+                if (cachedColumn.equals(column)) {
+                    cached = true;
+                    break;
+                }
+            }
+            if (!cached) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the cached soda with the given ID, or null if it has to be read from the database.
+     */
+    synchronized SodaRecord get(long id) {
+        SodaRecord row = mRows.get(id);
+        if (row == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return row;
+    }
+
+    /**
+     * Return the current generation. Read it before going to the database and hand it to
+     * {@link #put} afterwards.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a row read from the database, unless anything was invalidated since the given
+     * generation was read.
+     */
+    synchronized void put(SodaRecord row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(row.id, row);
+        }
+    }
+
+    /**
+     * Forget the soda with the given ID.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Forget every soda.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    synchronized int size() {
+        return mRows.size();
+    }
+
+    /**
+     * Return a cursor with the given columns of the row, or an empty cursor if it is null.
+     */
+    static Cursor toCursor(SodaRecord row, String[] projection) {
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (row != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = getValue(row, projection[i]);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the value of the given column of the row, boxed for a cursor row.
+     */
+    private static Object getValue(SodaRecord row, String column) {
+        switch (column) {
+            case SodaEntry._ID:
+                return row.id;
+            case SodaEntry.COLUMN_NAME:
+                return row.name;
+            case SodaEntry.COLUMN_QUANTITY:
+                return row.quantity;
+            case SodaEntry.COLUMN_SOLD:
+                return row.sold;
+            case SodaEntry.COLUMN_PRICE:
+                return row.priceCents;
+            case SodaEntry.COLUMN_IMAGE:
+                return row.image;
+            case SodaEntry.COLUMN_REORDER_THRESHOLD:
+                return row.reorderThreshold;
+            case SodaEntry.COLUMN_VERSION:
+                return row.version;
+            default:
+                throw new IllegalArgumentException("Column " + column + " is not cached");
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SalesEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StoreEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.StoreStockEntry;
+
+/**
+ * Compiled statements for the fixed shapes of writes that make up most of the traffic of
+ * {@link SodaProvider}, so they are prepared once instead of on every call.
+ * <p>
+ * A {@link SQLiteStatement} holds its bound arguments, so it can't be bound by two threads at
+ * once. Guarding shared statements with a lock could deadlock: a thread holding a statement
+ * would wait for the database while a thread inside a transaction waits for the statement.
+ * Every Binder thread therefore gets its own set through {@link #get}, and the set is compiled
+ * again whenever the database it belongs to has been closed and reopened.
+ */
+class SodaStatements {
+
+    static final String UPDATE_QUANTITY_SQL = "UPDATE " + SodaEntry.TABLE_NAME
+            + " SET " + SodaEntry.COLUMN_QUANTITY + " = ? WHERE " + SodaEntry._ID + " = ?";
+
+    static final String DELETE_SQL = "DELETE FROM " + SodaEntry.TABLE_NAME
+            + " WHERE " + SodaEntry._ID + " = ?";
+
+    static final String DELETE_ALL_SQL = "DELETE FROM " + SodaEntry.TABLE_NAME;
+
+    /**
+     * Sells ?1 sodas of the soda with ID ?2 if there are enough in stock
+     */
+    static final String SELL_SQL = "UPDATE " + SodaEntry.TABLE_NAME
+            + " SET " + SodaEntry.COLUMN_QUANTITY + " = " + SodaEntry.COLUMN_QUANTITY + " - ?1, "
+            + SodaEntry.COLUMN_SOLD + " = IFNULL(" + SodaEntry.COLUMN_SOLD + ", 0) + ?1"
+            + " WHERE " + SodaEntry._ID + " = ?2 AND " + SodaEntry.COLUMN_QUANTITY + " >= ?1";
+
+    static final String INSERT_SALE_SQL = "INSERT INTO " + SalesEntry.TABLE_NAME + " ("
+            + SalesEntry.COLUMN_SODA_ID + ", " + SalesEntry.COLUMN_TIMESTAMP + ", "
+            + SalesEntry.COLUMN_QUANTITY + ") VALUES (?, ?, ?)";
+
+    /**
+     * Stocks the soda with ID ?2 in the store with ID ?1 with ?3 sodas, if both exist
+     */
+    static final String INSERT_STORE_STOCK_SQL = "INSERT INTO " + StoreStockEntry.TABLE_NAME
+            + " (" + StoreStockEntry.COLUMN_STORE_ID + ", " + StoreStockEntry.COLUMN_SODA_ID
+            + ", " + StoreStockEntry.COLUMN_QUANTITY + ") SELECT " + StoreEntry.TABLE_NAME + "."
+            + StoreEntry._ID + ", " + SodaEntry.TABLE_NAME + "." + SodaEntry._ID + ", ?3 FROM "
+            + StoreEntry.TABLE_NAME + ", " + SodaEntry.TABLE_NAME + " WHERE "
+            + StoreEntry.TABLE_NAME + "." + StoreEntry._ID + " = ?1 AND "
+            + SodaEntry.TABLE_NAME + "." + SodaEntry._ID + " = ?2";
+
+    static final String UPDATE_STORE_STOCK_SQL = "UPDATE " + StoreStockEntry.TABLE_NAME
+            + " SET " + StoreStockEntry.COLUMN_QUANTITY + " = ? WHERE "
+            + StoreStockEntry.COLUMN_STORE_ID + " = ? AND " + StoreStockEntry.COLUMN_SODA_ID
+            + " = ?";
+
+    static final String DELETE_STORE_STOCK_SQL = "DELETE FROM " + StoreStockEntry.TABLE_NAME
+            + " WHERE " + StoreStockEntry.COLUMN_STORE_ID + " = ? AND "
+            + StoreStockEntry.COLUMN_SODA_ID + " = ?";
+
+    static final String COUNT_DISCARDED_IMAGES_SQL = "SELECT COUNT(*) FROM "
+            + SodaEntry.DISCARDED_IMAGES_TABLE_NAME;
+
+    private static final ThreadLocal<SodaStatements> sStatements = new ThreadLocal<>();
+
+    private final SQLiteDatabase mDatabase;
+
+    /**
+     * Inserts a whole soda, bound with {@link SodaRecordCodec#bindInsert}
+     */
+    final SQLiteStatement insert;
+
+    /**
+     * Replaces every column of a soda, bound with {@link SodaRecordCodec#bindUpdate}
+     */
+    final SQLiteStatement updateRow;
+
+    /**
+     * Replaces every column of a soda at an expected version, bound with
+     * {@link SodaRecordCodec#bindUpdateIfVersion}
+     */
+    final SQLiteStatement updateRowIfVersion;
+
+    /**
+     * Sets the quantity of a soda: 1 is the quantity, 2 the ID
+     */
+    final SQLiteStatement updateQuantity;
+
+    /**
+     * Deletes a soda: 1 is the ID
+     */
+    final SQLiteStatement delete;
+
+    /**
+     * Deletes every soda
+     */
+    final SQLiteStatement deleteAll;
+
+    /**
+     * Sells sodas, see {@link #SELL_SQL}
+     */
+    final SQLiteStatement sell;
+
+    /**
+     * Adds a sale to the ledger: 1 is the soda ID, 2 the time and 3 the quantity
+     */
+    final SQLiteStatement insertSale;
+
+    /**
+     * Stocks a soda in a store, see {@link #INSERT_STORE_STOCK_SQL}
+     */
+    final SQLiteStatement insertStoreStock;
+
+    /**
+     * Sets the quantity of a soda in a store: 1 is the quantity, 2 the store ID and 3 the
+     * soda ID
+     */
+    final SQLiteStatement updateStoreStock;
+
+    /**
+     * Stops stocking a soda in a store: 1 is the store ID, 2 the soda ID
+     */
+    final SQLiteStatement deleteStoreStock;
+
+    /**
+     * Counts the photos whose files are still to be deleted
+     */
+    final SQLiteStatement countDiscardedImages;
+
+    private SodaStatements(SQLiteDatabase database) {
+        mDatabase = database;
+        insert = database.compileStatement(SodaRecordCodec.INSERT_SQL);
+        updateRow = database.compileStatement(SodaRecordCodec.UPDATE_SQL);
+        updateRowIfVersion = database.compileStatement(SodaRecordCodec.UPDATE_IF_VERSION_SQL);
+        updateQuantity = database.compileStatement(UPDATE_QUANTITY_SQL);
+        delete = database.compileStatement(DELETE_SQL);
+        deleteAll = database.compileStatement(DELETE_ALL_SQL);
+        sell = database.compileStatement(SELL_SQL);
+        insertSale = database.compileStatement(INSERT_SALE_SQL);
+        insertStoreStock = database.compileStatement(INSERT_STORE_STOCK_SQL);
+        updateStoreStock = database.compileStatement(UPDATE_STORE_STOCK_SQL);
+        deleteStoreStock = database.compileStatement(DELETE_STORE_STOCK_SQL);
+        countDiscardedImages = database.compileStatement(COUNT_DISCARDED_IMAGES_SQL);
+    }
+
+    /**
+     * Return the statements of the calling thread for the given database, compiling them
+     * first if the thread has none yet or they belong to a database that was closed.
+     */
+    static SodaStatements get(SQLiteDatabase database) {
+        SodaStatements statements = sStatements.get();
+        if (statements == null || statements.mDatabase != database
+                || !statements.mDatabase.isOpen()) {
+            if (statements != null) {
+                statements.close();
+            }
+            statements = new SodaStatements(database);
+            sStatements.set(statements);
+        }
+        return statements;
+    }
+
+    private void close() {
+        insert.close();
+        updateRow.close();
+        updateRowIfVersion.close();
+        updateQuantity.close();
+        delete.close();
+        deleteAll.close();
+        sell.close();
+        insertSale.close();
+        insertStoreStock.close();
+        updateStoreStock.close();
+        deleteStoreStock.close();
+        countDiscardedImages.close();
+    }
+}
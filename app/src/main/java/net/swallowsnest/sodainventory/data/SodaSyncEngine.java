@@ -0,0 +1,361 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import net.swallowsnest.sodainventory.data.SodaContract.SodaEntry;
+import net.swallowsnest.sodainventory.data.SodaContract.SyncEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Syncs the sodas with a {@link SodaSyncServer} by exchanging only what changed since the last
+ * sync. A push sends the change log of {@link SyncEntry} in batches of {@link #BATCH_CHANGES}
+ * and trims it once the server has them; a pull merges the changes of other devices after the
+ * last token it got, one batch per transaction, so an interrupted sync picks up where it
+ * stopped. Neither reads a soda that didn't change.
+ * <p>
+ * A change is a JSON object with the soda's "sync_id" and either "deleted": true or the
+ * columns of {@link SodaFileCodec#COLUMNS}, with the price in cents. Like files, changes leave
+ * out IDs and photos, which only mean something on one device. A local change that isn't
+ * pushed yet wins over a remote change of the same soda, which the server then gets next.
+ * <p>
+ * The engine writes the database directly, past the provider's row cache and change
+ * notifications, so the app runs it through the provider's {@link SodaEntry#METHOD_SYNC}
+ * call, which takes care of both.
+ */
+public final class SodaSyncEngine {
+
+    /**
+     * Most changes pushed or pulled per round trip
+     */
+    static final int BATCH_CHANGES = 500;
+
+    private static final String KEY_TOKEN = "token";
+    private static final String KEY_MORE = "more";
+    private static final String KEY_CHANGES = "changes";
+    private static final String KEY_DELETED = "deleted";
+
+    private static final String LOG_SQL = "SELECT "
+            + SyncEntry.CHANGE_LOG_TABLE_NAME + "." + SyncEntry.COLUMN_VERSION + ", "
+            + SyncEntry.CHANGE_LOG_TABLE_NAME + "." + SyncEntry.COLUMN_SYNC_ID + ", "
+            + SyncEntry.COLUMN_DELETED + ", "
+            + SodaEntry.COLUMN_NAME + ", "
+            + SodaEntry.COLUMN_QUANTITY + ", "
+            + SodaEntry.COLUMN_SOLD + ", "
+            + SodaEntry.COLUMN_PRICE + ", "
+            + SodaEntry.COLUMN_REORDER_THRESHOLD
+            + " FROM " + SyncEntry.CHANGE_LOG_TABLE_NAME + " LEFT JOIN " + SodaEntry.TABLE_NAME
+            + " ON " + SodaEntry.TABLE_NAME + "." + SodaEntry.COLUMN_SYNC_ID + " = "
+            + SyncEntry.CHANGE_LOG_TABLE_NAME + "." + SyncEntry.COLUMN_SYNC_ID
+            + " WHERE " + SyncEntry.CHANGE_LOG_TABLE_NAME + "." + SyncEntry.COLUMN_VERSION + " > ?"
+            + " ORDER BY " + SyncEntry.CHANGE_LOG_TABLE_NAME + "." + SyncEntry.COLUMN_VERSION
+            + " LIMIT " + BATCH_CHANGES;
+
+    private static final String UPDATE_SQL = "UPDATE " + SodaEntry.TABLE_NAME + " SET "
+            + SodaEntry.COLUMN_NAME + " = ?, "
+            + SodaEntry.COLUMN_QUANTITY + " = ?, "
+            + SodaEntry.COLUMN_SOLD + " = ?, "
+            + SodaEntry.COLUMN_PRICE + " = ?, "
+            + SodaEntry.COLUMN_REORDER_THRESHOLD + " = ? "
+            + "WHERE " + SodaEntry.COLUMN_SYNC_ID + " = ?";
+
+    private static final String INSERT_SQL = "INSERT INTO " + SodaEntry.TABLE_NAME + "("
+            + SodaEntry.COLUMN_NAME + ", "
+            + SodaEntry.COLUMN_QUANTITY + ", "
+            + SodaEntry.COLUMN_SOLD + ", "
+            + SodaEntry.COLUMN_PRICE + ", "
+            + SodaEntry.COLUMN_REORDER_THRESHOLD + ", "
+            + SodaEntry.COLUMN_SYNC_ID + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final SQLiteDatabase mDatabase;
+    private final SodaSyncServer mServer;
+
+    public SodaSyncEngine(SQLiteDatabase database, SodaSyncServer server) {
+        mDatabase = database;
+        mServer = server;
+    }
+
+    /**
+     * The number of changes a sync sent and merged.
+     */
+    public static final class Result {
+        public final int pushed;
+        public final int pulled;
+
+        Result(int pushed, int pulled) {
+            this.pushed = pushed;
+            this.pulled = pulled;
+        }
+    }
+
+    /**
+     * Push the local changes, then pull the ones of other devices. The changes each batch
+     * covers are kept when a later one fails, so syncing again only redoes the rest.
+     */
+    public Result sync() throws IOException {
+        String deviceId = DatabaseUtils.stringForQuery(mDatabase, "SELECT "
+                + SyncEntry.COLUMN_DEVICE_ID + " FROM " + SyncEntry.STATE_TABLE_NAME, null);
+        int pushed = push(deviceId);
+        int pulled = pull(deviceId);
+        return new Result(pushed, pulled);
+    }
+
+    private int push(String deviceId) throws IOException {
+        long pushedVersion = DatabaseUtils.longForQuery(mDatabase, "SELECT "
+                + SyncEntry.COLUMN_PUSHED_VERSION + " FROM " + SyncEntry.STATE_TABLE_NAME, null);
+        int pushed = 0;
+        List<Change> changes = new ArrayList<>();
+        while (true) {
+            changes.clear();
+            long lastVersion = pushedVersion;
+            Cursor cursor = mDatabase.rawQuery(LOG_SQL,
+                    new String[]{String.valueOf(pushedVersion)});
+            try {
+                while (cursor.moveToNext()) {
+                    lastVersion = cursor.getLong(0);
+                    Change change = new Change(cursor.getString(1), cursor.getInt(2) != 0);
+                    if (!change.deleted) {
+                        change.soda.name = cursor.getString(3);
+                        change.soda.quantity = cursor.getInt(4);
+                        change.soda.sold = cursor.getInt(5);
+                        change.soda.priceCents = cursor.getLong(6);
+                        change.soda.reorderThreshold = cursor.getInt(7);
+                    }
+                    changes.add(change);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (changes.isEmpty()) {
+                return pushed;
+            }
+
+            mServer.push(deviceId, encode(changes, 0, false));
+
+            // Changes made since the batch was read replaced their entries with newer
+            // versions, so trimming up to the batch's last version keeps them
+            mDatabase.beginTransaction();
+            try {
+                mDatabase.execSQL("UPDATE " + SyncEntry.STATE_TABLE_NAME + " SET "
+                        + SyncEntry.COLUMN_PUSHED_VERSION + " = " + lastVersion);
+                mDatabase.delete(SyncEntry.CHANGE_LOG_TABLE_NAME,
+                        SyncEntry.COLUMN_VERSION + " <= " + lastVersion, null);
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            pushedVersion = lastVersion;
+            pushed += changes.size();
+        }
+    }
+
+    private int pull(String deviceId) throws IOException {
+        long token = DatabaseUtils.longForQuery(mDatabase, "SELECT "
+                + SyncEntry.COLUMN_PULLED_TOKEN + " FROM " + SyncEntry.STATE_TABLE_NAME, null);
+        SQLiteStatement update = mDatabase.compileStatement(UPDATE_SQL);
+        SQLiteStatement insert = mDatabase.compileStatement(INSERT_SQL);
+        SQLiteStatement pending = mDatabase.compileStatement("SELECT COUNT(*) FROM "
+                + SyncEntry.CHANGE_LOG_TABLE_NAME + " WHERE " + SyncEntry.COLUMN_SYNC_ID + " = ?");
+        try {
+            int pulled = 0;
+            Batch batch;
+            do {
+                batch = decode(mServer.pull(deviceId, token, BATCH_CHANGES));
+                mDatabase.beginTransaction();
+                try {
+                    // Keeps the triggers from logging the merged changes as local ones
+                    setRemote(true);
+                    for (Change change : batch.changes) {
+                        pending.bindString(1, change.syncId);
+                        if (pending.simpleQueryForLong() == 0) {
+                            merge(change, update, insert);
+                        }
+                    }
+                    setRemote(false);
+                    mDatabase.execSQL("UPDATE " + SyncEntry.STATE_TABLE_NAME + " SET "
+                            + SyncEntry.COLUMN_PULLED_TOKEN + " = " + batch.token);
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+                token = batch.token;
+                pulled += batch.changes.size();
+            } while (batch.more);
+            return pulled;
+        } finally {
+            update.close();
+            insert.close();
+            pending.close();
+        }
+    }
+
+    private void setRemote(boolean remote) {
+        mDatabase.execSQL("UPDATE " + SyncEntry.STATE_TABLE_NAME + " SET "
+                + SyncEntry.COLUMN_REMOTE + " = " + (remote ? 1 : 0));
+    }
+
+    private void merge(Change change, SQLiteStatement update, SQLiteStatement insert) {
+        if (change.deleted) {
+            mDatabase.delete(SodaEntry.TABLE_NAME, SodaEntry.COLUMN_SYNC_ID + " = ?",
+                    new String[]{change.syncId});
+            return;
+        }
+        SodaRecord soda = change.soda;
+        update.bindString(1, soda.name);
+        update.bindLong(2, soda.quantity);
+        update.bindLong(3, soda.sold);
+        update.bindLong(4, soda.priceCents);
+        update.bindLong(5, soda.reorderThreshold);
+        update.bindString(6, change.syncId);
+        if (update.executeUpdateDelete() == 0) {
+            insert.bindString(1, soda.name);
+            insert.bindLong(2, soda.quantity);
+            insert.bindLong(3, soda.sold);
+            insert.bindLong(4, soda.priceCents);
+            insert.bindLong(5, soda.reorderThreshold);
+            insert.bindString(6, change.syncId);
+            insert.executeInsert();
+        }
+    }
+
+    /**
+     * Encode a batch of changes with the token to pull from next and whether more follow.
+     */
+    static byte[] encode(List<Change> changes, long token, boolean more) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter out = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(bytes),
+                "UTF-8"));
+        try {
+            out.beginObject();
+            out.name(KEY_TOKEN).value(token);
+            out.name(KEY_MORE).value(more);
+            out.name(KEY_CHANGES).beginArray();
+            for (Change change : changes) {
+                out.beginObject();
+                out.name(SodaEntry.COLUMN_SYNC_ID).value(change.syncId);
+                if (change.deleted) {
+                    out.name(KEY_DELETED).value(true);
+                } else {
+                    out.name(SodaEntry.COLUMN_NAME).value(change.soda.name);
+                    out.name(SodaEntry.COLUMN_QUANTITY).value(change.soda.quantity);
+                    out.name(SodaEntry.COLUMN_SOLD).value(change.soda.sold);
+                    out.name(SodaEntry.COLUMN_PRICE).value(change.soda.priceCents);
+                    out.name(SodaEntry.COLUMN_REORDER_THRESHOLD)
+                            .value(change.soda.reorderThreshold);
+                }
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a batch written by {@link #encode}.
+     */
+    static Batch decode(byte[] batch) throws IOException {
+        JsonReader in = new JsonReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(batch)), "UTF-8"));
+        try {
+            Batch result = new Batch();
+            in.beginObject();
+            while (in.hasNext()) {
+                String key = in.nextName();
+                if (KEY_TOKEN.equals(key)) {
+                    result.token = in.nextLong();
+                } else if (KEY_MORE.equals(key)) {
+                    result.more = in.nextBoolean();
+                } else if (KEY_CHANGES.equals(key)) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        result.changes.add(readChange(in));
+                    }
+                    in.endArray();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Change readChange(JsonReader in) throws IOException {
+        Change change = new Change(null, false);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case SodaEntry.COLUMN_SYNC_ID:
+                    change.syncId = in.nextString();
+                    break;
+                case KEY_DELETED:
+                    change.deleted = in.nextBoolean();
+                    break;
+                case SodaEntry.COLUMN_NAME:
+                    change.soda.name = in.nextString();
+                    break;
+                case SodaEntry.COLUMN_QUANTITY:
+                    change.soda.quantity = in.nextInt();
+                    break;
+                case SodaEntry.COLUMN_SOLD:
+                    change.soda.sold = in.nextInt();
+                    break;
+                case SodaEntry.COLUMN_PRICE:
+                    change.soda.priceCents = in.nextLong();
+                    break;
+                case SodaEntry.COLUMN_REORDER_THRESHOLD:
+                    change.soda.reorderThreshold = in.nextInt();
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        if (change.syncId == null || (!change.deleted && change.soda.name == null)) {
+            throw new IOException("Incomplete change in sync batch");
+        }
+        return change;
+    }
+
+    /**
+     * One changed soda, by its sync ID.
+     */
+    static final class Change {
+        String syncId;
+        boolean deleted;
+        final SodaRecord soda = new SodaRecord();
+
+        Change(String syncId, boolean deleted) {
+            this.syncId = syncId;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * The changes of one pull, with the token after them.
+     */
+    static final class Batch {
+        long token;
+        boolean more;
+        final List<Change> changes = new ArrayList<>();
+    }
+}
@@ -0,0 +1,23 @@
+package net.swallowsnest.sodainventory.data;
+
+import java.io.IOException;
+
+/**
+ * The server end of {@link SodaSyncEngine}. Batches of changes are gzipped JSON objects with a
+ * "changes" array of sodas keyed by their sync ID; see {@link SodaSyncEngine} for the fields.
+ */
+public interface SodaSyncServer {
+
+    /**
+     * Store a batch of changes made on the given device. Returns once the server has kept
+     * them, after which the device forgets them.
+     */
+    void push(String deviceId, byte[] batch) throws IOException;
+
+    /**
+     * Return the next batch of at most limit changes the server kept after the given token,
+     * leaving out the ones the given device pushed itself. The batch also has the "token" to
+     * pull from next and whether there are "more" changes after it.
+     */
+    byte[] pull(String deviceId, long afterToken, int limit) throws IOException;
+}
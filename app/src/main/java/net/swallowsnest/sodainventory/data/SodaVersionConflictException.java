@@ -0,0 +1,35 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.net.Uri;
+
+/**
+ * Thrown by an update with a {@link SodaContract.SodaEntry#QUERY_EXPECTED_VERSION} when the
+ * soda is still there but another write changed it first. The update changed nothing.
+ * <p>
+ * The provider isn't exported, so the exception reaches the caller as it is thrown.
+ */
+public class SodaVersionConflictException extends IllegalStateException {
+
+    private final long mExpectedVersion;
+    private final long mCurrentVersion;
+
+    public SodaVersionConflictException(Uri uri, long expectedVersion, long currentVersion) {
+        super("Soda is at version " + currentVersion + ", not " + expectedVersion + ": " + uri);
+        mExpectedVersion = expectedVersion;
+        mCurrentVersion = currentVersion;
+    }
+
+    /**
+     * Return the version the update expected the soda to be at.
+     */
+    public long getExpectedVersion() {
+        return mExpectedVersion;
+    }
+
+    /**
+     * Return the version the soda was at when the update was refused.
+     */
+    public long getCurrentVersion() {
+        return mCurrentVersion;
+    }
+}
@@ -0,0 +1,20 @@
+package net.swallowsnest.sodainventory.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that prices typed in as dollars parse into whole cents and format back.
+ */
+public class SodaRecordPriceTest {
+    @Test
+    public void priceRoundTrips() throws Exception {
+        assertEquals(150, SodaRecord.parsePrice("1.5"));
+        assertEquals(225, SodaRecord.parsePrice("2.25"));
+        assertEquals(300, SodaRecord.parsePrice("3"));
+        assertEquals(5, SodaRecord.parsePrice(".05"));
+        assertEquals("1.50", SodaRecord.formatPrice(150));
+        assertEquals("0.05", SodaRecord.formatPrice(5));
+    }
+}
@@ -0,0 +1,9 @@
+package android.content;
+
+/**
+ * Stand-in for the platform class with the constants SodaContract uses.
+ */
+public class ContentResolver {
+    public static final String CURSOR_DIR_BASE_TYPE = "vnd.android.cursor.dir";
+    public static final String CURSOR_ITEM_BASE_TYPE = "vnd.android.cursor.item";
+}
@@ -0,0 +1,12 @@
+package android.content;
+
+import android.net.Uri;
+
+/**
+ * Stand-in for the platform class with the methods SodaContract uses.
+ */
+public class ContentUris {
+    public static Uri withAppendedId(Uri contentUri, long id) {
+        return Uri.withAppendedPath(contentUri, String.valueOf(id));
+    }
+}
@@ -0,0 +1,57 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the platform class with the methods SodaRecordCodec decodes values with.
+ */
+public class ContentValues {
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    public void put(String key, String value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Integer value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Long value) {
+        mValues.put(key, value);
+    }
+
+    public void putNull(String key) {
+        mValues.put(key, null);
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+
+    public boolean containsKey(String key) {
+        return mValues.containsKey(key);
+    }
+
+    public String getAsString(String key) {
+        Object value = mValues.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    public Integer getAsInteger(String key) {
+        Long value = getAsLong(key);
+        return value == null ? null : value.intValue();
+    }
+
+    public Long getAsLong(String key) {
+        Object value = mValues.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return value == null ? null : Long.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
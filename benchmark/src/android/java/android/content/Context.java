@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * Stand-in for the platform class, so SodaDbHelper compiles on a plain JVM.
+ */
+public class Context {
+}
@@ -0,0 +1,15 @@
+package android.database;
+
+/**
+ * Stand-in for the platform interface with the methods SodaRecordCodec reads rows with. The
+ * benchmark reads its results straight from JDBC and never makes one.
+ */
+public interface Cursor {
+    int getColumnIndex(String columnName);
+
+    int getInt(int columnIndex);
+
+    long getLong(int columnIndex);
+
+    String getString(int columnIndex);
+}
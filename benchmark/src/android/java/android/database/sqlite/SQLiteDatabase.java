@@ -0,0 +1,81 @@
+package android.database.sqlite;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Stand-in for the platform class that runs the statements of SodaDbHelper and compiles
+ * those of SodaStatements on a JDBC connection. Transactions don't nest.
+ */
+public class SQLiteDatabase {
+    private final Connection mConnection;
+    private boolean mTransactionSuccessful;
+
+    public SQLiteDatabase(Connection connection) {
+        mConnection = connection;
+    }
+
+    public void execSQL(String sql) {
+        try {
+            Statement statement = mConnection.createStatement();
+            try {
+                statement.execute(sql);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to run " + sql, e);
+        }
+    }
+
+    public SQLiteStatement compileStatement(String sql) {
+        try {
+            return new SQLiteStatement(mConnection.prepareStatement(sql));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to compile " + sql, e);
+        }
+    }
+
+    public void beginTransaction() {
+        try {
+            mConnection.setAutoCommit(false);
+            mTransactionSuccessful = false;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to begin transaction", e);
+        }
+    }
+
+    public void setTransactionSuccessful() {
+        mTransactionSuccessful = true;
+    }
+
+    public void endTransaction() {
+        try {
+            if (mTransactionSuccessful) {
+                mConnection.commit();
+            } else {
+                mConnection.rollback();
+            }
+            mConnection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to end transaction", e);
+        }
+    }
+
+    public boolean isOpen() {
+        try {
+            return !mConnection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    public void enableWriteAheadLogging() {
+        execSQL("PRAGMA journal_mode = WAL");
+    }
+}
@@ -0,0 +1,23 @@
+package android.database.sqlite;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the platform class. The benchmark opens its own connections and calls
+ * {@link #onCreate} on them, so this only carries the callbacks.
+ */
+public abstract class SQLiteOpenHelper {
+
+    public SQLiteOpenHelper(Context context, String name, Object factory, int version) {
+    }
+
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+    }
+
+    public void onOpen(SQLiteDatabase db) {
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+}
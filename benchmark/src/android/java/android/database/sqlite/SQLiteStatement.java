@@ -0,0 +1,99 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Stand-in for the platform class that runs a compiled statement of SodaStatements as a JDBC
+ * prepared statement. Bound arguments stay bound between executions, like on the platform.
+ */
+public class SQLiteStatement {
+    private final PreparedStatement mStatement;
+
+    SQLiteStatement(PreparedStatement statement) {
+        mStatement = statement;
+    }
+
+    public void bindLong(int index, long value) {
+        try {
+            mStatement.setLong(index, value);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to bind " + index, e);
+        }
+    }
+
+    public void bindString(int index, String value) {
+        try {
+            mStatement.setString(index, value);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to bind " + index, e);
+        }
+    }
+
+    public void bindNull(int index) {
+        try {
+            mStatement.setNull(index, Types.NULL);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to bind " + index, e);
+        }
+    }
+
+    public int executeUpdateDelete() {
+        try {
+            return mStatement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to run statement", e);
+        }
+    }
+
+    /**
+     * Run the insert and return the ID of the new row, or -1 if nothing was inserted.
+     */
+    public long executeInsert() {
+        try {
+            if (mStatement.executeUpdate() == 0) {
+                return -1;
+            }
+            ResultSet keys = mStatement.getGeneratedKeys();
+            try {
+                return keys.next() ? keys.getLong(1) : -1;
+            } finally {
+                keys.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to run insert", e);
+        }
+    }
+
+    public long simpleQueryForLong() {
+        try {
+            ResultSet cursor = mStatement.executeQuery();
+            try {
+                if (!cursor.next()) {
+                    throw new IllegalStateException("Query returned no rows");
+                }
+                return cursor.getLong(1);
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to run query", e);
+        }
+    }
+
+    /**
+     * Release the statement. Like on the platform, the statements of a database that was
+     * already closed are released with it.
+     */
+    public void close() {
+        try {
+            if (!mStatement.getConnection().isClosed()) {
+                mStatement.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to close statement", e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package android.net;
+
+/**
+ * Stand-in for the platform class with the methods SodaContract uses.
+ */
+public class Uri {
+    private final String mUri;
+
+    private Uri(String uri) {
+        mUri = uri;
+    }
+
+    public static Uri parse(String uri) {
+        return new Uri(uri);
+    }
+
+    public static Uri withAppendedPath(Uri baseUri, String pathSegment) {
+        return new Uri(baseUri.mUri + "/" + pathSegment);
+    }
+
+    public Builder buildUpon() {
+        return new Builder(mUri);
+    }
+
+    @Override
+    public String toString() {
+        return mUri;
+    }
+
+    public static class Builder {
+        private final StringBuilder mUri;
+
+        Builder(String uri) {
+            mUri = new StringBuilder(uri);
+        }
+
+        public Builder appendPath(String newSegment) {
+            mUri.append('/').append(newSegment);
+            return this;
+        }
+
+        public Uri build() {
+            return new Uri(mUri.toString());
+        }
+    }
+}
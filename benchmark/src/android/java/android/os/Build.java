@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stand-in for the platform class. The benchmark runs as the newest platform the helper
+ * checks for.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.JELLY_BEAN;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN = 16;
+    }
+}
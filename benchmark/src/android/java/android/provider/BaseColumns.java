@@ -0,0 +1,9 @@
+package android.provider;
+
+/**
+ * Stand-in for the platform interface.
+ */
+public interface BaseColumns {
+    String _ID = "_id";
+    String _COUNT = "_count";
+}
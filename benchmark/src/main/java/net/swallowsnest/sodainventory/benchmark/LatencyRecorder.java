@@ -0,0 +1,68 @@
+package net.swallowsnest.sodainventory.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Collects the latency of every operation of one benchmark run and summarizes them as
+ * throughput and percentiles.
+ */
+final class LatencyRecorder {
+
+    private final long[] mNanos;
+    private int mCount;
+    private long mTotalNanos;
+
+    /**
+     * Wall time of operations that ran on several threads at once, or 0
+     */
+    private long mElapsedNanos;
+
+    LatencyRecorder(int operations) {
+        mNanos = new long[operations];
+    }
+
+    void record(long nanos) {
+        mNanos[mCount++] = nanos;
+        mTotalNanos += nanos;
+    }
+
+    /**
+     * Add every latency the other recorder collected, e.g. on another thread.
+     */
+    void addAll(LatencyRecorder other) {
+        for (int i = 0; i < other.mCount; i++) {
+            record(other.mNanos[i]);
+        }
+    }
+
+    /**
+     * Count the throughput over the given wall time instead of the sum of the latencies, for
+     * operations that ran on several threads at once.
+     */
+    void setElapsedNanos(long nanos) {
+        mElapsedNanos = nanos;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    double getOpsPerSecond() {
+        long nanos = mElapsedNanos != 0 ? mElapsedNanos : mTotalNanos;
+        return nanos == 0 ? 0 : mCount * 1e9 / nanos;
+    }
+
+    /**
+     * Return the latency below which the given fraction of operations finished, in
+     * microseconds.
+     */
+    double getPercentileMicros(double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mNanos, mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * mCount) - 1;
+        return sorted[Math.max(0, Math.min(mCount - 1, index))] / 1000.0;
+    }
+}
@@ -0,0 +1,743 @@
+package net.swallowsnest.sodainventory.benchmark;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import net.swallowsnest.sodainventory.data.BenchmarkStatements;
+import net.swallowsnest.sodainventory.data.SodaRecord;
+import net.swallowsnest.sodainventory.data.SodaRecordCodec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the database work behind the soda provider's queries and writes against catalogs
+ * of realistic sizes, on a plain JVM with the SQLite JDBC driver in place of the platform's
+ * SQLite.
+ * <p>
+ * Writes run the provider's own pooled statements from SodaStatements, bound from records by
+ * SodaRecordCodec, one statement per operation and outside of any transaction. The sell path
+ * sells, records the sale and reads back the new values in one transaction like the provider.
+ * Queries, and the few writes the provider builds at run time, run SQL copied into
+ * {@link SodaSchema}.
+ * <p>
+ * Nothing above the database is measured: not the provider's URI matching, the decoding of
+ * content values, its row cache, change notifications or the Binder call. The results are
+ * statement throughput, an upper bound of what the provider can do, not provider throughput.
+ * Results are printed as operations per second and latency percentiles, written to a results
+ * file, and compared with the stored baseline if there is one.
+ * <p>
+ * A separate multi-store catalog measures the stock lists of single stores, which have to
+ * stay as fast with many stores as with one.
+ * <p>
+ * A contention run lets several threads, each on its own connection, correct the stock of
+ * the same few sodas at once, with blind writes and with writes at an expected version.
+ * Besides the latencies it reports the conflicts retried and the increments lost.
+ * <p>
+ * Arguments: {@code --sizes 1000,100000,1000000}, {@code --stores 20x50000} (stores times
+ * sodas, or {@code none}), {@code --contention 8x16} (threads times hot sodas, or
+ * {@code none}), {@code --baseline <file>}, {@code --results <file>} and
+ * {@code --save-baseline}, which replaces the baseline with the results of this run.
+ */
+public class SodaBenchmark {
+
+    private static final String[] BRANDS = {
+            "Cola", "Root Beer", "Lemon Lime", "Orange", "Ginger Ale", "Cream Soda", "Grape",
+            "Cherry Cola", "Tonic", "Birch Beer"
+    };
+
+    /**
+     * Operations measured for every point lookup or write
+     */
+    private static final int POINT_OPERATIONS = 5000;
+
+    /**
+     * Rows read in total by the list query runs of one catalog size
+     */
+    private static final int LIST_ROWS_READ = 2000000;
+
+    /**
+     * Throughput drop against the baseline that is reported as a regression
+     */
+    private static final double REGRESSION_THRESHOLD = 0.10;
+
+    /**
+     * Stock of a soda in a store is picked below this, so about one in this many is sold out
+     */
+    private static final int STORE_MAX_QUANTITY = 100;
+
+    /**
+     * Catalog size of the contention run, and stock corrections made by each of its threads
+     */
+    private static final int CONTENTION_SODAS = 1000;
+    private static final int CONTENTION_OPERATIONS = 2000;
+
+    /**
+     * How long a writer of the contention run waits for the write lock before failing
+     */
+    private static final int BUSY_TIMEOUT_MILLIS = 30000;
+
+    private final Random mRandom = new Random(42);
+    private final SodaRecord mRecord = new SodaRecord();
+    private final Properties mResults = new Properties();
+    private final Properties mBaseline = new Properties();
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1000, 100000, 1000000};
+        String stores = "20x50000";
+        String contention = "8x16";
+        File baselineFile = new File("baseline.properties");
+        File resultsFile = new File("results.properties");
+        boolean saveBaseline = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sizes":
+                    String[] parts = args[++i].split(",");
+                    sizes = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++) {
+                        sizes[j] = Integer.parseInt(parts[j].trim());
+                    }
+                    break;
+                case "--stores":
+                    stores = args[++i];
+                    break;
+                case "--contention":
+                    contention = args[++i];
+                    break;
+                case "--baseline":
+                    baselineFile = new File(args[++i]);
+                    break;
+                case "--results":
+                    resultsFile = new File(args[++i]);
+                    break;
+                case "--save-baseline":
+                    saveBaseline = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        SodaBenchmark benchmark = new SodaBenchmark();
+        benchmark.loadBaseline(baselineFile);
+        for (int rows : sizes) {
+            benchmark.runCatalog(rows);
+        }
+        if (!stores.equals("none")) {
+            String[] parts = stores.split("x");
+            benchmark.runStores(Integer.parseInt(parts[0].trim()),
+                    Integer.parseInt(parts[1].trim()));
+        }
+        if (!contention.equals("none")) {
+            String[] parts = contention.split("x");
+            benchmark.runContention(Integer.parseInt(parts[0].trim()),
+                    Integer.parseInt(parts[1].trim()));
+        }
+        benchmark.store(resultsFile);
+        if (saveBaseline) {
+            benchmark.store(baselineFile);
+            System.out.println("Saved baseline to " + baselineFile);
+        }
+    }
+
+    /**
+     * Run every operation against a fresh catalog of the given number of sodas.
+     */
+    private void runCatalog(final int rows) throws SQLException, IOException {
+        File databaseFile = File.createTempFile("sodas_benchmark", ".db");
+        final Connection connection =
+                DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
+        try {
+            final SQLiteDatabase database = SodaSchema.create(connection);
+            BenchmarkStatements statements = new BenchmarkStatements(database);
+            seed(database, statements, rows);
+            final String catalog = String.valueOf(rows);
+            System.out.println();
+            System.out.println(String.format(Locale.US, "%,d sodas", rows));
+            printHeader();
+
+            final PreparedStatement list = connection.prepareStatement(SodaSchema.QUERY_LIST);
+            final PreparedStatement byId = connection.prepareStatement(SodaSchema.QUERY_BY_ID);
+            final PreparedStatement search =
+                    connection.prepareStatement(SodaSchema.QUERY_SEARCH);
+            final SQLiteStatement insert = statements.insert();
+            final SQLiteStatement update = statements.updateRow();
+            final SQLiteStatement delete = statements.delete();
+            final SQLiteStatement sell = statements.sell();
+            final SQLiteStatement insertSale = statements.insertSale();
+            final PreparedStatement sold = connection.prepareStatement(SodaSchema.QUERY_SOLD);
+            final List<Long> insertedIds = new ArrayList<>();
+
+            int listRuns = Math.max(5, Math.min(200, LIST_ROWS_READ / rows));
+            measure(catalog, "query_list", listRuns, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    ResultSet cursor = list.executeQuery();
+                    try {
+                        while (cursor.next()) {
+                            cursor.getLong(1);
+                            cursor.getString(2);
+                            cursor.getInt(3);
+                            cursor.getLong(4);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+
+            measure(catalog, "query_id", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    byId.setLong(1, randomId(rows));
+                    ResultSet cursor = byId.executeQuery();
+                    try {
+                        cursor.next();
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+
+            // Prefixes of one to three characters, which match the most words
+            measure(catalog, "search", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    String[] words = sodaName(randomId(rows)).toLowerCase(Locale.US).split(" ");
+                    String word = words[mRandom.nextInt(words.length)];
+                    String prefix = word.substring(0, 1 + mRandom.nextInt(
+                            Math.min(3, word.length())));
+                    search.setString(1, prefix + "*");
+                    search.setString(2, prefix);
+                    search.setString(3, prefix.substring(0, prefix.length() - 1)
+                            + (char) (prefix.charAt(prefix.length() - 1) + 1));
+                    ResultSet cursor = search.executeQuery();
+                    try {
+                        while (cursor.next()) {
+                            cursor.getLong(1);
+                            cursor.getString(2);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+
+            measure(catalog, "insert", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    makeSoda(rows + insertedIds.size());
+                    SodaRecordCodec.bindInsert(insert, mRecord);
+                    insertedIds.add(insert.executeInsert());
+                }
+            });
+
+            measure(catalog, "update", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    long id = randomId(rows);
+                    makeSoda(id);
+                    mRecord.id = id;
+                    SodaRecordCodec.bindUpdate(update, mRecord);
+                    update.executeUpdateDelete();
+                }
+            });
+
+            measure(catalog, "sell", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    long id = randomId(rows);
+                    database.beginTransaction();
+                    try {
+                        sell.bindLong(1, 1);
+                        sell.bindLong(2, id);
+                        if (sell.executeUpdateDelete() != 0) {
+                            insertSale.bindLong(1, id);
+                            insertSale.bindLong(2, System.currentTimeMillis());
+                            insertSale.bindLong(3, 1);
+                            insertSale.executeInsert();
+                            sold.setLong(1, id);
+                            ResultSet cursor = sold.executeQuery();
+                            try {
+                                cursor.next();
+                            } finally {
+                                cursor.close();
+                            }
+                        }
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+            });
+
+            // Delete the sodas the insert run added, warm up included, so every catalog ends
+            // as big as it started
+            final int[] next = {0};
+            measure(catalog, "delete", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    delete.bindLong(1, insertedIds.get(next[0]++));
+                    delete.executeUpdateDelete();
+                }
+            });
+        } finally {
+            connection.close();
+            deleteDatabase(databaseFile);
+        }
+    }
+
+    /**
+     * Run the store operations against a fresh catalog of the given number of sodas, each
+     * stocked in every one of the given number of stores.
+     */
+    private void runStores(final int stores, final int sodas) throws SQLException, IOException {
+        File databaseFile = File.createTempFile("sodas_benchmark", ".db");
+        Connection connection =
+                DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
+        try {
+            SQLiteDatabase database = SodaSchema.create(connection);
+            BenchmarkStatements statements = new BenchmarkStatements(database);
+            seed(database, statements, sodas);
+            seedStores(connection, database, statements, stores, sodas);
+            String catalog = stores + "x" + sodas;
+            System.out.println();
+            System.out.println(String.format(Locale.US, "%,d stores x %,d sodas", stores, sodas));
+            printPlan(connection, SodaSchema.QUERY_STORE_LIST);
+            printPlan(connection, SodaSchema.QUERY_STORE_PAGE);
+            printHeader();
+
+            final PreparedStatement list =
+                    connection.prepareStatement(SodaSchema.QUERY_STORE_LIST);
+            final PreparedStatement page =
+                    connection.prepareStatement(SodaSchema.QUERY_STORE_PAGE);
+            final PreparedStatement stock =
+                    connection.prepareStatement(SodaSchema.QUERY_STORE_STOCK);
+            final SQLiteStatement update = statements.updateStoreStock();
+
+            int listRuns = Math.max(5, Math.min(200, LIST_ROWS_READ / sodas));
+            measure(catalog, "store_list", listRuns, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    list.setLong(1, randomId(stores));
+                    readStoreList(list);
+                }
+            });
+
+            measure(catalog, "store_page", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    page.setLong(1, randomId(stores));
+                    page.setInt(2, 1 + mRandom.nextInt(STORE_MAX_QUANTITY));
+                    page.setLong(3, randomId(sodas));
+                    readStoreList(page);
+                }
+            });
+
+            measure(catalog, "store_stock", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    stock.setLong(1, randomId(stores));
+                    stock.setLong(2, randomId(sodas));
+                    ResultSet cursor = stock.executeQuery();
+                    try {
+                        cursor.next();
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+
+            measure(catalog, "store_update", POINT_OPERATIONS, new Operation() {
+                @Override
+                void run() throws SQLException {
+                    update.bindLong(1, mRandom.nextInt(STORE_MAX_QUANTITY));
+                    update.bindLong(2, randomId(stores));
+                    update.bindLong(3, randomId(sodas));
+                    update.executeUpdateDelete();
+                }
+            });
+        } finally {
+            connection.close();
+            deleteDatabase(databaseFile);
+        }
+    }
+
+    /**
+     * Let the given number of threads correct the stock of the given number of hot sodas at
+     * once, first writing back the quantity they read plus one blindly, then only if the soda
+     * is still at the version they read, retrying if it isn't.
+     */
+    private void runContention(int threads, int hotSodas) throws Exception {
+        File databaseFile = File.createTempFile("sodas_benchmark", ".db");
+        Connection connection =
+                DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
+        try {
+            SQLiteDatabase database = SodaSchema.create(connection);
+            seed(database, new BenchmarkStatements(database), CONTENTION_SODAS);
+            String catalog = "contention_" + threads + "x" + hotSodas;
+            System.out.println();
+            System.out.println(String.format(Locale.US, "%d threads x %d hot sodas", threads,
+                    hotSodas));
+            printHeader();
+            runWriters(connection, databaseFile, catalog, "blind_write", threads, hotSodas,
+                    false);
+            runWriters(connection, databaseFile, catalog, "cas_write", threads, hotSodas, true);
+        } finally {
+            connection.close();
+            deleteDatabase(databaseFile);
+        }
+    }
+
+    /**
+     * Run the writer threads of one contention mode to the end and report their latencies
+     * together, with the throughput over the wall time they took.
+     */
+    private void runWriters(Connection connection, File databaseFile, String catalog,
+                            String name, int threads, final int hotSodas,
+                            final boolean versioned) throws Exception {
+        long before = sumQuantities(connection, hotSodas);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong retries = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        LatencyRecorder[] recorders = new LatencyRecorder[threads];
+        Thread[] writers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final Connection writer =
+                    DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
+            Statement pragma = writer.createStatement();
+            try {
+                pragma.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+            } finally {
+                pragma.close();
+            }
+            final Random random = new Random(mRandom.nextLong());
+            final LatencyRecorder recorder = new LatencyRecorder(CONTENTION_OPERATIONS);
+            recorders[i] = recorder;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PreparedStatement read =
+                                writer.prepareStatement(SodaSchema.QUERY_QUANTITY_VERSION);
+                        SQLiteDatabase database = new SQLiteDatabase(writer);
+                        SQLiteStatement write = versioned
+                                ? database.compileStatement(SodaSchema.UPDATE_QUANTITY_IF_VERSION)
+                                : new BenchmarkStatements(database).updateQuantity();
+                        start.await();
+                        for (int j = 0; j < CONTENTION_OPERATIONS; j++) {
+                            long id = 1 + random.nextInt(hotSodas);
+                            long begin = System.nanoTime();
+                            while (!increment(read, write, id, versioned)) {
+                                retries.incrementAndGet();
+                            }
+                            recorder.record(System.nanoTime() - begin);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        try {
+                            writer.close();
+                        } catch (SQLException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            });
+            writers[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        LatencyRecorder all = new LatencyRecorder(threads * CONTENTION_OPERATIONS);
+        for (LatencyRecorder recorder : recorders) {
+            all.addAll(recorder);
+        }
+        all.setElapsedNanos(elapsed);
+        report(catalog, name, all);
+
+        long added = sumQuantities(connection, hotSodas) - before;
+        long lost = threads * CONTENTION_OPERATIONS - added;
+        mResults.setProperty(catalog + "." + name + ".retries", String.valueOf(retries.get()));
+        mResults.setProperty(catalog + "." + name + ".lost_updates", String.valueOf(lost));
+        System.out.println(String.format(Locale.US, "%-12s %,d retries, %,d lost updates", "",
+                retries.get(), lost));
+    }
+
+    /**
+     * Read the quantity of a soda and write it back plus one, blindly or at the version it
+     * was read at. Returns false if the versioned write found the soda changed in between.
+     */
+    private static boolean increment(PreparedStatement read, SQLiteStatement write, long id,
+                                     boolean versioned) throws SQLException {
+        int quantity;
+        long version;
+        read.setLong(1, id);
+        ResultSet cursor = read.executeQuery();
+        try {
+            cursor.next();
+            quantity = cursor.getInt(1);
+            version = cursor.getLong(2);
+        } finally {
+            cursor.close();
+        }
+        write.bindLong(1, quantity + 1);
+        write.bindLong(2, id);
+        if (versioned) {
+            write.bindLong(3, version);
+        }
+        return write.executeUpdateDelete() == 1;
+    }
+
+    private static long sumQuantities(Connection connection, int sodas) throws SQLException {
+        PreparedStatement sum =
+                connection.prepareStatement("SELECT SUM(quantity) FROM soda WHERE _id <= ?");
+        try {
+            sum.setInt(1, sodas);
+            ResultSet cursor = sum.executeQuery();
+            try {
+                cursor.next();
+                return cursor.getLong(1);
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            sum.close();
+        }
+    }
+
+    private static void readStoreList(PreparedStatement query) throws SQLException {
+        ResultSet cursor = query.executeQuery();
+        try {
+            while (cursor.next()) {
+                cursor.getLong(1);
+                cursor.getString(2);
+                cursor.getInt(3);
+                cursor.getLong(4);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Print the query plan of a store list, which should only search covering indexes of the
+     * stock by store.
+     */
+    private static void printPlan(Connection connection, String sql) throws SQLException {
+        PreparedStatement explain = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+        try {
+            // The driver wants every parameter bound, though the plan doesn't depend on them
+            int parameters = explain.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= parameters; i++) {
+                explain.setLong(i, 1);
+            }
+            ResultSet plan = explain.executeQuery();
+            try {
+                while (plan.next()) {
+                    System.out.println("  plan: " + plan.getString(4));
+                }
+            } finally {
+                plan.close();
+            }
+        } finally {
+            explain.close();
+        }
+    }
+
+    /**
+     * Add the given number of stores, each stocking every soda, in one transaction.
+     */
+    private void seedStores(Connection connection, SQLiteDatabase database,
+                            BenchmarkStatements statements, int stores, int sodas)
+            throws SQLException {
+        long start = System.nanoTime();
+        PreparedStatement insertStore = connection.prepareStatement(SodaSchema.INSERT_STORE);
+        SQLiteStatement insertStock = statements.insertStoreStock();
+        database.beginTransaction();
+        try {
+            for (int store = 1; store <= stores; store++) {
+                insertStore.setString(1, "Store " + store);
+                insertStore.executeUpdate();
+                for (int soda = 1; soda <= sodas; soda++) {
+                    insertStock.bindLong(1, store);
+                    insertStock.bindLong(2, soda);
+                    insertStock.bindLong(3, mRandom.nextInt(STORE_MAX_QUANTITY));
+                    insertStock.executeInsert();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            insertStore.close();
+        }
+        System.out.println(String.format(Locale.US, "Seeded %,d stores in %,d ms", stores,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Fill the catalog with the given number of sodas in one transaction, the way the
+     * provider's bulk insert does.
+     */
+    private void seed(SQLiteDatabase database, BenchmarkStatements statements, int rows) {
+        long start = System.nanoTime();
+        SQLiteStatement insert = statements.insert();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                makeSoda(i);
+                SodaRecordCodec.bindInsert(insert, mRecord);
+                insert.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        System.out.println(String.format(Locale.US, "Seeded %,d sodas in %,d ms", rows,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Fill the shared record with the columns of a made up soda, ready to be bound to an
+     * insert or update.
+     */
+    private void makeSoda(long number) {
+        mRecord.clear();
+        mRecord.name = sodaName(number);
+        // Plenty of stock, so the sell run never runs out
+        mRecord.quantity = 1000000;
+        mRecord.sold = mRandom.nextInt(1000);
+        mRecord.priceCents = 50 + mRandom.nextInt(500);
+        mRecord.reorderThreshold = 10;
+    }
+
+    private static String sodaName(long number) {
+        return BRANDS[(int) (number % BRANDS.length)] + " " + number;
+    }
+
+    private long randomId(int rows) {
+        return 1 + mRandom.nextInt(rows);
+    }
+
+    /**
+     * Run the operation a tenth of the given times to warm up, then the given times while
+     * recording the latency of each, and report the results.
+     */
+    private void measure(String catalog, String name, int operations, Operation operation)
+            throws SQLException {
+        for (int i = 0; i < operations / 10; i++) {
+            operation.run();
+        }
+
+        LatencyRecorder recorder = new LatencyRecorder(operations);
+        for (int i = 0; i < operations; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            recorder.record(System.nanoTime() - start);
+        }
+        report(catalog, name, recorder);
+    }
+
+    private static void printHeader() {
+        System.out.println(String.format(Locale.US, "%-12s %12s %10s %10s %10s %10s  %s",
+                "operation", "ops/s", "p50 us", "p90 us", "p99 us", "max us", "vs baseline"));
+    }
+
+    private void report(String catalog, String name, LatencyRecorder recorder) {
+        String key = catalog + "." + name + ".";
+        double opsPerSecond = recorder.getOpsPerSecond();
+        mResults.setProperty(key + "ops_per_sec", format(opsPerSecond));
+        mResults.setProperty(key + "p50_us", format(recorder.getPercentileMicros(0.50)));
+        mResults.setProperty(key + "p90_us", format(recorder.getPercentileMicros(0.90)));
+        mResults.setProperty(key + "p99_us", format(recorder.getPercentileMicros(0.99)));
+        mResults.setProperty(key + "max_us", format(recorder.getPercentileMicros(1.0)));
+
+        String comparison = "";
+        String baseline = mBaseline.getProperty(key + "ops_per_sec");
+        if (baseline != null) {
+            double change = opsPerSecond / Double.parseDouble(baseline) - 1;
+            comparison = String.format(Locale.US, "%+.1f%%%s", change * 100,
+                    change < -REGRESSION_THRESHOLD ? "  REGRESSION" : "");
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%-12s %,12.0f %10.1f %10.1f %10.1f %10.1f  %s",
+                name, opsPerSecond,
+                recorder.getPercentileMicros(0.50),
+                recorder.getPercentileMicros(0.90),
+                recorder.getPercentileMicros(0.99),
+                recorder.getPercentileMicros(1.0),
+                comparison));
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.1f", value);
+    }
+
+    private void loadBaseline(File file) throws IOException {
+        if (!file.exists()) {
+            System.out.println("No baseline at " + file + ", nothing to compare against");
+            return;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            mBaseline.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void store(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            mResults.store(out, "Soda data layer benchmark, statements without the provider, "
+                    + System.getProperty("java.vm.name") + " " + System.getProperty("os.arch"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteDatabase(File file) {
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+
+    /**
+     * One operation of a benchmark run.
+     */
+    abstract static class Operation {
+        abstract void run() throws SQLException;
+    }
+}
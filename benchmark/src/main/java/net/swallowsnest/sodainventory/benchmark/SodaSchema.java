@@ -0,0 +1,102 @@
+package net.swallowsnest.sodainventory.benchmark;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import net.swallowsnest.sodainventory.data.SodaDbHelper;
+
+import java.sql.Connection;
+
+/**
+ * The soda database schema, and the SQL the provider doesn't keep in constants of its own.
+ * The tables, indexes and triggers are made by the app's SodaDbHelper, built along with the
+ * benchmark on top of stand-ins for the few platform classes it uses. The provider's pooled
+ * writes are run from SodaStatements itself. The statements below mirror what the provider
+ * builds through SQLiteQueryBuilder and SQLiteDatabase at run time, and have to be kept in
+ * step with it by hand.
+ */
+final class SodaSchema {
+
+    /**
+     * The columns the list and the editor read
+     */
+    static final String PROJECTION =
+            "_id, name, quantity, price, sold, image, reorder_threshold";
+
+    static final String QUERY_LIST = "SELECT " + PROJECTION + " FROM soda";
+
+    static final String QUERY_BY_ID = "SELECT " + PROJECTION + " FROM soda WHERE _id = ?";
+
+    /**
+     * The search results past the names starting with the first word, as the provider reads
+     * them from the full-text index when no name starts with it: ?1 is the prefix match, ?2
+     * and ?3 bound the names starting with the first word
+     */
+    static final String QUERY_SEARCH = "SELECT " + PROJECTION + " FROM soda WHERE _id IN "
+            + "(SELECT docid FROM soda_fts WHERE soda_fts MATCH ?1 LIMIT 50) "
+            + "AND NOT (name >= ?2 COLLATE NOCASE AND name < ?3 COLLATE NOCASE) "
+            + "ORDER BY length(name), name LIMIT 50";
+
+    /**
+     * The values a sale reads back in its transaction
+     */
+    static final String QUERY_SOLD =
+            "SELECT quantity, sold, reorder_threshold, version FROM soda WHERE _id = ?";
+
+    static final String QUERY_QUANTITY_VERSION =
+            "SELECT quantity, version FROM soda WHERE _id = ?";
+
+    /**
+     * A stock correction at the version it was read at, as the provider updates a single soda
+     * with an expected version
+     */
+    static final String UPDATE_QUANTITY_IF_VERSION =
+            "UPDATE soda SET quantity = ? WHERE _id = ? AND version = ?";
+
+    static final String INSERT_STORE = "INSERT INTO stores (name) VALUES (?)";
+
+    /**
+     * The columns and tables of a store's stock list, as the provider's projection map and
+     * SodaListQuery build them
+     */
+    private static final String STORE_LIST = "SELECT store_stock.soda_id AS _id, "
+            + "soda.name AS name, store_stock.quantity AS quantity, soda.price AS price, "
+            + "soda.sold AS sold, soda.image AS image FROM store_stock CROSS JOIN soda "
+            + "ON soda._id = store_stock.soda_id WHERE store_stock.store_id = ?";
+
+    /**
+     * A whole store in soda order
+     */
+    static final String QUERY_STORE_LIST = STORE_LIST + " ORDER BY store_stock.soda_id";
+
+    /**
+     * A page of the sodas a store has in stock, lowest stock first, after the given row
+     */
+    static final String QUERY_STORE_PAGE = STORE_LIST + " AND store_stock.quantity > 0 "
+            + "AND store_stock.quantity >= ?2 "
+            + "AND (store_stock.quantity > ?2 OR store_stock.soda_id > ?3) "
+            + "ORDER BY store_stock.quantity, store_stock.soda_id LIMIT 100";
+
+    static final String QUERY_STORE_STOCK =
+            "SELECT quantity FROM store_stock WHERE store_id = ? AND soda_id = ?";
+
+    private SodaSchema() {
+    }
+
+    /**
+     * Create the soda tables in an empty database with the app's own SodaDbHelper, in one
+     * transaction like the platform does, and switch it to write-ahead logging like the app.
+     * Return the database the provider's statements are compiled on.
+     */
+    static SQLiteDatabase create(Connection connection) {
+        SQLiteDatabase database = new SQLiteDatabase(connection);
+        database.enableWriteAheadLogging();
+        database.beginTransaction();
+        try {
+            new SodaDbHelper(null).onCreate(database);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return database;
+    }
+}
@@ -0,0 +1,52 @@
+package net.swallowsnest.sodainventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Hands the benchmark the provider's own compiled statements, which are package private.
+ * Like the provider's Binder threads, every thread gets its own set.
+ */
+public final class BenchmarkStatements {
+
+    private final SodaStatements mStatements;
+
+    /**
+     * Return the statements of the calling thread for the given database.
+     */
+    public BenchmarkStatements(SQLiteDatabase database) {
+        mStatements = SodaStatements.get(database);
+    }
+
+    public SQLiteStatement insert() {
+        return mStatements.insert;
+    }
+
+    public SQLiteStatement updateRow() {
+        return mStatements.updateRow;
+    }
+
+    public SQLiteStatement updateQuantity() {
+        return mStatements.updateQuantity;
+    }
+
+    public SQLiteStatement delete() {
+        return mStatements.delete;
+    }
+
+    public SQLiteStatement sell() {
+        return mStatements.sell;
+    }
+
+    public SQLiteStatement insertSale() {
+        return mStatements.insertSale;
+    }
+
+    public SQLiteStatement insertStoreStock() {
+        return mStatements.insertStoreStock;
+    }
+
+    public SQLiteStatement updateStoreStock() {
+        return mStatements.updateStoreStock;
+    }
+}